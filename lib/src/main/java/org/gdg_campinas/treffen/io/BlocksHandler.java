@@ -16,19 +16,19 @@
 
 package org.gdg_campinas.treffen.io;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.model.Block;
 import org.gdg_campinas.treffen.util.LogUtils;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.ParserUtils;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import static org.gdg_campinas.treffen.util.LogUtils.LOGW;
@@ -44,26 +44,36 @@ public class BlocksHandler extends JSONHandler {
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Blocks.CONTENT_URI);
-        list.add(ContentProviderOperation.newDelete(uri).build());
+    public void writeData(@NonNull BulkImport bulkImport) {
+        TableDiff diff = new TableDiff(bulkImport, Tables.BLOCKS,
+                ScheduleContract.Blocks.BLOCK_ID,
+                ScheduleContract.Blocks.BLOCK_IMPORT_HASHCODE,
+                ScheduleContract.Blocks.BLOCK_TITLE,
+                ScheduleContract.Blocks.BLOCK_START,
+                ScheduleContract.Blocks.BLOCK_END,
+                ScheduleContract.Blocks.BLOCK_TYPE,
+                ScheduleContract.Blocks.BLOCK_SUBTITLE,
+                ScheduleContract.Blocks.BLOCK_KIND);
         for (Block block : mBlocks) {
-            outputBlock(block, list);
+            bulkImport.yieldPoint();
+            outputBlock(block, diff);
         }
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Blocks: " + diff);
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Block block : gson.fromJson(element, Block[].class)) {
-            mBlocks.add(block);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Block.class, new RecordCallback<Block>() {
+            @Override
+            public void onRecord(@NonNull Block block) {
+                mBlocks.add(block);
+            }
+        });
     }
 
-    private static void outputBlock(Block block, ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Blocks.CONTENT_URI);
-        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
+    private static void outputBlock(Block block, TableDiff diff) {
         String title = block.title != null ? block.title : "";
         String subtitle = block.subtitle != null ? block.subtitle : "";
         String kind = block.kind != null ? block.kind : "";
@@ -78,13 +88,13 @@ public class BlocksHandler extends JSONHandler {
         long startTimeL = ParserUtils.parseTime(block.start);
         long endTimeL = ParserUtils.parseTime(block.end);
         final String blockId = ScheduleContract.Blocks.generateBlockId(startTimeL, endTimeL);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_ID, blockId);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_TITLE, title);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_START, startTimeL);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_END, endTimeL);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_TYPE, type);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_SUBTITLE, subtitle);
-        builder.withValue(ScheduleContract.Blocks.BLOCK_KIND, kind);
-        list.add(builder.build());
+        diff.row(blockId)
+                .value(title)
+                .value(startTimeL)
+                .value(endTimeL)
+                .value(type)
+                .value(subtitle)
+                .value(kind)
+                .write();
     }
 }
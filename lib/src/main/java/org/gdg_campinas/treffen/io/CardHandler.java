@@ -18,19 +18,18 @@ import static org.gdg_campinas.treffen.util.LogUtils.LOGE;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGI;
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.model.Card;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
 
 public class CardHandler extends JSONHandler {
@@ -44,51 +43,73 @@ public class CardHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Card card : gson.fromJson(element, Card[].class)) {
-            mCards.put(card.mId, card);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Card.class, new RecordCallback<Card>() {
+            @Override
+            public void onRecord(@NonNull Card card) {
+                mCards.put(card.mId, card);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        LogUtils.LOGI(TAG, "Creating content provider operations for cards: " + mCards.size());
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Cards.CONTENT_URI);
+    public void writeData(@NonNull BulkImport bulkImport) {
+        LogUtils.LOGI(TAG, "Writing cards: " + mCards.size());
 
-        // The list of cards is not large, so for simplicity we delete all of them and repopulate
-        list.add(ContentProviderOperation.newDelete(uri).build());
+        TableDiff diff = new TableDiff(bulkImport, Tables.CARDS,
+                ScheduleContract.Cards.CARD_ID,
+                ScheduleContract.Cards.CARD_IMPORT_HASHCODE,
+                ScheduleContract.Cards.ACTION_COLOR,
+                ScheduleContract.Cards.ACTION_TEXT,
+                ScheduleContract.Cards.ACTION_URL,
+                ScheduleContract.Cards.ACTION_TYPE,
+                ScheduleContract.Cards.ACTION_EXTRA,
+                ScheduleContract.Cards.BACKGROUND_COLOR,
+                ScheduleContract.Cards.DISPLAY_START_DATE,
+                ScheduleContract.Cards.DISPLAY_END_DATE,
+                ScheduleContract.Cards.MESSAGE,
+                ScheduleContract.Cards.TEXT_COLOR,
+                ScheduleContract.Cards.TITLE);
         for (Card card : mCards.values()) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
-            builder.withValue(ScheduleContract.Cards.ACTION_COLOR, card.mActionColor);
-            builder.withValue(ScheduleContract.Cards.ACTION_TEXT, card.mActionText);
-            builder.withValue(ScheduleContract.Cards.ACTION_URL, card.mActionUrl);
-            builder.withValue(ScheduleContract.Cards.ACTION_TYPE, card.mActionType);
-            builder.withValue(ScheduleContract.Cards.ACTION_EXTRA, card.mActionExtra);
-            builder.withValue(ScheduleContract.Cards.BACKGROUND_COLOR, card.mBackgroundColor);
-            builder.withValue(ScheduleContract.Cards.CARD_ID, card.mId);
+            if (card.mId == null) {
+                LogUtils.LOGW(TAG, "Ignoring card without an ID: " + card.mTitle);
+                continue;
+            }
+            long startTime;
             try {
-                long startTime = Card.getEpochMillisFromTimeString(card.mValidFrom);
+                startTime = Card.getEpochMillisFromTimeString(card.mValidFrom);
                 LogUtils.LOGI(TAG, "Processing card with epoch start time: " + startTime);
-                builder.withValue(ScheduleContract.Cards.DISPLAY_START_DATE, startTime);
             } catch (IllegalArgumentException exception) {
                 LogUtils.LOGE(TAG, "Card time disabled, invalid display start date defined for card: " +
                         card.mTitle + " " + card.mValidFrom);
-                builder.withValue(ScheduleContract.Cards.DISPLAY_START_DATE, Long.MAX_VALUE);
+                startTime = Long.MAX_VALUE;
             }
+            long endTime;
             try {
-                long endTime = Card.getEpochMillisFromTimeString(card.mValidUntil);
+                endTime = Card.getEpochMillisFromTimeString(card.mValidUntil);
                 LogUtils.LOGI(TAG, "Processing card with epoch end time: " + endTime);
-                builder.withValue(ScheduleContract.Cards.DISPLAY_END_DATE, endTime);
             } catch (IllegalArgumentException exception) {
                 LogUtils.LOGE(TAG, "Card time disabled, invalid display end date defined for card: " +
                         card.mTitle + " " + card.mValidUntil);
-                builder.withValue(ScheduleContract.Cards.DISPLAY_END_DATE, 0L);
+                endTime = 0L;
             }
-            builder.withValue(ScheduleContract.Cards.MESSAGE, card.mShortMessage);
-            builder.withValue(ScheduleContract.Cards.TEXT_COLOR, card.mTextColor);
-            builder.withValue(ScheduleContract.Cards.TITLE, card.mTitle);
-            list.add(builder.build());
+            bulkImport.yieldPoint();
+            diff.row(card.mId)
+                    .value(card.mActionColor)
+                    .value(card.mActionText)
+                    .value(card.mActionUrl)
+                    .value(card.mActionType)
+                    .value(card.mActionExtra)
+                    .value(card.mBackgroundColor)
+                    .value(startTime)
+                    .value(endTime)
+                    .value(card.mShortMessage)
+                    .value(card.mTextColor)
+                    .value(card.mTitle)
+                    .write();
         }
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Cards: " + diff);
     }
 }
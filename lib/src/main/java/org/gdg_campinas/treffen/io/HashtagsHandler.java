@@ -19,20 +19,19 @@ package org.gdg_campinas.treffen.io;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGD;
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.graphics.Color;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.model.Hashtag;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
 
 public class HashtagsHandler extends JSONHandler {
@@ -45,34 +44,41 @@ public class HashtagsHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Hashtag hashtag : gson.fromJson(element, Hashtag[].class)) {
-            mHashtags.put(hashtag.name, hashtag);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Hashtag.class, new RecordCallback<Hashtag>() {
+            @Override
+            public void onRecord(@NonNull Hashtag hashtag) {
+                mHashtags.put(hashtag.name, hashtag);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        LogUtils.LOGD(TAG, "makeContentProviderOperations");
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Hashtags.CONTENT_URI);
-        // Remove all the current entries
-        list.add(ContentProviderOperation.newDelete(uri).build());
-        // Insert hashtags
+    public void writeData(@NonNull BulkImport bulkImport) {
+        LogUtils.LOGD(TAG, "writeData");
+        TableDiff diff = new TableDiff(bulkImport, Tables.HASHTAGS,
+                ScheduleContract.Hashtags.HASHTAG_NAME,
+                ScheduleContract.Hashtags.HASHTAG_IMPORT_HASHCODE,
+                ScheduleContract.Hashtags.HASHTAG_DESCRIPTION,
+                ScheduleContract.Hashtags.HASHTAG_COLOR,
+                ScheduleContract.Hashtags.HASHTAG_ORDER);
         for (Hashtag hashtag : mHashtags.values()) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
-            builder.withValue(ScheduleContract.Hashtags.HASHTAG_NAME, hashtag.name);
-            builder.withValue(ScheduleContract.Hashtags.HASHTAG_DESCRIPTION, hashtag.description);
+            int color;
             try {
-                builder.withValue(ScheduleContract.Hashtags.HASHTAG_COLOR,
-                        Color.parseColor(hashtag.color));
+                color = Color.parseColor(hashtag.color);
             } catch (IllegalArgumentException e) {
-                builder.withValue(ScheduleContract.Hashtags.HASHTAG_COLOR, Color.BLACK);
+                color = Color.BLACK;
             }
-            builder.withValue(ScheduleContract.Hashtags.HASHTAG_ORDER, hashtag.order);
-            list.add(builder.build());
+            bulkImport.yieldPoint();
+            diff.row(hashtag.name)
+                    .value(hashtag.description)
+                    .value(color)
+                    .value(hashtag.order)
+                    .write();
         }
-        LogUtils.LOGD(TAG, "Hashtags: " + mHashtags.size());
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Hashtags: " + diff);
     }
 
 }
@@ -16,23 +16,15 @@
 
 package org.gdg_campinas.treffen.io;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import org.gdg_campinas.treffen.util.IOUtils;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.gdg_campinas.treffen.provider.BulkImport;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringWriter;
-import java.io.Writer;
-import java.util.ArrayList;
 
 public abstract class JSONHandler {
 
@@ -42,85 +34,51 @@ public abstract class JSONHandler {
         mContext = context;
     }
 
-    public abstract void makeContentProviderOperations(ArrayList<ContentProviderOperation> list);
-
-    public abstract void process(@NonNull Gson gson, @NonNull JsonElement element);
+    /**
+     * Writes the data this handler has processed to the database. Handlers call
+     * {@link BulkImport#yieldPoint()} before each entity they write, so the import can be committed
+     * between entities.
+     *
+     * @throws IOException If the data can't be written.
+     */
+    public abstract void writeData(@NonNull BulkImport bulkImport) throws IOException;
 
     /**
-     * Loads a raw resource and returns its content as a String.
+     * Processes the value of this handler's key in a data file. The value is read straight from
+     * the data file's stream, which must be left positioned after the value.
      *
-     * @throws IOException If any error was encountered, such as an incorrect resource ID, or
-     *                     inaccessible file.
+     * @throws IOException If the value can't be read or isn't in the expected format.
      */
-    public static String parseResource(Context context, int resource) throws IOException {
-        InputStream stream = null;
-        String data;
-        try {
-            stream = context.getResources().openRawResource(resource);
-            data = parseStream(stream);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    // Ignore exceptions during stream close, other exceptions thrown earlier will
-                    // be handled by the calling methods
-                }
-            }
-        }
+    public abstract void process(@NonNull Gson gson, @NonNull JsonReader reader)
+            throws IOException;
 
-        return data;
+    /**
+     * Callback that receives the records of a data file one at a time, as they are read.
+     */
+    public interface RecordCallback<T> {
+        void onRecord(@NonNull T record);
     }
 
     /**
-     * Loads a file and returns its content as a String.
+     * Reads an array of records from the reader, binding each record and passing it to the
+     * callback before the next one is read, so only one record is held in memory at a time.
+     * A null value is read as an empty array.
      *
-     * @throws IOException If any error was encountered, such as an incorrect resource ID, or
-     *                     inaccessible file.
+     * @throws IOException If the value is not an array of records of the given type.
      */
-    public static String parseFile(String filePath) throws IOException {
-        InputStream stream = null;
-        String data;
-        try {
-            stream = new FileInputStream(filePath);
-            data = parseStream(stream);
-        } finally {
-            if (stream != null) {
-                try {
-                    stream.close();
-                } catch (IOException e) {
-                    // Ignore exceptions during stream close, other exceptions thrown earlier will
-                    // be handled by the calling methods
-                }
-            }
+    protected static <T> void readRecords(@NonNull Gson gson, @NonNull JsonReader reader,
+            @NonNull Class<T> type, @NonNull RecordCallback<T> callback) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return;
         }
-
-        return data;
-    }
-
-    private static String parseStream(final InputStream stream) throws IOException {
-        Reader reader = null;
-        Writer writer = new StringWriter();
-        char[] buffer = new char[1024];
-
-        // IO errors are passed up to the calling method and must be caught there.
-        try {
-            reader = new BufferedReader(new InputStreamReader(stream, IOUtils.CHARSET_UTF8));
-            int n;
-            while ((n = reader.read(buffer)) != -1) {
-                writer.write(buffer, 0, n);
-            }
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // Ignore exceptions during stream close, other exceptions thrown earlier will
-                    // be handled by the calling methods
-                }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            T record = gson.fromJson(reader, type);
+            if (record != null) {
+                callback.onRecord(record);
             }
         }
-
-        return writer.toString();
+        reader.endArray();
     }
 }
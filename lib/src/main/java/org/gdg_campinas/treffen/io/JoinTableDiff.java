@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.io;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import org.gdg_campinas.treffen.provider.BulkImport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a relationship table, such as the one between sessions and their tags, incrementally.
+ * The children of each parent are compared with the rows already in the table, and only the
+ * missing rows are inserted and the extra rows deleted.
+ */
+public class JoinTableDiff {
+    private final BulkImport mBulkImport;
+    private final String mTable;
+    private final String mParentColumn;
+    private final String mChildColumn;
+
+    // The children of each parent, as they are in the table at this point of the import.
+    private final HashMap<String, Set<String>> mChildren = new HashMap<>();
+
+    // The parents written during the import.
+    private final HashSet<String> mImportedParents = new HashSet<>();
+
+    private int mInserted = 0;
+    private int mDeleted = 0;
+
+    /**
+     * Loads the rows currently in the table.
+     */
+    public JoinTableDiff(@NonNull BulkImport bulkImport, @NonNull String table,
+            @NonNull String parentColumn, @NonNull String childColumn) {
+        mBulkImport = bulkImport;
+        mTable = table;
+        mParentColumn = parentColumn;
+        mChildColumn = childColumn;
+
+        Cursor cursor = bulkImport.query(table, parentColumn, childColumn);
+        try {
+            while (cursor.moveToNext()) {
+                String parent = cursor.getString(0);
+                Set<String> children = mChildren.get(parent);
+                if (children == null) {
+                    children = new HashSet<>();
+                    mChildren.put(parent, children);
+                }
+                children.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Makes the children of the parent in the table be the given ones.
+     *
+     * @param children The children of the parent, or null if it has none.
+     */
+    public void write(@NonNull String parent, String[] children) {
+        Set<String> storedChildren = mChildren.get(parent);
+        if (storedChildren == null) {
+            storedChildren = Collections.emptySet();
+        }
+        HashSet<String> newChildren = new HashSet<>();
+        if (children != null) {
+            Collections.addAll(newChildren, children);
+        }
+        mImportedParents.add(parent);
+        mChildren.put(parent, newChildren);
+
+        for (String child : storedChildren) {
+            if (!newChildren.contains(child)) {
+                mBulkImport.delete(mTable, mParentColumn, mChildColumn)
+                        .bind(parent)
+                        .bind(child)
+                        .execute();
+                mDeleted++;
+            }
+        }
+        for (String child : newChildren) {
+            if (!storedChildren.contains(child)) {
+                mBulkImport.insert(mTable, mParentColumn, mChildColumn)
+                        .bind(parent)
+                        .bind(child)
+                        .execute();
+                mInserted++;
+            }
+        }
+    }
+
+    /**
+     * Deletes the rows of the parents that were in the table before the import, but weren't
+     * written during it.
+     *
+     * @return The number of parents whose rows were deleted.
+     */
+    public int deleteVanished() {
+        BulkImport.Statement delete = mBulkImport.delete(mTable, mParentColumn);
+        int deleted = 0;
+        Iterator<Map.Entry<String, Set<String>>> iterator = mChildren.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Set<String>> entry = iterator.next();
+            if (!mImportedParents.contains(entry.getKey())) {
+                delete.bind(entry.getKey()).execute();
+                mDeleted += entry.getValue().size();
+                iterator.remove();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public String toString() {
+        return mTable + ": " + mInserted + " inserted, " + mDeleted + " deleted";
+    }
+}
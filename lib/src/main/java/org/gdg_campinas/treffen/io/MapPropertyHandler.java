@@ -16,21 +16,21 @@
 
 package org.gdg_campinas.treffen.io;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.map.model.MapData;
 import org.gdg_campinas.treffen.io.map.model.Tile;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 
+import org.gdg_campinas.treffen.util.HashUtils;
 import org.gdg_campinas.treffen.util.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -50,16 +50,19 @@ public class MapPropertyHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (MapData mapData : gson.fromJson(element, MapData[].class)) {
-            if (mapData.tiles != null) {
-                processTileOverlays(mapData.tiles);
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, MapData.class, new RecordCallback<MapData>() {
+            @Override
+            public void onRecord(@NonNull MapData mapData) {
+                if (mapData.tiles != null) {
+                    processTileOverlays(mapData.tiles);
+                }
+                if (mapData.markers != null) {
+                    // Get the geojson data that is stored as 'markers' and verify it's valid JSON.
+                    geojson = mapData.markers.toString();
+                }
             }
-            if (mapData.markers != null) {
-                // Get the geojson data that is stored as 'markers' and verify it's valid JSON.
-                geojson = mapData.markers.toString();
-            }
-        }
+        });
     }
 
 
@@ -74,35 +77,43 @@ public class MapPropertyHandler extends JSONHandler {
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        buildMarkers(list);
-        buildTiles(list);
+    public void writeData(@NonNull BulkImport bulkImport) {
+        writeMarkers(bulkImport);
+        writeTiles(bulkImport);
     }
 
-    private void buildMarkers(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper
-                .setUriAsCalledFromSyncAdapter(ScheduleContract.MapGeoJson.CONTENT_URI);
-
-        list.add(ContentProviderOperation.newDelete(uri).build());
-
-        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
-        builder.withValue(ScheduleContract.MapGeoJson.GEOJSON, geojson);
-        list.add(builder.build());
+    private void writeMarkers(BulkImport bulkImport) {
+        // There is a single record, identified by the hashcode of the geojson, so it's only
+        // replaced when the geojson changes.
+        TableDiff diff = new TableDiff(bulkImport, Tables.MAPGEOJSON,
+                ScheduleContract.MapGeoJson.GEOJSON_IMPORT_HASHCODE, null,
+                ScheduleContract.MapGeoJson.GEOJSON);
+        bulkImport.yieldPoint();
+        if (geojson != null) {
+            diff.row(HashUtils.computeWeakHash(geojson))
+                    .value(geojson)
+                    .write();
+        }
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Map markers: " + diff);
     }
 
-    private void buildTiles(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper
-                .setUriAsCalledFromSyncAdapter(ScheduleContract.MapTiles.CONTENT_URI);
-
-        list.add(ContentProviderOperation.newDelete(uri).build());
-
+    private void writeTiles(BulkImport bulkImport) {
+        TableDiff diff = new TableDiff(bulkImport, Tables.MAPTILES,
+                ScheduleContract.MapTiles.TILE_FLOOR,
+                ScheduleContract.MapTiles.TILE_IMPORT_HASHCODE,
+                ScheduleContract.MapTiles.TILE_FILE,
+                ScheduleContract.MapTiles.TILE_URL);
         for (String floor : mTileOverlays.keySet()) {
             Tile tileOverlay = mTileOverlays.get(floor);
-            ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
-            builder.withValue(ScheduleContract.MapTiles.TILE_FLOOR, floor);
-            builder.withValue(ScheduleContract.MapTiles.TILE_FILE, tileOverlay.filename);
-            builder.withValue(ScheduleContract.MapTiles.TILE_URL, tileOverlay.url);
-            list.add(builder.build());
+            bulkImport.yieldPoint();
+            diff.row(floor)
+                    .value(tileOverlay.filename)
+                    .value(tileOverlay.url)
+                    .write();
         }
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Map tiles: " + diff);
     }
 }
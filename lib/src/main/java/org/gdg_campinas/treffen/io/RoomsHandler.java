@@ -18,19 +18,18 @@ package org.gdg_campinas.treffen.io;
 
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.model.Room;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
 
 public class RoomsHandler extends JSONHandler {
@@ -44,25 +43,31 @@ public class RoomsHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Room room : gson.fromJson(element, Room[].class)) {
-            mRooms.put(room.id, room);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Room.class, new RecordCallback<Room>() {
+            @Override
+            public void onRecord(@NonNull Room room) {
+                mRooms.put(room.id, room);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Rooms.CONTENT_URI);
-
-        // The list of rooms is not large, so for simplicity we delete all of them and repopulate
-        list.add(ContentProviderOperation.newDelete(uri).build());
+    public void writeData(@NonNull BulkImport bulkImport) {
+        TableDiff diff = new TableDiff(bulkImport, Tables.ROOMS,
+                ScheduleContract.Rooms.ROOM_ID,
+                ScheduleContract.Rooms.ROOM_IMPORT_HASHCODE,
+                ScheduleContract.Rooms.ROOM_NAME,
+                ScheduleContract.Rooms.ROOM_FLOOR);
         for (Room room : mRooms.values()) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
-            builder.withValue(ScheduleContract.Rooms.ROOM_ID, room.id);
-            builder.withValue(ScheduleContract.Rooms.ROOM_NAME, room.name);
-            builder.withValue(ScheduleContract.Rooms.ROOM_FLOOR, room.floor);
-            list.add(builder.build());
+            bulkImport.yieldPoint();
+            diff.row(room.id)
+                    .value(room.name)
+                    .value(room.floor)
+                    .write();
         }
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Rooms: " + diff);
     }
 }
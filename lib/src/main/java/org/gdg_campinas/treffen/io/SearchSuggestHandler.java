@@ -19,18 +19,17 @@ package org.gdg_campinas.treffen.io;
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
 import android.app.SearchManager;
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashSet;
 
 public class SearchSuggestHandler extends JSONHandler {
@@ -42,22 +41,25 @@ public class SearchSuggestHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (String word : gson.fromJson(element, String[].class)) {
-            mSuggestions.add(word);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, String.class, new RecordCallback<String>() {
+            @Override
+            public void onRecord(@NonNull String word) {
+                mSuggestions.add(word);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.SearchSuggest.CONTENT_URI);
-
-        list.add(ContentProviderOperation.newDelete(uri).build());
+    public void writeData(@NonNull BulkImport bulkImport) {
+        // The suggestions are their own keys, so they are only ever inserted or deleted
+        TableDiff diff = new TableDiff(bulkImport, Tables.SEARCH_SUGGEST,
+                SearchManager.SUGGEST_COLUMN_TEXT_1, null);
+        bulkImport.yieldPoint();
         for (String word : mSuggestions) {
-            list.add(ContentProviderOperation.newInsert(uri)
-                .withValue(SearchManager.SUGGEST_COLUMN_TEXT_1, word)
-                .build());
+            diff.row(word).write();
         }
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Search suggestions: " + diff);
     }
 }
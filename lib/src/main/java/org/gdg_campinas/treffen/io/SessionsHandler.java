@@ -21,32 +21,27 @@ import static org.gdg_campinas.treffen.util.LogUtils.LOGE;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGW;
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Color;
-import android.net.Uri;
-import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.text.TextUtils;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.Config;
 import org.gdg_campinas.treffen.io.model.Speaker;
 import org.gdg_campinas.treffen.io.model.Tag;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
 import org.gdg_campinas.treffen.provider.ScheduleDatabase;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.LogUtils;
 import org.gdg_campinas.treffen.util.TimeUtils;
 import org.gdg_campinas.treffen.io.model.Session;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 
 public class SessionsHandler extends JSONHandler {
     private static final String TAG = LogUtils.makeLogTag(SessionsHandler.class);
@@ -55,128 +50,93 @@ public class SessionsHandler extends JSONHandler {
     private HashMap<String, Speaker> mSpeakerMap = null;
     private int mDefaultSessionColor;
 
+    // The columns written for each session, besides its ID, in the order of their values.
+    private static final String[] SESSION_COLUMNS = {
+            ScheduleContract.Sessions.SESSION_LEVEL,
+            ScheduleContract.Sessions.SESSION_TITLE,
+            ScheduleContract.Sessions.SESSION_ABSTRACT,
+            ScheduleContract.Sessions.SESSION_HASHTAG,
+            ScheduleContract.Sessions.SESSION_START,
+            ScheduleContract.Sessions.SESSION_END,
+            ScheduleContract.Sessions.SESSION_TAGS,
+            ScheduleContract.Sessions.SESSION_SPEAKER_NAMES,
+            ScheduleContract.Sessions.SESSION_KEYWORDS,
+            ScheduleContract.Sessions.SESSION_URL,
+            ScheduleContract.Sessions.SESSION_LIVESTREAM_ID,
+            ScheduleContract.Sessions.SESSION_MODERATOR_URL,
+            ScheduleContract.Sessions.SESSION_REQUIREMENTS,
+            ScheduleContract.Sessions.SESSION_YOUTUBE_URL,
+            ScheduleContract.Sessions.SESSION_PDF_URL,
+            ScheduleContract.Sessions.SESSION_NOTES_URL,
+            ScheduleContract.Sessions.ROOM_ID,
+            ScheduleContract.Sessions.SESSION_GROUPING_ORDER,
+            ScheduleContract.Sessions.SESSION_MAIN_TAG,
+            ScheduleContract.Sessions.SESSION_CAPTIONS_URL,
+            ScheduleContract.Sessions.SESSION_PHOTO_URL,
+            // Disabled since this isn't being used by this app.
+            // ScheduleContract.Sessions.SESSION_RELATED_CONTENT,
+            ScheduleContract.Sessions.SESSION_COLOR
+    };
+
     public SessionsHandler(Context context) {
         super(context);
         mDefaultSessionColor = ContextCompat.getColor(mContext, org.gdg_campinas.treffen.lib.R.color.default_session_color);
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Session session : gson.fromJson(element, Session[].class)) {
-            mSessions.put(session.id, session);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Session.class, new RecordCallback<Session>() {
+            @Override
+            public void onRecord(@NonNull Session session) {
+                mSessions.put(session.id, session);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Sessions.CONTENT_URI);
-
-        // build a map of session to session import hashcode so we know what to update,
-        // what to insert, and what to delete
-        HashMap<String, String> sessionHashCodes = loadSessionHashCodes();
-        boolean incrementalUpdate = (sessionHashCodes != null) && (sessionHashCodes.size() > 0);
-
-        // set of sessions that we want to keep after the sync
-        HashSet<String> sessionsToKeep = new HashSet<>();
-
-        if (incrementalUpdate) {
-            LogUtils.LOGD(TAG, "Doing incremental update for sessions.");
-        } else {
-            LogUtils.LOGD(TAG, "Doing full (non-incremental) update for sessions.");
-            list.add(ContentProviderOperation.newDelete(uri).build());
-        }
+    public void writeData(@NonNull BulkImport bulkImport) {
+        TableDiff sessions = new TableDiff(bulkImport, Tables.SESSIONS,
+                ScheduleContract.Sessions.SESSION_ID,
+                ScheduleContract.Sessions.SESSION_IMPORT_HASHCODE,
+                SESSION_COLUMNS)
+                .setUpdatedColumn(ScheduleContract.SyncColumns.UPDATED);
+        JoinTableDiff speakers = new JoinTableDiff(bulkImport, Tables.SESSIONS_SPEAKERS,
+                ScheduleDatabase.SessionsSpeakers.SESSION_ID,
+                ScheduleDatabase.SessionsSpeakers.SPEAKER_ID);
+        JoinTableDiff tags = new JoinTableDiff(bulkImport, Tables.SESSIONS_TAGS,
+                ScheduleDatabase.SessionsTags.SESSION_ID,
+                ScheduleDatabase.SessionsTags.TAG_ID);
+        JoinTableDiff relatedSessions = new JoinTableDiff(bulkImport, Tables.RELATED_SESSIONS,
+                ScheduleContract.Sessions.SESSION_ID,
+                ScheduleContract.Sessions.RELATED_SESSION_ID);
 
-        int updatedSessions = 0;
         for (Session session : mSessions.values()) {
-            // Set the session grouping order in the object, so it can be used in hash calculation
+            // Set the session grouping order in the object, as it's one of the values written
             session.groupingOrder = computeTypeOrder(session);
 
-            // compute the incoming session's hashcode to figure out if we need to update
-            String hashCode = session.getImportHashCode();
-            sessionsToKeep.add(session.id);
-
-            // add session, if necessary
-            if (!incrementalUpdate || !sessionHashCodes.containsKey(session.id) ||
-                        !sessionHashCodes.get(session.id).equals(hashCode)) {
-                ++updatedSessions;
-                boolean isNew = !incrementalUpdate || !sessionHashCodes.containsKey(session.id);
-                buildSession(isNew, session, list);
-
-                // add relationships to speakers and track
-                buildSessionSpeakerMapping(session, list);
-                buildTagsMapping(session, list);
-                buildRelatedSessionsMapping(session, list);
-            }
-        }
+            bulkImport.yieldPoint();
+            writeSession(session, sessions);
 
-        int deletedSessions = 0;
-        if (incrementalUpdate) {
-            for (String sessionId : sessionHashCodes.keySet()) {
-                if (!sessionsToKeep.contains(sessionId)) {
-                    buildDeleteOperation(sessionId, list);
-                    ++deletedSessions;
-                }
-            }
+            // add relationships to speakers, tags and related sessions
+            speakers.write(session.id, session.speakers);
+            tags.write(session.id, session.tags);
+            relatedSessions.write(session.id, session.relatedSessionIds);
         }
 
-        LogUtils.LOGD(TAG, "Sessions: " + (incrementalUpdate ? "INCREMENTAL" : "FULL") + " update. " +
-                updatedSessions + " to update, " + deletedSessions + " to delete. New total: " +
-                mSessions.size());
-    }
+        // delete the sessions that are gone, along with their relationships
+        bulkImport.yieldPoint();
+        speakers.deleteVanished();
+        tags.deleteVanished();
+        relatedSessions.deleteVanished();
+        sessions.deleteVanished();
 
-    private void buildDeleteOperation(String sessionId, List<ContentProviderOperation> list) {
-        Uri sessionUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Sessions.buildSessionUri(sessionId));
-        list.add(ContentProviderOperation.newDelete(sessionUri).build());
-    }
-
-    private HashMap<String, String> loadSessionHashCodes() {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Sessions.CONTENT_URI);
-        LogUtils.LOGD(TAG, "Loading session hashcodes for session import optimization.");
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(uri, SessionHashcodeQuery.PROJECTION,
-                    null, null, null);
-            if (cursor == null || cursor.getCount() < 1) {
-                LogUtils.LOGW(TAG, "Warning: failed to load session hashcodes. Not optimizing session import.");
-                return null;
-            }
-            HashMap<String, String> hashcodeMap = new HashMap<>();
-            if (cursor.moveToFirst()) {
-                do {
-                    String sessionId = cursor.getString(SessionHashcodeQuery.SESSION_ID);
-                    String hashcode = cursor.getString(SessionHashcodeQuery.SESSION_IMPORT_HASHCODE);
-                    hashcodeMap.put(sessionId, hashcode == null ? "" : hashcode);
-                } while (cursor.moveToNext());
-            }
-            LogUtils.LOGD(TAG, "Session hashcodes loaded for " + hashcodeMap.size() + " sessions.");
-            return hashcodeMap;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+        LogUtils.LOGD(TAG, "Sessions: " + sessions + "; " + speakers + "; " + tags + "; " +
+                relatedSessions);
     }
 
     StringBuilder mStringBuilder = new StringBuilder();
 
-    private void buildSession(boolean isInsert,
-                              Session session, ArrayList<ContentProviderOperation> list) {
-        ContentProviderOperation.Builder builder;
-        Uri allSessionsUri = ScheduleContractHelper
-                .setUriAsCalledFromSyncAdapter(ScheduleContract.Sessions.CONTENT_URI);
-        Uri thisSessionUri = ScheduleContractHelper
-                .setUriAsCalledFromSyncAdapter(ScheduleContract.Sessions.buildSessionUri(
-                        session.id));
-
-        if (isInsert) {
-            builder = ContentProviderOperation.newInsert(allSessionsUri);
-        } else {
-            builder = ContentProviderOperation.newUpdate(thisSessionUri);
-        }
-
+    private void writeSession(Session session, TableDiff diff) {
         String speakerNames = "";
         if (mSpeakerMap != null) {
             // build human-readable list of speakers
@@ -208,46 +168,39 @@ public class SessionsHandler extends JSONHandler {
             LogUtils.LOGD(TAG, "Ignoring invalid formatted session color: "+session.color);
         }
 
-        builder.withValue(ScheduleContract.SyncColumns.UPDATED, System.currentTimeMillis())
-                .withValue(ScheduleContract.Sessions.SESSION_ID, session.id)
-                .withValue(ScheduleContract.Sessions.SESSION_LEVEL, null)            // Not available
-                .withValue(ScheduleContract.Sessions.SESSION_TITLE, session.title)
-                .withValue(ScheduleContract.Sessions.SESSION_ABSTRACT, session.description)
-                .withValue(ScheduleContract.Sessions.SESSION_HASHTAG, session.hashtag)
-                .withValue(ScheduleContract.Sessions.SESSION_START, TimeUtils.timestampToMillis(session.startTimestamp, 0))
-                .withValue(ScheduleContract.Sessions.SESSION_END, TimeUtils.timestampToMillis(session.endTimestamp, 0))
-                .withValue(ScheduleContract.Sessions.SESSION_TAGS, session.makeTagsList())
+        diff.row(session.id)
+                .value((String) null)                               // Level, not available
+                .value(session.title)
+                .value(session.description)
+                .value(session.hashtag)
+                .value(TimeUtils.timestampToMillis(session.startTimestamp, 0))
+                .value(TimeUtils.timestampToMillis(session.endTimestamp, 0))
+                .value(session.makeTagsList())
                         // Note: we store this comma-separated list of tags IN ADDITION
                         // to storing the tags in proper relational format (in the sessions_tags
                         // relationship table). This is because when querying for sessions,
                         // we don't want to incur the performance penalty of having to do a
                         // subquery for every record to figure out the list of tags of each session.
-                .withValue(ScheduleContract.Sessions.SESSION_SPEAKER_NAMES, speakerNames)
+                .value(speakerNames)
                         // Note: we store the human-readable list of speakers (which is redundant
                         // with the sessions_speakers relationship table) so that we can
                         // display it easily in lists without having to make an additional DB query
                         // (or another join) for each record.
-                .withValue(ScheduleContract.Sessions.SESSION_KEYWORDS, null)             // Not available
-                .withValue(ScheduleContract.Sessions.SESSION_URL, session.url)
-                .withValue(ScheduleContract.Sessions.SESSION_LIVESTREAM_ID,
-                        session.isLivestream ? session.youtubeUrl : null)
-                .withValue(ScheduleContract.Sessions.SESSION_MODERATOR_URL, null)    // Not available
-                .withValue(ScheduleContract.Sessions.SESSION_REQUIREMENTS, null)     // Not available
-                .withValue(ScheduleContract.Sessions.SESSION_YOUTUBE_URL,
-                        session.isLivestream ? null : session.youtubeUrl)
-                .withValue(ScheduleContract.Sessions.SESSION_PDF_URL, null)          // Not available
-                .withValue(ScheduleContract.Sessions.SESSION_NOTES_URL, null)        // Not available
-                .withValue(ScheduleContract.Sessions.ROOM_ID, session.room)
-                .withValue(ScheduleContract.Sessions.SESSION_GROUPING_ORDER, session.groupingOrder)
-                .withValue(ScheduleContract.Sessions.SESSION_IMPORT_HASHCODE,
-                        session.getImportHashCode())
-                .withValue(ScheduleContract.Sessions.SESSION_MAIN_TAG, session.mainTag)
-                .withValue(ScheduleContract.Sessions.SESSION_CAPTIONS_URL, session.captionsUrl)
-                .withValue(ScheduleContract.Sessions.SESSION_PHOTO_URL, session.photoUrl)
-                // Disabled since this isn't being used by this app.
-                // .withValue(ScheduleContract.Sessions.SESSION_RELATED_CONTENT, session.relatedContent)
-                .withValue(ScheduleContract.Sessions.SESSION_COLOR, color);
-        list.add(builder.build());
+                .value((String) null)                               // Keywords, not available
+                .value(session.url)
+                .value(session.isLivestream ? session.youtubeUrl : null)
+                .value((String) null)                               // Moderator URL, not available
+                .value((String) null)                               // Requirements, not available
+                .value(session.isLivestream ? null : session.youtubeUrl)
+                .value((String) null)                               // PDF URL, not available
+                .value((String) null)                               // Notes URL, not available
+                .value(session.room)
+                .value(session.groupingOrder)
+                .value(session.mainTag)
+                .value(session.captionsUrl)
+                .value(session.photoUrl)
+                .value(color)
+                .write();
     }
 
     // The type order of a session is the order# (in its category) of the tag that indicates
@@ -277,76 +230,10 @@ public class SessionsHandler extends JSONHandler {
         return order;
     }
 
-    private void buildSessionSpeakerMapping(Session session,
-                                            ArrayList<ContentProviderOperation> list) {
-        final Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Sessions.buildSpeakersDirUri(session.id));
-
-        // delete any existing relationship between this session and speakers
-        list.add(ContentProviderOperation.newDelete(uri).build());
-
-        // add relationship records to indicate the speakers for this session
-        if (session.speakers != null) {
-            for (String speakerId : session.speakers) {
-                list.add(ContentProviderOperation.newInsert(uri)
-                        .withValue(ScheduleDatabase.SessionsSpeakers.SESSION_ID, session.id)
-                        .withValue(ScheduleDatabase.SessionsSpeakers.SPEAKER_ID, speakerId)
-                        .build());
-            }
-        }
-    }
-
-    private void buildTagsMapping(Session session, ArrayList<ContentProviderOperation> list) {
-        final Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Sessions.buildTagsDirUri(session.id));
-
-        // delete any existing mappings
-        list.add(ContentProviderOperation.newDelete(uri).build());
-
-        // add a mapping (a session+tag tuple) for each tag in the session
-        if (session.tags != null) {
-            for (String tag : session.tags) {
-                list.add(ContentProviderOperation.newInsert(uri)
-                        .withValue(ScheduleDatabase.SessionsTags.SESSION_ID, session.id)
-                        .withValue(ScheduleDatabase.SessionsTags.TAG_ID, tag)
-                        .build());
-            }
-        }
-    }
-
-    private void buildRelatedSessionsMapping(Session session,
-            ArrayList<ContentProviderOperation> list) {
-        final Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Sessions.buildRelatedSessionsDirUri(session.id));
-
-        // delete existing mappings
-        list.add(ContentProviderOperation.newDelete(uri).build());
-
-        // add a mapping for each related session id
-        if (session.relatedSessionIds != null) {
-            for (String id : session.relatedSessionIds) {
-                list.add(ContentProviderOperation.newInsert(uri)
-                        .withValue(ScheduleContract.Sessions.RELATED_SESSION_ID, id)
-                        .build());
-            }
-        }
-    }
-
     public void setTagMap(HashMap<String, Tag> tagMap) {
         mTagMap = tagMap;
     }
     public void setSpeakerMap(HashMap<String, Speaker> speakerMap) {
         mSpeakerMap = speakerMap;
     }
-
-    private interface SessionHashcodeQuery {
-        String[] PROJECTION = {
-                BaseColumns._ID,
-                ScheduleContract.Sessions.SESSION_ID,
-                ScheduleContract.Sessions.SESSION_IMPORT_HASHCODE
-        };
-        int _ID = 0;
-        int SESSION_ID = 1;
-        int SESSION_IMPORT_HASHCODE = 2;
-    };
 }
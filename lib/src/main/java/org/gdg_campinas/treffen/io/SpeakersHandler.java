@@ -20,23 +20,19 @@ import static org.gdg_campinas.treffen.util.LogUtils.LOGD;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGE;
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
-import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.util.LogUtils;
 import org.gdg_campinas.treffen.io.model.Speaker;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
 
 public class SpeakersHandler extends JSONHandler {
     private static final String TAG = LogUtils.makeLogTag(SpeakersHandler.class);
@@ -47,132 +43,44 @@ public class SpeakersHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Speaker speaker : gson.fromJson(element, Speaker[].class)) {
-            mSpeakers.put(speaker.id, speaker);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Speaker.class, new RecordCallback<Speaker>() {
+            @Override
+            public void onRecord(@NonNull Speaker speaker) {
+                mSpeakers.put(speaker.id, speaker);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Speakers.CONTENT_URI);
-        HashMap<String, String> speakerHashcodes = loadSpeakerHashcodes();
-        HashSet<String> speakersToKeep = new HashSet<>();
-        boolean isIncrementalUpdate = speakerHashcodes != null && speakerHashcodes.size() > 0;
-
-        if (isIncrementalUpdate) {
-            LogUtils.LOGD(TAG, "Doing incremental update for speakers.");
-        } else {
-            LogUtils.LOGD(TAG, "Doing FULL (non incremental) update for speakers.");
-            list.add(ContentProviderOperation.newDelete(uri).build());
-        }
-
-        int updatedSpeakers = 0;
+    public void writeData(@NonNull BulkImport bulkImport) {
+        TableDiff diff = new TableDiff(bulkImport, Tables.SPEAKERS,
+                ScheduleContract.Speakers.SPEAKER_ID,
+                ScheduleContract.Speakers.SPEAKER_IMPORT_HASHCODE,
+                ScheduleContract.Speakers.SPEAKER_NAME,
+                ScheduleContract.Speakers.SPEAKER_ABSTRACT,
+                ScheduleContract.Speakers.SPEAKER_COMPANY,
+                ScheduleContract.Speakers.SPEAKER_IMAGE_URL,
+                ScheduleContract.Speakers.SPEAKER_PLUSONE_URL,
+                ScheduleContract.Speakers.SPEAKER_TWITTER_URL)
+                .setUpdatedColumn(ScheduleContract.SyncColumns.UPDATED);
         for (Speaker speaker : mSpeakers.values()) {
-            String hashCode = speaker.getImportHashcode();
-            speakersToKeep.add(speaker.id);
-
-            // add speaker, if necessary
-            if (!isIncrementalUpdate || !speakerHashcodes.containsKey(speaker.id) ||
-                    !speakerHashcodes.get(speaker.id).equals(hashCode)) {
-                ++updatedSpeakers;
-                boolean isNew = !isIncrementalUpdate || !speakerHashcodes.containsKey(speaker.id);
-                buildSpeaker(isNew, speaker, list);
-            }
-        }
-
-        int deletedSpeakers = 0;
-        if (isIncrementalUpdate) {
-            for (String speakerId : speakerHashcodes.keySet()) {
-                if (!speakersToKeep.contains(speakerId)) {
-                    buildDeleteOperation(speakerId, list);
-                    ++deletedSpeakers;
-                }
-            }
-        }
-
-        LogUtils.LOGD(TAG, "Speakers: " + (isIncrementalUpdate ? "INCREMENTAL" : "FULL") + " update. " +
-                updatedSpeakers + " to update, " + deletedSpeakers + " to delete. New total: " +
-                mSpeakers.size());
-    }
-
-    private void buildSpeaker(boolean isInsert, Speaker speaker,
-                              ArrayList<ContentProviderOperation> list) {
-        Uri allSpeakersUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Speakers.CONTENT_URI);
-        Uri thisSpeakerUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Speakers.buildSpeakerUri(speaker.id));
-
-        ContentProviderOperation.Builder builder;
-        if (isInsert) {
-            builder = ContentProviderOperation.newInsert(allSpeakersUri);
-        } else {
-            builder = ContentProviderOperation.newUpdate(thisSpeakerUri);
-        }
-
-        list.add(builder.withValue(ScheduleContract.SyncColumns.UPDATED, System.currentTimeMillis())
-                .withValue(ScheduleContract.Speakers.SPEAKER_ID, speaker.id)
-                .withValue(ScheduleContract.Speakers.SPEAKER_NAME, speaker.name)
-                .withValue(ScheduleContract.Speakers.SPEAKER_ABSTRACT, speaker.bio)
-                .withValue(ScheduleContract.Speakers.SPEAKER_COMPANY, speaker.company)
-                .withValue(ScheduleContract.Speakers.SPEAKER_IMAGE_URL, speaker.thumbnailUrl)
-                .withValue(ScheduleContract.Speakers.SPEAKER_PLUSONE_URL, speaker.plusoneUrl)
-                .withValue(ScheduleContract.Speakers.SPEAKER_TWITTER_URL, speaker.twitterUrl)
-                .withValue(ScheduleContract.Speakers.SPEAKER_IMPORT_HASHCODE,
-                        speaker.getImportHashcode())
-                .build());
-    }
-
-    private void buildDeleteOperation(String speakerId, ArrayList<ContentProviderOperation> list) {
-        Uri speakerUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Speakers.buildSpeakerUri(speakerId));
-        list.add(ContentProviderOperation.newDelete(speakerUri).build());
-    }
-
-    private HashMap<String, String> loadSpeakerHashcodes() {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Speakers.CONTENT_URI);
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(uri, SpeakerHashcodeQuery.PROJECTION,
-                    null, null, null);
-            if (cursor == null) {
-                LogUtils.LOGE(TAG, "Error querying speaker hashcodes (got null cursor)");
-                return null;
-            }
-            if (cursor.getCount() < 1) {
-                LogUtils.LOGE(TAG, "Error querying speaker hashcodes (no records returned)");
-                return null;
-            }
-            HashMap<String, String> result = new HashMap<>();
-            if (cursor.moveToFirst()) {
-                do {
-                    String speakerId = cursor.getString(SpeakerHashcodeQuery.SPEAKER_ID);
-                    String hashcode = cursor.getString(SpeakerHashcodeQuery.SPEAKER_IMPORT_HASHCODE);
-                    result.put(speakerId, hashcode == null ? "" : hashcode);
-                } while (cursor.moveToNext());
-            }
-            return result;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            bulkImport.yieldPoint();
+            diff.row(speaker.id)
+                    .value(speaker.name)
+                    .value(speaker.bio)
+                    .value(speaker.company)
+                    .value(speaker.thumbnailUrl)
+                    .value(speaker.plusoneUrl)
+                    .value(speaker.twitterUrl)
+                    .write();
         }
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Speakers: " + diff);
     }
 
     public HashMap<String, Speaker> getSpeakerMap() {
         return mSpeakers;
     }
-
-    private interface SpeakerHashcodeQuery {
-        String[] PROJECTION = {
-                BaseColumns._ID,
-                ScheduleContract.Speakers.SPEAKER_ID,
-                ScheduleContract.Speakers.SPEAKER_IMPORT_HASHCODE
-        };
-        final int _ID = 0;
-        final int SPEAKER_ID = 1;
-        final int SPEAKER_IMPORT_HASHCODE = 2;
-    }
 }
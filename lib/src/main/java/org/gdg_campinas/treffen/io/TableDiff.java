@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.io;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import org.gdg_campinas.treffen.provider.BulkImport;
+import org.gdg_campinas.treffen.util.HashUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Writes the rows of a table incrementally. Each row is keyed by a column and stored along with a
+ * hash of its values, so that a row is only written when its values changed since the last import,
+ * and the rows whose keys are no longer in the data are deleted. Importing unchanged data does no
+ * writes at all.
+ * <p/>
+ * Values are added to a row in the order of the columns the diff was created with:
+ * <pre>
+ * TableDiff diff = new TableDiff(bulkImport, Tables.ROOMS, Rooms.ROOM_ID,
+ *         Rooms.ROOM_IMPORT_HASHCODE, Rooms.ROOM_NAME, Rooms.ROOM_FLOOR);
+ * for (Room room : rooms) {
+ *     bulkImport.yieldPoint();
+ *     diff.row(room.id).value(room.name).value(room.floor).write();
+ * }
+ * diff.deleteVanished();
+ * </pre>
+ */
+public class TableDiff {
+
+    // Stands for null values in the hashed string, so that null and "" hash differently.
+    private static final char NULL_VALUE = '\u0000';
+    private static final char SEPARATOR = '\u001f';
+
+    private final BulkImport mBulkImport;
+    private final String mTable;
+    private final String mKeyColumn;
+    private final String mHashColumn;
+    private final String[] mColumns;
+    private String mUpdatedColumn = null;
+
+    // Hashes of the rows in the table before the import, by key.
+    private final HashMap<String, String> mStoredHashes = new HashMap<>();
+
+    // Hashes of the rows written or found unchanged during the import, by key.
+    private final HashMap<String, String> mImportedHashes = new HashMap<>();
+
+    // The row being built.
+    private String mKey = null;
+    private final Object[] mValues;
+    private int mValueCount = 0;
+    private final StringBuilder mStringBuilder = new StringBuilder();
+
+    private int mInserted = 0;
+    private int mUpdated = 0;
+    private int mUnchanged = 0;
+    private int mDeleted = 0;
+
+    /**
+     * Loads the keys and hashes of the rows currently in the table.
+     *
+     * @param keyColumn  The column that identifies a row.
+     * @param hashColumn The column that stores the hash of a row's values. If null, a row is never
+     *                   updated once it's in the table, so its key must identify its values.
+     * @param columns    The columns written for each row, besides the key and the hash.
+     */
+    public TableDiff(@NonNull BulkImport bulkImport, @NonNull String table,
+            @NonNull String keyColumn, String hashColumn, @NonNull String... columns) {
+        mBulkImport = bulkImport;
+        mTable = table;
+        mKeyColumn = keyColumn;
+        mHashColumn = hashColumn;
+        mColumns = columns;
+        mValues = new Object[columns.length];
+
+        Cursor cursor = bulkImport.query(table, keyColumn,
+                hashColumn == null ? keyColumn : hashColumn);
+        try {
+            while (cursor.moveToNext()) {
+                String hash = cursor.getString(1);
+                mStoredHashes.put(cursor.getString(0), hash == null ? "" : hash);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Sets a column that is set to the current time whenever a row is written. It isn't part of
+     * the hash of a row.
+     */
+    public TableDiff setUpdatedColumn(String updatedColumn) {
+        mUpdatedColumn = updatedColumn;
+        return this;
+    }
+
+    /**
+     * Starts a row. Its values must then be added, followed by a call to {@link #write()}.
+     */
+    public TableDiff row(@NonNull String key) {
+        if (mKey != null) {
+            throw new IllegalStateException("Row " + mKey + " of " + mTable + " wasn't written");
+        }
+        mKey = key;
+        mValueCount = 0;
+        return this;
+    }
+
+    public TableDiff value(String value) {
+        return addValue(value);
+    }
+
+    public TableDiff value(long value) {
+        return addValue(value);
+    }
+
+    private TableDiff addValue(Object value) {
+        if (mKey == null) {
+            throw new IllegalStateException("No row of " + mTable + " was started");
+        }
+        if (mValueCount == mValues.length) {
+            throw new IllegalStateException("Row of " + mTable + " has only " + mValues.length +
+                    " values");
+        }
+        mValues[mValueCount++] = value;
+        return this;
+    }
+
+    /**
+     * Writes the row, unless it's already in the table with the same values.
+     *
+     * @return Whether the row was written.
+     */
+    public boolean write() {
+        if (mKey == null || mValueCount != mValues.length) {
+            throw new IllegalStateException("Row of " + mTable + " has " + mValues.length +
+                    " values, but " + mValueCount + " were added");
+        }
+        String key = mKey;
+        mKey = null;
+
+        String hash = mHashColumn == null ? "" : computeHash();
+        String previousHash = mImportedHashes.containsKey(key) ? mImportedHashes.get(key)
+                : mStoredHashes.get(key);
+        mImportedHashes.put(key, hash);
+        if (hash.equals(previousHash)) {
+            mUnchanged++;
+            return false;
+        }
+
+        BulkImport.Statement statement;
+        if (previousHash == null) {
+            statement = mBulkImport.insert(mTable, getColumns(true));
+            statement.bind(key);
+            mInserted++;
+        } else {
+            statement = mBulkImport.update(mTable, new String[]{mKeyColumn}, getColumns(false));
+            mUpdated++;
+        }
+        for (Object value : mValues) {
+            if (value instanceof Long) {
+                statement.bind((Long) value);
+            } else {
+                statement.bind((String) value);
+            }
+        }
+        if (mHashColumn != null) {
+            statement.bind(hash);
+        }
+        if (mUpdatedColumn != null) {
+            statement.bind(System.currentTimeMillis());
+        }
+        if (previousHash != null) {
+            statement.bind(key);
+        }
+        statement.execute();
+        return true;
+    }
+
+    /**
+     * Deletes the rows that were in the table before the import, but weren't in the data.
+     *
+     * @return The number of rows deleted.
+     */
+    public int deleteVanished() {
+        BulkImport.Statement delete = mBulkImport.delete(mTable, mKeyColumn);
+        int deleted = 0;
+        Iterator<String> iterator = mStoredHashes.keySet().iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (!mImportedHashes.containsKey(key)) {
+                delete.bind(key).execute();
+                iterator.remove();
+                deleted++;
+            }
+        }
+        mDeleted += deleted;
+        return deleted;
+    }
+
+    private String[] getColumns(boolean withKey) {
+        String[] columns = new String[(withKey ? 1 : 0) + mColumns.length +
+                (mHashColumn != null ? 1 : 0) + (mUpdatedColumn != null ? 1 : 0)];
+        int i = 0;
+        if (withKey) {
+            columns[i++] = mKeyColumn;
+        }
+        for (String column : mColumns) {
+            columns[i++] = column;
+        }
+        if (mHashColumn != null) {
+            columns[i++] = mHashColumn;
+        }
+        if (mUpdatedColumn != null) {
+            columns[i] = mUpdatedColumn;
+        }
+        return columns;
+    }
+
+    private String computeHash() {
+        mStringBuilder.setLength(0);
+        for (Object value : mValues) {
+            if (value == null) {
+                mStringBuilder.append(NULL_VALUE);
+            } else {
+                mStringBuilder.append(value);
+            }
+            mStringBuilder.append(SEPARATOR);
+        }
+        return HashUtils.computeWeakHash(mStringBuilder.toString());
+    }
+
+    @Override
+    public String toString() {
+        return mTable + ": " + mInserted + " inserted, " + mUpdated + " updated, " + mUnchanged +
+                " unchanged, " + mDeleted + " deleted";
+    }
+}
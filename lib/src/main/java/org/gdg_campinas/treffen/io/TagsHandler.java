@@ -18,20 +18,19 @@ package org.gdg_campinas.treffen.io;
 
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.graphics.Color;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.model.Tag;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 import org.gdg_campinas.treffen.util.LogUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
 
 public class TagsHandler extends JSONHandler {
@@ -44,31 +43,40 @@ public class TagsHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Tag tag : gson.fromJson(element, Tag[].class)) {
-            mTags.put(tag.tag, tag);
-        }
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Tag.class, new RecordCallback<Tag>() {
+            @Override
+            public void onRecord(@NonNull Tag tag) {
+                mTags.put(tag.tag, tag);
+            }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Tags.CONTENT_URI);
-
-        // since the number of tags is very small, for simplicity we delete them all and reinsert
-        list.add(ContentProviderOperation.newDelete(uri).build());
+    public void writeData(@NonNull BulkImport bulkImport) {
+        TableDiff diff = new TableDiff(bulkImport, Tables.TAGS,
+                ScheduleContract.Tags.TAG_ID,
+                ScheduleContract.Tags.TAG_IMPORT_HASHCODE,
+                ScheduleContract.Tags.TAG_CATEGORY,
+                ScheduleContract.Tags.TAG_NAME,
+                ScheduleContract.Tags.TAG_ORDER_IN_CATEGORY,
+                ScheduleContract.Tags.TAG_ABSTRACT,
+                ScheduleContract.Tags.TAG_COLOR,
+                ScheduleContract.Tags.TAG_PHOTO_URL);
         for (Tag tag : mTags.values()) {
-            ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri);
-            builder.withValue(ScheduleContract.Tags.TAG_ID, tag.tag);
-            builder.withValue(ScheduleContract.Tags.TAG_CATEGORY, tag.category);
-            builder.withValue(ScheduleContract.Tags.TAG_NAME, tag.name);
-            builder.withValue(ScheduleContract.Tags.TAG_ORDER_IN_CATEGORY, tag.order_in_category);
-            builder.withValue(ScheduleContract.Tags.TAG_ABSTRACT, tag._abstract);
-            builder.withValue(ScheduleContract.Tags.TAG_COLOR, tag.color == null ? 0
-                    : Color.parseColor(tag.color));
-            builder.withValue(ScheduleContract.Tags.TAG_PHOTO_URL, tag.photoUrl);
-            list.add(builder.build());
+            bulkImport.yieldPoint();
+            diff.row(tag.tag)
+                    .value(tag.category)
+                    .value(tag.name)
+                    .value(tag.order_in_category)
+                    .value(tag._abstract)
+                    .value(tag.color == null ? 0 : Color.parseColor(tag.color))
+                    .value(tag.photoUrl)
+                    .write();
         }
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LogUtils.LOGD(TAG, "Tags: " + diff);
     }
 
     public HashMap<String, Tag> getTagMap() {
@@ -21,24 +21,20 @@ import static org.gdg_campinas.treffen.util.LogUtils.LOGE;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGW;
 import static org.gdg_campinas.treffen.util.LogUtils.makeLogTag;
 
-import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
-import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.Config;
 import org.gdg_campinas.treffen.io.model.Video;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
-import org.gdg_campinas.treffen.provider.ScheduleContractHelper;
+import org.gdg_campinas.treffen.provider.ScheduleDatabase.Tables;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Locale;
 
 public class VideosHandler extends JSONHandler {
@@ -50,74 +46,41 @@ public class VideosHandler extends JSONHandler {
     }
 
     @Override
-    public void process(@NonNull Gson gson, @NonNull JsonElement element) {
-        for (Video video : gson.fromJson(element, Video[].class)) {
-            if (TextUtils.isEmpty(video.id)) {
-                LOGW(TAG, "Video without valid ID. Using VID instead: " + video.vid);
-                video.id = video.vid;
+    public void process(@NonNull Gson gson, @NonNull JsonReader reader) throws IOException {
+        readRecords(gson, reader, Video.class, new RecordCallback<Video>() {
+            @Override
+            public void onRecord(@NonNull Video video) {
+                if (TextUtils.isEmpty(video.id)) {
+                    LOGW(TAG, "Video without valid ID. Using VID instead: " + video.vid);
+                    video.id = video.vid;
+                }
+                mVideos.put(video.id, video);
             }
-            mVideos.put(video.id, video);
-        }
+        });
     }
 
     @Override
-    public void makeContentProviderOperations(ArrayList<ContentProviderOperation> list) {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Videos.CONTENT_URI);
-        HashMap<String, String> videoHashcodes = loadVideoHashcodes();
-        HashSet<String> videosToKeep = new HashSet<>();
-        boolean isIncrementalUpdate = videoHashcodes != null && videoHashcodes.size() > 0;
-
-        if (isIncrementalUpdate) {
-            LOGD(TAG, "Doing incremental update for videos.");
-        } else {
-            LOGD(TAG, "Doing FULL (non incremental) update for videos.");
-            list.add(ContentProviderOperation.newDelete(uri).build());
-        }
-
-        int updatedVideos = 0;
+    public void writeData(@NonNull BulkImport bulkImport) {
+        TableDiff diff = new TableDiff(bulkImport, Tables.VIDEOS,
+                ScheduleContract.Videos.VIDEO_ID,
+                ScheduleContract.Videos.VIDEO_IMPORT_HASHCODE,
+                ScheduleContract.Videos.VIDEO_YEAR,
+                ScheduleContract.Videos.VIDEO_TITLE,
+                ScheduleContract.Videos.VIDEO_DESC,
+                ScheduleContract.Videos.VIDEO_VID,
+                ScheduleContract.Videos.VIDEO_TOPIC,
+                ScheduleContract.Videos.VIDEO_SPEAKERS,
+                ScheduleContract.Videos.VIDEO_THUMBNAIL_URL);
         for (Video video : mVideos.values()) {
-            String hashCode = video.getImportHashcode();
-            videosToKeep.add(video.id);
-
-            // add video, if necessary
-            if (!isIncrementalUpdate || !videoHashcodes.containsKey(video.id) ||
-                    !videoHashcodes.get(video.id).equals(hashCode)) {
-                ++updatedVideos;
-                boolean isNew = !isIncrementalUpdate || !videoHashcodes.containsKey(video.id);
-                buildVideo(isNew, video, list);
-            }
+            bulkImport.yieldPoint();
+            writeVideo(video, diff);
         }
-
-        int deletedVideos = 0;
-        if (isIncrementalUpdate) {
-            for (String videoId : videoHashcodes.keySet()) {
-                if (!videosToKeep.contains(videoId)) {
-                    buildDeleteOperation(videoId, list);
-                    ++deletedVideos;
-                }
-            }
-        }
-
-        LOGD(TAG, "Videos: " + (isIncrementalUpdate ? "INCREMENTAL" : "FULL") + " update. " +
-                updatedVideos + " to update, " + deletedVideos + " to delete. New total: " +
-                mVideos.size());
+        bulkImport.yieldPoint();
+        diff.deleteVanished();
+        LOGD(TAG, "Videos: " + diff);
     }
 
-    private void buildVideo(boolean isInsert, Video video,
-                              ArrayList<ContentProviderOperation> list) {
-        Uri allVideosUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Videos.CONTENT_URI);
-        Uri thisVideoUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Videos.buildVideoUri(video.id));
-
-        ContentProviderOperation.Builder builder;
-        if (isInsert) {
-            builder = ContentProviderOperation.newInsert(allVideosUri);
-        } else {
-            builder = ContentProviderOperation.newUpdate(thisVideoUri);
-        }
-
+    private void writeVideo(Video video, TableDiff diff) {
         if (TextUtils.isEmpty(video.vid)) {
             LOGW(TAG, "Ignoring video with missing video ID.");
             return;
@@ -134,64 +97,14 @@ public class VideosHandler extends JSONHandler {
                     + ". Using fallback: " + thumbUrl);
         }
 
-        list.add(builder.withValue(ScheduleContract.Videos.VIDEO_ID, video.id)
-                .withValue(ScheduleContract.Videos.VIDEO_YEAR, video.year)
-                .withValue(ScheduleContract.Videos.VIDEO_TITLE, video.title.trim())
-                .withValue(ScheduleContract.Videos.VIDEO_DESC, video.desc)
-                .withValue(ScheduleContract.Videos.VIDEO_VID, video.vid)
-                .withValue(ScheduleContract.Videos.VIDEO_TOPIC, video.topic)
-                .withValue(ScheduleContract.Videos.VIDEO_SPEAKERS, video.speakers)
-                .withValue(ScheduleContract.Videos.VIDEO_THUMBNAIL_URL, thumbUrl)
-                .withValue(ScheduleContract.Videos.VIDEO_IMPORT_HASHCODE,
-                        video.getImportHashcode())
-                .build());
-    }
-
-    private void buildDeleteOperation(String videoId, ArrayList<ContentProviderOperation> list) {
-        Uri videoUri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Videos.buildVideoUri(videoId));
-        list.add(ContentProviderOperation.newDelete(videoUri).build());
-    }
-
-    private HashMap<String, String> loadVideoHashcodes() {
-        Uri uri = ScheduleContractHelper.setUriAsCalledFromSyncAdapter(
-                ScheduleContract.Videos.CONTENT_URI);
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(uri, VideoHashcodeQuery.PROJECTION,
-                    null, null, null);
-            if (cursor == null) {
-                LOGE(TAG, "Error querying video hashcodes (got null cursor)");
-                return null;
-            }
-            if (cursor.getCount() < 1) {
-                LOGE(TAG, "Error querying video hashcodes (no records returned)");
-                return null;
-            }
-            HashMap<String, String> result = new HashMap<>();
-            if (cursor.moveToFirst()) {
-                do {
-                    String videoId = cursor.getString(VideoHashcodeQuery.VIDEO_ID);
-                    String hashcode = cursor.getString(VideoHashcodeQuery.VIDEO_IMPORT_HASHCODE);
-                    result.put(videoId, hashcode == null ? "" : hashcode);
-                } while (cursor.moveToNext());
-            }
-            return result;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
-    private interface VideoHashcodeQuery {
-        String[] PROJECTION = {
-                BaseColumns._ID,
-                ScheduleContract.Videos.VIDEO_ID,
-                ScheduleContract.Videos.VIDEO_IMPORT_HASHCODE
-        };
-        final int _ID = 0;
-        final int VIDEO_ID = 1;
-        final int VIDEO_IMPORT_HASHCODE = 2;
+        diff.row(video.id)
+                .value(video.year)
+                .value(video.title.trim())
+                .value(video.desc)
+                .value(video.vid)
+                .value(video.topic)
+                .value(video.speakers)
+                .value(thumbUrl)
+                .write();
     }
 }
@@ -19,6 +19,16 @@ package org.gdg_campinas.treffen.io.model;
 public class DataManifest {
     public String format;
     public String[] data_files;
+    public Delta[] deltas;
+
+    /**
+     * A delta document that turns the data file {@code from} into the data file {@code to}.
+     */
+    public static class Delta {
+        public String from;
+        public String to;
+        public String file;
+    }
 }
 
 
@@ -16,8 +16,6 @@
 
 package org.gdg_campinas.treffen.io.model;
 
-import java.util.Random;
-
 public class Session {
     public String id;
     public String url;
@@ -53,36 +51,6 @@ public class Session {
         }
     }
 
-    public String getImportHashCode() {
-        return (new Random()).nextLong()+"";
-/*        StringBuilder sb = new StringBuilder();
-        sb.append("id").append(id == null ? "" : id)
-                .append("description").append(description == null ? "" : description)
-                .append("title").append(title == null ? "" : title)
-                .append("url").append(url == null ? "" : url)
-                .append("startTimestamp").append(startTimestamp == null ? "" : startTimestamp)
-                .append("endTimestamp").append(endTimestamp == null ? "" : endTimestamp)
-                .append("youtubeUrl").append(youtubeUrl == null ? "" : youtubeUrl)
-                .append("subtype").append(subtype == null ? "" : subtype)
-                .append("room").append(room == null ? "" : room)
-                .append("hashtag").append(hashtag == null ? "" : hashtag)
-                .append("isLivestream").append(isLivestream ? "true" : "false")
-                .append("mainTag").append(mainTag)
-                .append("captionsUrl").append(captionsUrl)
-                .append("photoUrl").append(photoUrl)
-                .append("relatedContent").append(relatedContent)
-                .append("color").append(color)
-                .append("groupingOrder").append(groupingOrder);
-        for (String tag : tags) {
-            sb.append("tag").append(tag);
-        }
-        for (String speaker : speakers) {
-            sb.append("speaker").append(speaker);
-        }
-        return HashUtils.computeWeakHash(sb.toString());
-*/
-    }
-
     public String makeTagsList() {
         int i;
         if (tags == null || tags.length == 0) return "";
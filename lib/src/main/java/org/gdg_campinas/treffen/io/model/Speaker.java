@@ -16,8 +16,6 @@
 
 package org.gdg_campinas.treffen.io.model;
 
-import org.gdg_campinas.treffen.util.HashUtils;
-
 public class Speaker {
     public String id;
     public String publicPlusId;
@@ -27,17 +25,4 @@ public class Speaker {
     public String plusoneUrl;
     public String twitterUrl;
     public String thumbnailUrl;
-
-    public String getImportHashcode() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("id").append(id == null ? "" : id)
-                .append("publicPlusId").append(publicPlusId == null ? "" : publicPlusId)
-                .append("bio").append(bio == null ? "" : bio)
-                .append("name").append(name == null ? "" : name)
-                .append("company").append(company== null ? "" : company)
-                .append("plusoneUrl").append(plusoneUrl == null ? "" : plusoneUrl)
-                .append("twitterUrl").append(twitterUrl == null ? "" : twitterUrl)
-                .append("thumbnailUrl").append(thumbnailUrl == null ? "" : thumbnailUrl);
-        return HashUtils.computeWeakHash(sb.toString());
-    }
 }
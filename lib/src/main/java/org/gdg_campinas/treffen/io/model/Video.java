@@ -16,8 +16,6 @@
 
 package org.gdg_campinas.treffen.io.model;
 
-import org.gdg_campinas.treffen.util.HashUtils;
-
 public class Video {
     public String id;
     public int year;
@@ -27,18 +25,5 @@ public class Video {
     public String topic;
     public String speakers;
     public String thumbnailUrl;
-
-    public String getImportHashcode() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("id").append(id == null ? "" : id)
-                .append("year").append(year)
-                .append("title").append(title == null ? "" : title)
-                .append("desc").append(desc == null ? "" : desc)
-                .append("vid").append(vid == null ? "" : vid)
-                .append("topic").append(topic == null ? "" : topic)
-                .append("speakers").append(speakers == null ? "" : speakers)
-                .append("thumbnailUrl").append(thumbnailUrl == null ? "" : thumbnailUrl);
-        return HashUtils.computeWeakHash(sb.toString());
-    }
 }
 
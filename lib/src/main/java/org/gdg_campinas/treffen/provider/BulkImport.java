@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.provider;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Writes conference data straight to the database through compiled statements that are reused
+ * for every row, instead of building a {@link ContentProviderOperation}, with its Uri and
+ * ContentValues, per row. Obtained through {@link ScheduleProvider#bulkImport}, which runs all of
+ * the writes in one transaction, committed in chunks at the {@link #yieldPoint() yield points}.
+ * <p/>
+ * Each statement binds its parameters in the order of the columns it was created with:
+ * <pre>
+ * BulkImport.Statement insert = bulkImport.insert(Tables.ROOMS, Rooms.ROOM_ID, Rooms.ROOM_NAME);
+ * for (Room room : rooms) {
+ *     insert.bind(room.id).bind(room.name).execute();
+ * }
+ * </pre>
+ */
+public class BulkImport {
+
+    /**
+     * The writes of a bulk import.
+     */
+    public interface Task {
+        void run(@NonNull BulkImport bulkImport) throws IOException;
+    }
+
+    private final SQLiteDatabase mDb;
+
+    private final ChunkedTransaction mTransaction;
+
+    // Compiled statements by SQL, so that each is compiled once per import.
+    private final HashMap<String, Statement> mStatements = new HashMap<>();
+
+    BulkImport(SQLiteDatabase db, ChunkedTransaction transaction) {
+        mDb = db;
+        mTransaction = transaction;
+    }
+
+    /**
+     * Returns a statement that inserts a row with the given columns into the table.
+     */
+    public Statement insert(@NonNull String table, @NonNull String... columns) {
+        return getStatement("INSERT INTO " + table + columnsAndValues(columns), columns.length);
+    }
+
+    /**
+     * Returns a statement that inserts a row with the given columns into the table, replacing the
+     * row with the same unique key, if there is one.
+     */
+    public Statement upsert(@NonNull String table, @NonNull String... columns) {
+        return getStatement("INSERT OR REPLACE INTO " + table + columnsAndValues(columns),
+                columns.length);
+    }
+
+    /**
+     * Returns a statement that sets the given columns of the rows of the table that match the key
+     * columns. The values of the columns are bound first, then the values of the key columns.
+     */
+    public Statement update(@NonNull String table, @NonNull String[] keyColumns,
+            @NonNull String... columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]).append("=?");
+        }
+        return getStatement(sql.append(where(keyColumns)).toString(),
+                columns.length + keyColumns.length);
+    }
+
+    /**
+     * Returns a statement that deletes the rows of the table that match the key columns, or all of
+     * its rows if no key columns are given.
+     */
+    public Statement delete(@NonNull String table, @NonNull String... keyColumns) {
+        return getStatement("DELETE FROM " + table + where(keyColumns), keyColumns.length);
+    }
+
+    /**
+     * Returns the given columns of all the rows of the table, as they are at this point of the
+     * import. The caller must close the cursor.
+     */
+    public Cursor query(@NonNull String table, @NonNull String... columns) {
+        return mDb.query(table, columns, null, null, null, null, null);
+    }
+
+    /**
+     * Marks a point between writes where the data is consistent, where the import may be
+     * committed to let other threads use the database.
+     */
+    public void yieldPoint() {
+        mTransaction.yieldPoint();
+    }
+
+    /**
+     * Returns the number of writes done so far.
+     */
+    public int getOperations() {
+        return mTransaction.getOperations();
+    }
+
+    void close() {
+        for (Statement statement : mStatements.values()) {
+            statement.mStatement.close();
+        }
+        mStatements.clear();
+    }
+
+    private Statement getStatement(String sql, int parameters) {
+        Statement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = new Statement(mDb.compileStatement(sql), parameters, mTransaction);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static String columnsAndValues(String[] columns) {
+        StringBuilder sql = new StringBuilder(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String where(String[] keyColumns) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < keyColumns.length; i++) {
+            sql.append(i == 0 ? " WHERE " : " AND ").append(keyColumns[i]).append("=?");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * A compiled statement of a bulk import. Values are bound to its parameters in order, and
+     * the bindings are cleared when it's executed, ready for the next row.
+     */
+    public static final class Statement {
+        private final SQLiteStatement mStatement;
+        private final int mParameters;
+        private final ChunkedTransaction mTransaction;
+        private int mNext = 1;
+
+        private Statement(SQLiteStatement statement, int parameters,
+                ChunkedTransaction transaction) {
+            mStatement = statement;
+            mParameters = parameters;
+            mTransaction = transaction;
+        }
+
+        public Statement bind(String value) {
+            if (value == null) {
+                mStatement.bindNull(mNext++);
+            } else {
+                mStatement.bindString(mNext++, value);
+            }
+            return this;
+        }
+
+        public Statement bind(long value) {
+            mStatement.bindLong(mNext++, value);
+            return this;
+        }
+
+        /**
+         * Executes the statement with the values bound to it.
+         *
+         * @return The number of rows inserted, updated or deleted.
+         */
+        public int execute() {
+            if (mNext != mParameters + 1) {
+                int bound = mNext - 1;
+                mStatement.clearBindings();
+                mNext = 1;
+                throw new IllegalStateException("Statement has " + mParameters +
+                        " parameters, but " + bound + " values were bound");
+            }
+            try {
+                return mStatement.executeUpdateDelete();
+            } finally {
+                mStatement.clearBindings();
+                mNext = 1;
+                mTransaction.operationDone();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.gdg_campinas.treffen.util.LogUtils;
+
+/**
+ * A transaction for a long series of writes that is committed in chunks at the yield points
+ * between them, so that other threads aren't locked out of the database until all the writes are
+ * done. Keeps count of the writes and the time taken by each chunk.
+ */
+class ChunkedTransaction {
+    private static final String TAG = LogUtils.makeLogTag(ChunkedTransaction.class);
+
+    // Most writes done in one chunk; at a yield point past this size the chunk is committed even
+    // if no other thread is waiting for the database.
+    private static final int MAX_OPERATIONS_PER_CHUNK = 200;
+
+    // How long to sleep after yielding, giving the waiting threads time to run their queries.
+    private static final long SLEEP_AFTER_YIELD_DELAY = 10;
+
+    private final SQLiteDatabase mDb;
+    private final long mStart;
+    private long mChunkStart;
+    private long mLongestChunk = 0;
+    private int mChunks = 1;
+    private int mChunkOperations = 0;
+    private int mOperations = 0;
+
+    ChunkedTransaction(SQLiteDatabase db) {
+        mDb = db;
+        mStart = mChunkStart = System.currentTimeMillis();
+        db.beginTransaction();
+    }
+
+    /**
+     * Counts a write done in the transaction.
+     */
+    void operationDone() {
+        mChunkOperations++;
+        mOperations++;
+    }
+
+    /**
+     * Marks a point between writes where the data is consistent. The chunk is committed here when
+     * other threads are waiting for the database or when it has grown past
+     * {@link #MAX_OPERATIONS_PER_CHUNK} writes.
+     */
+    void yieldPoint() {
+        if (mChunkOperations == 0) {
+            return;
+        }
+        boolean yielded = mDb.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY);
+        if (!yielded && mChunkOperations >= MAX_OPERATIONS_PER_CHUNK) {
+            mDb.setTransactionSuccessful();
+            mDb.endTransaction();
+            mDb.beginTransaction();
+            yielded = true;
+        }
+        if (yielded) {
+            long now = System.currentTimeMillis();
+            LogUtils.LOGV(TAG, "Chunk " + mChunks + ": " + mChunkOperations + " operations in " +
+                    (now - mChunkStart) + "ms");
+            mLongestChunk = Math.max(mLongestChunk, now - mChunkStart);
+            mChunkStart = now;
+            mChunkOperations = 0;
+            mChunks++;
+        }
+    }
+
+    int getOperations() {
+        return mOperations;
+    }
+
+    void setSuccessful() {
+        mDb.setTransactionSuccessful();
+    }
+
+    /**
+     * Ends the transaction, committing the last chunk if {@link #setSuccessful()} was called and
+     * rolling it back otherwise.
+     *
+     * @return Statistics of the transaction, for logging.
+     */
+    String end() {
+        mDb.endTransaction();
+        long now = System.currentTimeMillis();
+        mLongestChunk = Math.max(mLongestChunk, now - mChunkStart);
+        return mOperations + " operations in " + mChunks + " transactions, " + (now - mStart) +
+                "ms total, longest transaction " + mLongestChunk + "ms";
+    }
+}
@@ -74,6 +74,8 @@ public final class ScheduleContract {
         String BLOCK_SUBTITLE = "block_subtitle";
         /** The kind of block */
         String BLOCK_KIND = "block_kind";
+        /** The hashcode of the data used to create this record. */
+        String BLOCK_IMPORT_HASHCODE = "block_import_hashcode";
     }
 
     interface TagsColumns {
@@ -96,6 +98,8 @@ public final class ScheduleContract {
         String TAG_ABSTRACT = "tag_abstract";
         /** The tag's photo Url. */
         String TAG_PHOTO_URL = "tag_photo_url";
+        /** The hashcode of the data used to create this record. */
+        String TAG_IMPORT_HASHCODE = "tag_import_hashcode";
     }
 
     interface RoomsColumns {
@@ -106,6 +110,8 @@ public final class ScheduleContract {
         String ROOM_NAME = "room_name";
         /** Building floor this room exists on. */
         String ROOM_FLOOR = "room_floor";
+        /** The hashcode of the data used to create this record. */
+        String ROOM_IMPORT_HASHCODE = "room_import_hashcode";
     }
 
     interface MyScheduleColumns {
@@ -272,6 +278,8 @@ public final class ScheduleContract {
         String ACTION_TEXT = "action_text";
         String ACTION_TYPE = "action_type";
         String ACTION_EXTRA = "action_extra";
+        /** The hashcode of the data used to create this record. */
+        String CARD_IMPORT_HASHCODE = "card_import_hashcode";
     }
 
     interface MapGeoJsonColumns {
@@ -280,6 +288,8 @@ public final class ScheduleContract {
          * String containing geojson representation of markers.
          */
         String GEOJSON = "geojson";
+        /** The hashcode of the geojson, which identifies the record. */
+        String GEOJSON_IMPORT_HASHCODE = "geojson_import_hashcode";
     }
 
     interface FeedbackColumns {
@@ -301,6 +311,8 @@ public final class ScheduleContract {
         String TILE_FILE = "map_tile_file";
         /** Url * */
         String TILE_URL = "map_tile_url";
+        /** The hashcode of the data used to create this record. */
+        String TILE_IMPORT_HASHCODE = "map_tile_import_hashcode";
     }
 
     interface HashtagColumns {
@@ -313,6 +325,8 @@ public final class ScheduleContract {
         String HASHTAG_COLOR = "hashtag_color";
         /** Ordering of this hashtag. */
         String HASHTAG_ORDER = "hashtag_order";
+        /** The hashcode of the data used to create this record. */
+        String HASHTAG_IMPORT_HASHCODE = "hashtag_import_hashcode";
     }
 
     interface VideoColumns {
@@ -56,12 +56,13 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
     private static final int VER_2017_RELEASE_B = 214;
     private static final int VER_2017_RELEASE_C = 215;
     private static final int VER_2017_RELEASE_D = 216; // 5.0.0
+    private static final int VER_2017_RELEASE_E = 217;
 
-    private static final int CUR_DATABASE_VERSION = VER_2017_RELEASE_D;
+    private static final int CUR_DATABASE_VERSION = VER_2017_RELEASE_E;
 
     private final Context mContext;
 
-    interface Tables {
+    public interface Tables {
         String BLOCKS = "blocks";
         String CARDS = "cards";
         String TAGS = "tags";
@@ -411,6 +412,7 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         upgradeFrom2017Ato2017B(db);
         upgradeFrom2017Bto2017C(db);
         upgradeFrom2017Cto2017D(db);
+        upgradeFrom2017Dto2017E(db);
     }
 
     private void upgradeFrom2014Cto2015A(SQLiteDatabase db) {
@@ -511,6 +513,24 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + Tables.BLOCKS + " ADD COLUMN " + ScheduleContract.Blocks.BLOCK_KIND + " TEXT");
     }
 
+    // Adding import hashcodes, so that all of the conference data is imported incrementally
+    private void upgradeFrom2017Dto2017E(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.BLOCKS + " ADD COLUMN "
+                + ScheduleContract.Blocks.BLOCK_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + Tables.TAGS + " ADD COLUMN "
+                + ScheduleContract.Tags.TAG_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + Tables.ROOMS + " ADD COLUMN "
+                + ScheduleContract.Rooms.ROOM_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + Tables.CARDS + " ADD COLUMN "
+                + ScheduleContract.Cards.CARD_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + Tables.MAPGEOJSON + " ADD COLUMN "
+                + ScheduleContract.MapGeoJson.GEOJSON_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + Tables.MAPTILES + " ADD COLUMN "
+                + ScheduleContract.MapTiles.TILE_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("ALTER TABLE " + Tables.HASHTAGS + " ADD COLUMN "
+                + ScheduleContract.Hashtags.HASHTAG_IMPORT_HASHCODE + " TEXT NOT NULL DEFAULT ''");
+    }
+
     /**
      * Updates the session search index. This should be done sparingly, as the queries are rather
      * complex.
@@ -620,6 +640,13 @@ public class ScheduleDatabase extends SQLiteOpenHelper {
             version = VER_2017_RELEASE_D;
         }
 
+        // Check if we can upgrade from release 2017 release D to 2017 release E.
+        if (version == VER_2017_RELEASE_D) {
+            LogUtils.LOGD(TAG, "Upgrading database from 2017 release D to 2017 release E.");
+            upgradeFrom2017Dto2017E(db);
+            version = VER_2017_RELEASE_E;
+        }
+
         LogUtils.LOGD(TAG, "After upgrade logic, at version " + version);
 
         // Drop tables that have been deprecated.
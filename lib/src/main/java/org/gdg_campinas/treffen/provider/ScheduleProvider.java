@@ -64,10 +64,13 @@ import org.gdg_campinas.treffen.settings.SettingsUtils;
 
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.gdg_campinas.treffen.util.LogUtils.LOGD;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGE;
@@ -87,6 +90,17 @@ public class ScheduleProvider extends ContentProvider {
 
     private ScheduleProviderUriMatcher mUriMatcher;
 
+    // Number of chunked batches and bulk imports in progress, while which changes are not
+    // notified.
+    private int mChunkedBatchesInProgress = 0;
+
+    // Uris changed while a chunked batch or bulk import was in progress. Observers are notified of
+    // these once it's done, so they never re-query partly written data.
+    private final Set<Uri> mPendingNotifications = new HashSet<>();
+
+    // Statistics of the last batch or bulk import applied, shown in bug reports.
+    private volatile String mLastBatchStats = "none";
+
     /**
      * Providing important state information to be included in bug reports.
      *
@@ -112,6 +126,8 @@ public class ScheduleProvider extends ContentProvider {
             boolean canGetAuthToken = !TextUtils.isEmpty(AccountUtils.getAuthToken(context));
             writer.print("Can an auth token be retrieved: ");
             writer.println(canGetAuthToken);
+            writer.print("Last batch applied: ");
+            writer.println(mLastBatchStats);
 
         } catch (Exception exception) {
             writer.append("Exception while dumping state: ");
@@ -541,6 +557,12 @@ public class ScheduleProvider extends ContentProvider {
      */
     private void notifyChange(Uri uri) {
         if (!ScheduleContractHelper.isUriCalledFromSyncAdapter(uri)) {
+            synchronized (mPendingNotifications) {
+                if (mChunkedBatchesInProgress > 0) {
+                    mPendingNotifications.add(uri);
+                    return;
+                }
+            }
             Context context = getContext();
             context.getContentResolver().notifyChange(uri, null);
 
@@ -553,22 +575,99 @@ public class ScheduleProvider extends ContentProvider {
      * Apply the given set of {@link ContentProviderOperation}, executing inside
      * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
      * any single one fails.
+     * <p/>
+     * If some of the operations allow yielding, the batch is applied in chunks instead, see
+     * {@link ChunkedTransaction}, so that readers aren't locked out for the whole batch. Back
+     * references work across chunks. If an operation fails, only the current chunk is rolled
+     * back. Changes made while such a batch is applied are notified when it is done.
      */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        final int numOperations = operations.size();
+        final boolean chunked = hasYieldPoints(operations);
+        final ChunkedTransaction transaction =
+                new ChunkedTransaction(mOpenHelper.getWritableDatabase());
+        if (chunked) {
+            holdNotifications();
+        }
         try {
-            final int numOperations = operations.size();
             final ContentProviderResult[] results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
-                results[i] = operations.get(i).apply(this, results, i);
+                final ContentProviderOperation operation = operations.get(i);
+                if (operation.isYieldAllowed()) {
+                    transaction.yieldPoint();
+                }
+                results[i] = operation.apply(this, results, i);
+                transaction.operationDone();
             }
-            db.setTransactionSuccessful();
+            transaction.setSuccessful();
             return results;
         } finally {
-            db.endTransaction();
+            mLastBatchStats = transaction.end();
+            LogUtils.LOGD(TAG, "applyBatch: " + mLastBatchStats);
+            if (chunked) {
+                notifyPendingChanges();
+            }
+        }
+    }
+
+    /**
+     * Runs a bulk import of conference data, which writes straight to the database through
+     * compiled statements, see {@link BulkImport}. This is much faster than applying a batch of
+     * {@link ContentProviderOperation}s, but only works within the provider's process. The writes
+     * are done in one transaction, committed in chunks at the import's yield points. Like other
+     * changes made by the sync adapter, they aren't notified; changes made by others while the
+     * import runs are notified when it is done.
+     *
+     * @return The number of writes done.
+     * @throws IOException If the task throws it, in which case the current chunk is rolled back.
+     */
+    public int bulkImport(BulkImport.Task task) throws IOException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ChunkedTransaction transaction = new ChunkedTransaction(db);
+        final BulkImport bulkImport = new BulkImport(db, transaction);
+        holdNotifications();
+        try {
+            task.run(bulkImport);
+            transaction.setSuccessful();
+            return transaction.getOperations();
+        } finally {
+            bulkImport.close();
+            mLastBatchStats = transaction.end();
+            LogUtils.LOGD(TAG, "bulkImport: " + mLastBatchStats);
+            notifyPendingChanges();
+        }
+    }
+
+    private static boolean hasYieldPoints(List<ContentProviderOperation> operations) {
+        for (ContentProviderOperation operation : operations) {
+            if (operation.isYieldAllowed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Starts holding back notifications for a chunked batch or bulk import.
+    private void holdNotifications() {
+        synchronized (mPendingNotifications) {
+            mChunkedBatchesInProgress++;
+        }
+    }
+
+    // Ends a chunked batch or bulk import, notifying the changes held back while it ran.
+    private void notifyPendingChanges() {
+        List<Uri> uris;
+        synchronized (mPendingNotifications) {
+            if (--mChunkedBatchesInProgress > 0) {
+                return;
+            }
+            uris = new ArrayList<>(mPendingNotifications);
+            mPendingNotifications.clear();
+        }
+        for (Uri uri : uris) {
+            notifyChange(uri);
         }
     }
 
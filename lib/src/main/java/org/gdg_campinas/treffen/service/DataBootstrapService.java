@@ -20,7 +20,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 
-import org.gdg_campinas.treffen.io.JSONHandler;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
 import org.gdg_campinas.treffen.settings.SettingsUtils;
 import org.gdg_campinas.treffen.sync.SyncHelper;
@@ -74,13 +73,11 @@ public class DataBootstrapService extends IntentService {
         }
         try {
             LogUtils.LOGD(TAG, "Starting data bootstrap process.");
-            // Load data from bootstrap raw resource.
-            String bootstrapJson = JSONHandler
-                    .parseResource(appContext, org.gdg_campinas.treffen.lib.R.raw.bootstrap_data);
-
-            // Apply the data we read to the database with the help of the ConferenceDataHandler.
+            // Stream data from bootstrap raw resource and apply it to the database with the help
+            // of the ConferenceDataHandler.
             ConferenceDataHandler dataHandler = new ConferenceDataHandler(appContext);
-            dataHandler.applyConferenceData(new String[]{bootstrapJson},
+            dataHandler.applyConferenceData(appContext.getResources().openRawResource(
+                    org.gdg_campinas.treffen.lib.R.raw.bootstrap_data),
                     BuildConfig.BOOTSTRAP_DATA_TIMESTAMP, false);
 
             SyncHelper.performPostSyncChores(appContext);
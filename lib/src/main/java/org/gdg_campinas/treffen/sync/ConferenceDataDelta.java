@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.sync;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Applies a delta document published by the server to a conference data file. Each entity type
+ * in the delta either replaces the whole array ("replace") or lists the entities that were
+ * "added", "changed" and "removed", identified by the property named in "key".
+ */
+public class ConferenceDataDelta {
+
+    private static final String DELTA_FORMAT = "iosched-json-delta-v1";
+
+    private static final String FORMAT = "format";
+    private static final String FROM = "from";
+    private static final String TO = "to";
+    private static final String KEY = "key";
+    private static final String ADDED = "added";
+    private static final String CHANGED = "changed";
+    private static final String REMOVED = "removed";
+    private static final String REPLACE = "replace";
+
+    /**
+     * @param baseJson  The contents of the data file the delta was computed from.
+     * @param deltaJson The delta document.
+     * @return The contents of the data file the delta leads to.
+     * @throws IOException If the delta is not valid.
+     */
+    public static String apply(String baseJson, String deltaJson) throws IOException {
+        try {
+            JsonParser parser = new JsonParser();
+            JsonObject data = parser.parse(baseJson).getAsJsonObject();
+            JsonObject delta = parser.parse(deltaJson).getAsJsonObject();
+            if (!delta.has(FORMAT) || !DELTA_FORMAT.equals(delta.get(FORMAT).getAsString())) {
+                throw new IOException("Invalid format spec on delta: " + delta.get(FORMAT));
+            }
+
+            for (Map.Entry<String, JsonElement> entry : delta.entrySet()) {
+                String type = entry.getKey();
+                if (FORMAT.equals(type) || FROM.equals(type) || TO.equals(type)) {
+                    continue;
+                }
+                JsonObject typeDelta = entry.getValue().getAsJsonObject();
+                if (typeDelta.has(REPLACE)) {
+                    data.add(type, typeDelta.get(REPLACE));
+                } else {
+                    data.add(type, applyToArray(data.getAsJsonArray(type), typeDelta));
+                }
+            }
+            return data.toString();
+        } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+            throw new IOException("Could not apply delta: " + e.getMessage());
+        }
+    }
+
+    private static JsonArray applyToArray(JsonArray entities, JsonObject typeDelta) {
+        String key = typeDelta.get(KEY).getAsString();
+        Map<String, JsonElement> byId = new LinkedHashMap<>();
+        if (entities != null) {
+            for (JsonElement el : entities) {
+                byId.put(el.getAsJsonObject().get(key).getAsString(), el);
+            }
+        }
+        for (JsonElement id : typeDelta.getAsJsonArray(REMOVED)) {
+            byId.remove(id.getAsString());
+        }
+        // changed entities keep their position, added ones go to the end
+        for (JsonElement el : typeDelta.getAsJsonArray(CHANGED)) {
+            byId.put(el.getAsJsonObject().get(key).getAsString(), el);
+        }
+        for (JsonElement el : typeDelta.getAsJsonArray(ADDED)) {
+            byId.put(el.getAsJsonObject().get(key).getAsString(), el);
+        }
+
+        JsonArray result = new JsonArray();
+        for (JsonElement el : byId.values()) {
+            result.add(el);
+        }
+        return result;
+    }
+}
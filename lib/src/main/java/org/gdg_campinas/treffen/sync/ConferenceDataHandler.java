@@ -16,17 +16,17 @@
 
 package org.gdg_campinas.treffen.sync;
 
-import android.content.ContentProviderOperation;
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.OperationApplicationException;
+import android.database.SQLException;
 import android.net.Uri;
-import android.os.RemoteException;
 import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.io.BlocksHandler;
 import org.gdg_campinas.treffen.io.HashtagsHandler;
@@ -39,7 +39,9 @@ import org.gdg_campinas.treffen.io.SpeakersHandler;
 import org.gdg_campinas.treffen.io.TagsHandler;
 import org.gdg_campinas.treffen.io.VideosHandler;
 import org.gdg_campinas.treffen.io.map.model.Tile;
+import org.gdg_campinas.treffen.provider.BulkImport;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
+import org.gdg_campinas.treffen.provider.ScheduleProvider;
 import org.gdg_campinas.treffen.util.IOUtils;
 import org.gdg_campinas.treffen.util.LogUtils;
 import org.gdg_campinas.treffen.util.MapUtils;
@@ -52,11 +54,12 @@ import com.turbomanage.httpclient.ConsoleRequestLogger;
 import com.turbomanage.httpclient.HttpResponse;
 import com.turbomanage.httpclient.RequestLogger;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -134,20 +137,54 @@ public class ConferenceDataHandler {
     }
 
     /**
-     * Parses the conference data in the given objects and imports the data into the
+     * Parses the conference data in the given files and imports the data into the
      * content provider. The format of the data is documented at https://code.google.com/p/iosched.
+     * The files are streamed one record at a time rather than read into memory.
      *
-     * @param dataBodies       The collection of JSON objects to parse and import.
+     * @param dataFiles        The JSON files to parse and import, in order.
      * @param dataTimestamp    The timestamp of the data. This should be in RFC1123 format.
      * @param downloadsAllowed Whether or not we are supposed to download data from the internet if
      *                         needed.
      * @throws IOException If there is a problem parsing the data.
      */
-    public void applyConferenceData(String[] dataBodies, String dataTimestamp,
+    public void applyConferenceData(File[] dataFiles, String dataTimestamp,
             boolean downloadsAllowed) throws IOException {
-        LogUtils.LOGD(TAG, "Applying data from " + dataBodies.length + " files, timestamp " + dataTimestamp);
+        LogUtils.LOGD(TAG, "Applying data from " + dataFiles.length + " files, timestamp " + dataTimestamp);
 
-        // create handlers for each data type
+        createHandlers();
+
+        // process the jsons. This will call each of the handlers when appropriate to deal
+        // with the objects we see in the data.
+        LogUtils.LOGD(TAG, "Processing " + dataFiles.length + " JSON files.");
+        for (int i = 0; i < dataFiles.length; i++) {
+            LogUtils.LOGD(TAG, "Processing json file #" + (i + 1) + " of " + dataFiles.length);
+            processDataStream(new FileInputStream(dataFiles[i]));
+        }
+
+        applyProcessedData(dataTimestamp, downloadsAllowed);
+    }
+
+    /**
+     * Parses the conference data read from the given stream, such as the bootstrap data resource,
+     * and imports the data into the content provider. The stream is closed when done.
+     *
+     * @param dataStream       The JSON stream to parse and import.
+     * @param dataTimestamp    The timestamp of the data. This should be in RFC1123 format.
+     * @param downloadsAllowed Whether or not we are supposed to download data from the internet if
+     *                         needed.
+     * @throws IOException If there is a problem parsing the data.
+     */
+    public void applyConferenceData(InputStream dataStream, String dataTimestamp,
+            boolean downloadsAllowed) throws IOException {
+        LogUtils.LOGD(TAG, "Applying data from stream, timestamp " + dataTimestamp);
+
+        createHandlers();
+        processDataStream(dataStream);
+        applyProcessedData(dataTimestamp, downloadsAllowed);
+    }
+
+    // Creates the handlers for each data type.
+    private void createHandlers() {
         mHandlerForKey.put(DATA_KEY_ROOMS, mRoomsHandler = new RoomsHandler(mContext));
         mHandlerForKey.put(DATA_KEY_BLOCKS, mBlocksHandler = new BlocksHandler(mContext));
         mHandlerForKey.put(DATA_KEY_TAGS, mTagsHandler = new TagsHandler(mContext));
@@ -159,59 +196,85 @@ public class ConferenceDataHandler {
         mHandlerForKey.put(DATA_KEY_HASHTAGS, mHashtagsHandler = new HashtagsHandler(mContext));
         mHandlerForKey.put(DATA_KEY_VIDEOS, mVideosHandler = new VideosHandler(mContext));
         mHandlerForKey.put(DATA_KEY_CARDS, mCardHandler = new CardHandler(mContext));
+    }
 
-        // process the jsons. This will call each of the handlers when appropriate to deal
-        // with the objects we see in the data.
-        LogUtils.LOGD(TAG, "Processing " + dataBodies.length + " JSON objects.");
-        for (int i = 0; i < dataBodies.length; i++) {
-            LogUtils.LOGD(TAG, "Processing json object #" + (i + 1) + " of " + dataBodies.length);
-            processDataBody(dataBodies[i]);
-        }
-
+    /**
+     * Imports the data collected by the handlers into the content provider.
+     *
+     * @param dataTimestamp    The timestamp of the data. This should be in RFC1123 format.
+     * @param downloadsAllowed Whether or not we are supposed to download data from the internet if
+     *                         needed.
+     * @throws IOException If there is a problem fetching the map overlay files.
+     */
+    private void applyProcessedData(String dataTimestamp, boolean downloadsAllowed)
+            throws IOException {
         // the sessions handler needs to know the tag and speaker maps to process sessions
         mSessionsHandler.setTagMap(mTagsHandler.getTagMap());
         mSessionsHandler.setSpeakerMap(mSpeakersHandler.getSpeakerMap());
 
-        // produce the necessary content provider operations
-        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
-        for (String key : DATA_KEYS_IN_ORDER) {
-            LogUtils.LOGI(TAG, "Building content provider operations for: " + key);
-            mHandlerForKey.get(key).makeContentProviderOperations(batch);
-            LogUtils.LOGI(TAG, "Content provider operations so far: " + batch.size());
-        }
-        LogUtils.LOGD(TAG, "Total content provider operations: " + batch.size());
-
         // download or process local map tile overlay files (SVG files)
         LogUtils.LOGD(TAG, "Processing map overlay files");
         processMapOverlayFiles(mMapPropertyHandler.getTileOverlays(), downloadsAllowed);
 
-        // finally, push the changes into the Content Provider
-        LogUtils.LOGI(TAG, "Applying " + batch.size() + " content provider operations.");
+        // The handlers mark the start of each entity as a yield point, so the provider commits the
+        // import in chunks. Until the last chunk is in, the database holds a mix of old and new
+        // data, so the timestamp is cleared first: if the import fails halfway, the next sync
+        // fetches and applies all of the data again.
+        resetDataTimestamp(mContext);
+
+        // finally, write the data straight into the Content Provider's database
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(ScheduleContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            throw new IOException("Content provider not found: " +
+                    ScheduleContract.CONTENT_AUTHORITY);
+        }
+        int operations;
         try {
-            int operations = batch.size();
-            if (operations > 0) {
-                mContext.getContentResolver().applyBatch(ScheduleContract.CONTENT_AUTHORITY, batch);
+            ContentProvider provider = client.getLocalContentProvider();
+            if (!(provider instanceof ScheduleProvider)) {
+                throw new IOException("Content provider is not local: " +
+                        ScheduleContract.CONTENT_AUTHORITY);
             }
-            LogUtils.LOGD(TAG, "Successfully applied " + operations + " content provider operations.");
+            long start = System.currentTimeMillis();
+            operations = ((ScheduleProvider) provider).bulkImport(new BulkImport.Task() {
+                @Override
+                public void run(@NonNull BulkImport bulkImport) throws IOException {
+                    for (String key : DATA_KEYS_IN_ORDER) {
+                        LogUtils.LOGI(TAG, "Writing data for: " + key);
+                        int before = bulkImport.getOperations();
+                        mHandlerForKey.get(key).writeData(bulkImport);
+                        LogUtils.LOGI(TAG, "Writes for " + key + ": " +
+                                (bulkImport.getOperations() - before) + ", so far: " +
+                                bulkImport.getOperations());
+                    }
+                }
+            });
+            LogUtils.LOGD(TAG, "Successfully did " + operations + " writes in " +
+                    (System.currentTimeMillis() - start) + "ms.");
             mContentProviderOperationsDone += operations;
-        } catch (RemoteException ex) {
-            LogUtils.LOGE(TAG, "RemoteException while applying content provider operations.");
-            throw new RuntimeException("Error executing content provider batch operation", ex);
-        } catch (OperationApplicationException ex) {
-            LogUtils.LOGE(TAG, "OperationApplicationException while applying content provider operations.");
-            throw new RuntimeException("Error executing content provider batch operation", ex);
-        }
-
-        // notify all top-level paths
-        LogUtils.LOGD(TAG, "Notifying changes on all top-level paths on Content Resolver.");
-        ContentResolver resolver = mContext.getContentResolver();
-        for (String path : ScheduleContract.TOP_LEVEL_PATHS) {
-            Uri uri = ScheduleContract.BASE_CONTENT_URI.buildUpon().appendPath(path).build();
-            resolver.notifyChange(uri, null);
+        } catch (SQLException ex) {
+            LogUtils.LOGE(TAG, "SQLException while writing conference data.");
+            throw new RuntimeException("Error writing conference data", ex);
+        } finally {
+            client.release();
         }
 
-        // update our data timestamp
+        // update our data timestamp, now that all of the data is in
         setDataTimestamp(dataTimestamp);
+
+        // notify all top-level paths, so that the UI switches to the new data in one go; if the
+        // data was already in the database, nothing changed and the UI has nothing to reload
+        if (operations > 0) {
+            LogUtils.LOGD(TAG, "Notifying changes on all top-level paths on Content Resolver.");
+            ContentResolver resolver = mContext.getContentResolver();
+            for (String path : ScheduleContract.TOP_LEVEL_PATHS) {
+                Uri uri = ScheduleContract.BASE_CONTENT_URI.buildUpon().appendPath(path).build();
+                resolver.notifyChange(uri, null);
+            }
+        } else {
+            LogUtils.LOGD(TAG, "No changes in conference data, not notifying Content Resolver.");
+        }
         LogUtils.LOGD(TAG, "Done applying conference data.");
     }
 
@@ -220,15 +283,16 @@ public class ConferenceDataHandler {
     }
 
     /**
-     * Processes a conference data body and calls the appropriate data type handlers
-     * to process each of the objects represented therein.
+     * Processes a conference data stream and calls the appropriate data type handlers
+     * to process each of the objects represented therein, as they are read. The stream is closed
+     * when done.
      *
-     * @param dataBody The body of data to process
+     * @param stream The stream of data to process
      * @throws IOException If there is an error parsing the data.
      */
-    private void processDataBody(String dataBody) throws IOException {
-        JsonReader reader = new JsonReader(new StringReader(dataBody));
-        JsonParser parser = new JsonParser();
+    private void processDataStream(InputStream stream) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(stream, IOUtils.CHARSET_UTF8)));
         try {
             reader.setLenient(true); // To err is human
 
@@ -242,7 +306,7 @@ public class ConferenceDataHandler {
                 if (handler != null) {
                     LogUtils.LOGD(TAG, "Processing key in conference data json: " + key);
                     // pass the value to the corresponding handler
-                    handler.process(mGson, parser.parse(reader));
+                    handler.process(mGson, reader);
                 } else {
                     LogUtils.LOGW(TAG, "Skipping unknown key in conference data json: " + key);
                     reader.skipValue();
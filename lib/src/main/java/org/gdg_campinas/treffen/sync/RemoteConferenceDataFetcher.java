@@ -31,11 +31,31 @@ import com.turbomanage.httpclient.ConsoleRequestLogger;
 import com.turbomanage.httpclient.HttpResponse;
 import com.turbomanage.httpclient.RequestLogger;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import static org.gdg_campinas.treffen.util.LogUtils.LOGD;
 import static org.gdg_campinas.treffen.util.LogUtils.LOGE;
@@ -51,6 +71,15 @@ public class RemoteConferenceDataFetcher {
     // The directory under which we cache our downloaded files
     private static String CACHE_DIR = "data_cache";
 
+    // Suffix of the file, next to a cache file, holding the HTTP validators of its contents
+    private static final String VALIDATORS_SUFFIX = ".validators";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    // The maximum number of data files downloaded at the same time. HttpURLConnection keeps idle
+    // connections alive and reuses them, so a few downloads share a few connections to the server.
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
+
     private Context mContext = null;
 
     // name of URL override file used for debug purposes
@@ -63,13 +92,13 @@ public class RemoteConferenceDataFetcher {
     private String mServerTimestamp = null;
 
     // the set of cache files we have used -- we use this for cache cleanup.
-    private HashSet<String> mCacheFilesToKeep = new HashSet<>();
+    private Set<String> mCacheFilesToKeep = Collections.synchronizedSet(new HashSet<String>());
 
     // total # of bytes downloaded (approximate)
-    private long mBytesDownloaded = 0;
+    private AtomicLong mBytesDownloaded = new AtomicLong();
 
     // total # of bytes read from cache hits (approximate)
-    private long mBytesReadFromCache = 0;
+    private AtomicLong mBytesReadFromCache = new AtomicLong();
 
     public RemoteConferenceDataFetcher(Context context) {
         mContext = context;
@@ -82,19 +111,17 @@ public class RemoteConferenceDataFetcher {
      * @param refTimestamp The timestamp of the data to use as a reference; if the remote data is
      *                     not newer than this timestamp, no data will be downloaded and this method
      *                     will return null.
-     * @return The data downloaded, or null if there is no data to download
+     * @return The cache files holding the data downloaded, in manifest order, or null if there is
+     * no data to download
      * @throws IOException if an error occurred during download.
      */
-    public String[] fetchConferenceDataIfNewer(String refTimestamp) throws IOException {
+    public File[] fetchConferenceDataIfNewer(String refTimestamp) throws IOException {
         if (TextUtils.isEmpty(mManifestUrl)) {
             LogUtils.LOGW(TAG, "Manifest URL is empty (remote sync disabled!).");
             return null;
         }
 
-        BasicHttpClient httpClient = new BasicHttpClient();
-        httpClient.setRequestLogger(mQuietLogger);
-
-        IOUtils.authorizeHttpClient(mContext, httpClient);
+        BasicHttpClient httpClient = newHttpClient();
 
         // Only download if data is newer than refTimestamp
         // Cloud Storage is very picky with the If-Modified-Since format. If it's in a wrong
@@ -122,13 +149,13 @@ public class RemoteConferenceDataFetcher {
             LogUtils.LOGD(TAG, "Server returned HTTP_OK, so new data is available.");
             mServerTimestamp = getLastModified(response);
             LogUtils.LOGD(TAG, "Server timestamp for new data is: " + mServerTimestamp);
-            String body = response.getBodyAsString();
+            String body = getBodyAsString(response);
             if (TextUtils.isEmpty(body)) {
                 LogUtils.LOGE(TAG, "Request for manifest returned empty data.");
                 throw new IOException("Error fetching conference data manifest: no data.");
             }
             LogUtils.LOGD(TAG, "Manifest " + mManifestUrl + " read, contents: " + body);
-            mBytesDownloaded += body.getBytes().length;
+            mBytesDownloaded.addAndGet(body.getBytes().length);
             return processManifest(body);
         } else if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
             // data on the server is not newer than our data
@@ -173,49 +200,59 @@ public class RemoteConferenceDataFetcher {
 
     /**
      * Fetches a file from the cache/network, from an absolute or relative URL. If the file is
-     * available in our cache, we read it from there; if not, we will download it from the network
-     * and cache it.
+     * available in our cache, we use it from there, after confirming with a conditional request
+     * that it hasn't changed on the server if we know its validators (ETag or Last-Modified); if
+     * not, we will download it from the network into the cache. The contents are never held in
+     * memory as a String, so that they can be streamed from the returned file.
+     * <p/>
+     * This method may be called for different URLs from several threads at once.
      *
      * @param url The URL to fetch the file from. The URL may be absolute or relative; if relative,
      *            it will be considered to be relative to the manifest URL.
-     * @return The contents of the file.
+     * @return The cache file holding the contents of the file, or null if the URL can't be
+     * resolved.
      * @throws IOException If an error occurs.
      */
-    private String fetchFile(String url) throws IOException {
-        // If this is a relative url, consider it relative to the manifest URL
-        if (!url.contains("://")) {
-            if (TextUtils.isEmpty(mManifestUrl) || !mManifestUrl.contains("/")) {
-                LogUtils.LOGE(TAG, "Could not build relative URL based on manifest URL.");
-                return null;
-            }
-            int i = mManifestUrl.lastIndexOf('/');
-            url = mManifestUrl.substring(0, i) + "/" + url;
+    private File fetchFile(String url) throws IOException {
+        url = resolveUrl(url);
+        if (url == null) {
+            return null;
         }
 
         LogUtils.LOGD(TAG, "Attempting to fetch: " + sanitizeUrl(url));
 
         // Check if we have it in our cache first
-        String body;
-        try {
-            body = loadFromCache(url);
-            if (!TextUtils.isEmpty(body)) {
-                // cache hit
-                mBytesReadFromCache += body.getBytes().length;
-                mCacheFilesToKeep.add(getCacheKey(url));
-                return body;
+        String cacheKey = getCacheKey(url);
+        File cacheFile = getCacheFile(url);
+        BasicHttpClient client = newHttpClient();
+        boolean revalidating = false;
+        if (cacheFile.length() > 0) {
+            Properties validators = loadValidators(url);
+            if (validators == null) {
+                // cache hit, and nothing to check it against (it was built from deltas)
+                LogUtils.LOGD(TAG, "Cache hit " + cacheKey + " for " + sanitizeUrl(url));
+                mBytesReadFromCache.addAndGet(cacheFile.length());
+                mCacheFilesToKeep.add(cacheKey);
+                return cacheFile;
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            LogUtils.LOGE(TAG, "IOException getting file from cache.");
-            // proceed anyway to attempt to download it from the network
-        }
 
-        BasicHttpClient client = new BasicHttpClient();
-        IOUtils.authorizeHttpClient(mContext, client);
-        client.setRequestLogger(mQuietLogger);
+            // cache hit, but the file may have changed on the server since
+            LogUtils.LOGD(TAG, "Cache hit " + cacheKey + ". Revalidating with network: " +
+                    sanitizeUrl(url));
+            String etag = validators.getProperty(HEADER_ETAG);
+            if (!TextUtils.isEmpty(etag)) {
+                client.addHeader("If-None-Match", etag);
+            }
+            String lastModified = validators.getProperty(HEADER_LAST_MODIFIED);
+            if (!TextUtils.isEmpty(lastModified)) {
+                client.addHeader("If-Modified-Since", lastModified);
+            }
+            revalidating = true;
+        } else {
+            // We don't have the file on cache, so download it
+            LogUtils.LOGD(TAG, "Cache miss. Downloading from network: " + sanitizeUrl(url));
+        }
 
-        // We don't have the file on cache, so download it
-        LogUtils.LOGD(TAG, "Cache miss. Downloading from network: " + sanitizeUrl(url));
         HttpResponse response = client.get(url, null);
 
         if (response == null) {
@@ -224,17 +261,24 @@ public class RemoteConferenceDataFetcher {
         }
 
         LogUtils.LOGD(TAG, "HTTP response " + response.getStatus());
-        if (response.getStatus() == HttpURLConnection.HTTP_OK) {
-            body = response.getBodyAsString();
-            if (TextUtils.isEmpty(body)) {
+        if (revalidating && response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            LogUtils.LOGD(TAG, "Not modified since cached: " + sanitizeUrl(url));
+            mBytesReadFromCache.addAndGet(cacheFile.length());
+            mCacheFilesToKeep.add(cacheKey);
+            mCacheFilesToKeep.add(cacheKey + VALIDATORS_SUFFIX);
+            return cacheFile;
+        } else if (response.getStatus() == HttpURLConnection.HTTP_OK) {
+            byte[] body = response.getBody();
+            if (body == null || body.length == 0) {
                 throw new IOException("Got empty response when attempting to fetch " +
-                        sanitizeUrl(url) + url);
+                        sanitizeUrl(url));
             }
             LogUtils.LOGD(TAG, "Successfully downloaded from network: " + sanitizeUrl(url));
-            mBytesDownloaded += body.getBytes().length;
-            writeToCache(url, body);
-            mCacheFilesToKeep.add(getCacheKey(url));
-            return body;
+            mBytesDownloaded.addAndGet(body.length);
+            writeToCache(url, response);
+            mCacheFilesToKeep.add(cacheKey);
+            mCacheFilesToKeep.add(cacheKey + VALIDATORS_SUFFIX);
+            return cacheFile;
         } else {
             LogUtils.LOGE(TAG, "Failed to fetch from network: " + sanitizeUrl(url));
             throw new IOException("Request for URL " + sanitizeUrl(url) +
@@ -242,6 +286,106 @@ public class RemoteConferenceDataFetcher {
         }
     }
 
+    // Creates an HTTP client for a single request, so that requests can add their own headers
+    private BasicHttpClient newHttpClient() {
+        BasicHttpClient client = new BasicHttpClient();
+        client.setRequestLogger(mQuietLogger);
+        IOUtils.authorizeHttpClient(mContext, client);
+        return client;
+    }
+
+    /**
+     * Returns the absolute URL of a file. Relative URLs are considered to be relative to the
+     * manifest URL.
+     *
+     * @return The absolute URL, or null if it could not be built.
+     */
+    private String resolveUrl(String url) {
+        if (!url.contains("://")) {
+            if (TextUtils.isEmpty(mManifestUrl) || !mManifestUrl.contains("/")) {
+                LogUtils.LOGE(TAG, "Could not build relative URL based on manifest URL.");
+                return null;
+            }
+            int i = mManifestUrl.lastIndexOf('/');
+            url = mManifestUrl.substring(0, i) + "/" + url;
+        }
+        return url;
+    }
+
+    /**
+     * Builds a data file from a file we already have in our cache and the chain of deltas listed
+     * in the manifest, so that only the (small) deltas are downloaded. The result is cached as if
+     * it had been downloaded from the given URL.
+     *
+     * @param manifest The data manifest.
+     * @param url      The URL of the data file to build.
+     * @return The cache file holding the data file, or null if it can't be built from the deltas,
+     * in which case the whole file must be fetched.
+     */
+    private File fetchFileFromDeltas(DataManifest manifest, String url) {
+        if (manifest.deltas == null || manifest.deltas.length == 0) {
+            return null;
+        }
+        String absoluteUrl = resolveUrl(url);
+        if (absoluteUrl == null || getCacheFile(absoluteUrl).exists()) {
+            // no need for deltas if the file itself is cached
+            return null;
+        }
+
+        // Walk the chain back from the requested file until we find a file we have in the cache.
+        LinkedList<DataManifest.Delta> chain = new LinkedList<>();
+        String target = url;
+        String baseUrl = null;
+        while (baseUrl == null && chain.size() < manifest.deltas.length) {
+            DataManifest.Delta delta = findDeltaTo(manifest, target);
+            if (delta == null) {
+                return null;
+            }
+            chain.addFirst(delta);
+            String fromUrl = resolveUrl(delta.from);
+            if (fromUrl != null && getCacheFile(fromUrl).exists()) {
+                baseUrl = fromUrl;
+            }
+            target = delta.from;
+        }
+        if (baseUrl == null) {
+            return null;
+        }
+
+        try {
+            String body = loadFromCache(baseUrl);
+            if (TextUtils.isEmpty(body)) {
+                return null;
+            }
+            for (DataManifest.Delta delta : chain) {
+                LogUtils.LOGD(TAG, "Applying delta: " + sanitizeUrl(delta.file));
+                File deltaFile = fetchFile(delta.file);
+                if (deltaFile == null) {
+                    return null;
+                }
+                body = ConferenceDataDelta.apply(body, IOUtils.readFileAsString(deltaFile));
+            }
+            writeToCache(absoluteUrl, body);
+            mCacheFilesToKeep.add(getCacheKey(absoluteUrl));
+            LogUtils.LOGD(TAG, "Built " + sanitizeUrl(url) + " from " + chain.size() + " deltas.");
+            return getCacheFile(absoluteUrl);
+        } catch (IOException ex) {
+            LogUtils.LOGW(TAG, "Could not build " + sanitizeUrl(url) + " from deltas: " +
+                    ex.getMessage());
+            return null;
+        }
+    }
+
+    private DataManifest.Delta findDeltaTo(DataManifest manifest, String url) {
+        for (DataManifest.Delta delta : manifest.deltas) {
+            if (delta != null && url.equals(delta.to) && delta.from != null &&
+                    delta.file != null) {
+                return delta;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns the cache file where we store our cache of the response of the given URL.
      *
@@ -254,10 +398,15 @@ public class RemoteConferenceDataFetcher {
                 cacheKey);
     }
 
-    // Creates the cache directory, if it doesn't exist yet
+    // Returns the file where we store the validators of our cache of the given URL
+    private File getValidatorsFile(String url) {
+        return new File(getCacheFile(url).getPath() + VALIDATORS_SUFFIX);
+    }
+
+    // Creates the cache directory, if it doesn't exist yet (possibly from another thread)
     private void createCacheDir() throws IOException {
         File dir = new File(mContext.getCacheDir() + File.separator + CACHE_DIR);
-        if (!dir.exists() && !dir.mkdir()) {
+        if (!dir.mkdir() && !dir.isDirectory()) {
             throw new IOException("Failed to mkdir: " + dir);
         }
     }
@@ -292,12 +441,108 @@ public class RemoteConferenceDataFetcher {
      */
     private void writeToCache(String url, String body) throws IOException {
         String cacheKey = getCacheKey(url);
-        File cacheFile = getCacheFile(url);
-        createCacheDir();
-        IOUtils.writeToFile(body, cacheFile);
+        writeCacheFile(getCacheFile(url),
+                new ByteArrayInputStream(body.getBytes(IOUtils.CHARSET_UTF8)));
+        // the contents weren't downloaded from the URL, so there is nothing to revalidate
+        getValidatorsFile(url).delete();
         LogUtils.LOGD(TAG, "Wrote to cache " + cacheKey + " --> " + sanitizeUrl(url));
     }
 
+    /**
+     * Writes the body of a response to the cache, decompressing it if needed, without building a
+     * String of it. The validators of the response are stored along with it.
+     *
+     * @param url      The URL from which the response was retrieved.
+     * @param response The response retrieved from the given URL.
+     * @throws IOException If there is a problem writing the file.
+     */
+    private void writeToCache(String url, HttpResponse response) throws IOException {
+        String cacheKey = getCacheKey(url);
+        writeCacheFile(getCacheFile(url), getBodyAsStream(response));
+        saveValidators(url, response);
+        LogUtils.LOGD(TAG, "Wrote to cache " + cacheKey + " --> " + sanitizeUrl(url));
+    }
+
+    /**
+     * Writes a cache file through a temporary file, so that neither a failed write nor a read from
+     * another thread can see a truncated file and take it for a cache hit.
+     * Note that this method closes the InputStream passed to it.
+     */
+    private void writeCacheFile(File cacheFile, InputStream is) throws IOException {
+        createCacheDir();
+        File tempFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                cacheFile.getParentFile());
+        try {
+            IOUtils.writeToFile(is, tempFile);
+            if (!tempFile.renameTo(cacheFile)) {
+                throw new IOException("Failed to rename " + tempFile + " to " + cacheFile);
+            }
+        } finally {
+            // no-op once renamed
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Loads the validators stored for our cache of the given URL.
+     *
+     * @return The ETag and Last-Modified values the cached contents were served with, or null if
+     * there are none.
+     */
+    private Properties loadValidators(String url) {
+        File file = getValidatorsFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties validators = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            validators.load(is);
+        } catch (IOException ex) {
+            LogUtils.LOGW(TAG, "Could not read validators for " + sanitizeUrl(url) + ": " +
+                    ex.getMessage());
+            return null;
+        } finally {
+            closeQuietly(is);
+        }
+        return validators.isEmpty() ? null : validators;
+    }
+
+    // Stores the validators of a response, if it has any, for its contents to be revalidated later
+    private void saveValidators(String url, HttpResponse response) throws IOException {
+        File file = getValidatorsFile(url);
+        Properties validators = new Properties();
+        String etag = getHeader(response, HEADER_ETAG);
+        if (!TextUtils.isEmpty(etag)) {
+            validators.setProperty(HEADER_ETAG, etag);
+        }
+        String lastModified = getHeader(response, HEADER_LAST_MODIFIED);
+        if (!TextUtils.isEmpty(lastModified)) {
+            validators.setProperty(HEADER_LAST_MODIFIED, lastModified);
+        }
+        if (validators.isEmpty()) {
+            file.delete();
+            return;
+        }
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            validators.store(os, null);
+        } finally {
+            closeQuietly(os);
+        }
+    }
+
+    private void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     /**
      * Returns the cache key to be used to store the given URL. The cache key is the file name under
      * which the contents of the URL are stored.
@@ -326,14 +571,14 @@ public class RemoteConferenceDataFetcher {
      * Process the data manifest and download data files referenced from it.
      *
      * @param manifestJson The JSON of the manifest file.
-     * @return The contents of the set of files referenced from the manifest, or null if none could
-     * be retrieved.
+     * @return The cache files holding the set of files referenced from the manifest, or null if
+     * none could be retrieved.
      * @throws IOException If an error occurs while retrieving information.
      */
-    private String[] processManifest(String manifestJson) throws IOException {
+    private File[] processManifest(String manifestJson) throws IOException {
         LogUtils.LOGD(TAG, "Processing data manifest, length " + manifestJson.length());
 
-        DataManifest manifest = new Gson().fromJson(manifestJson, DataManifest.class);
+        final DataManifest manifest = new Gson().fromJson(manifestJson, DataManifest.class);
         if (manifest.format == null || !manifest.format.equals(MANIFEST_FORMAT)) {
             LogUtils.LOGE(TAG, "Manifest has invalid format spec: " + manifest.format);
             throw new IOException("Invalid format spec on manifest:" + manifest.format);
@@ -345,20 +590,74 @@ public class RemoteConferenceDataFetcher {
         }
 
         LogUtils.LOGD(TAG, "Manifest lists " + manifest.data_files.length + " data files.");
-        String[] jsons = new String[manifest.data_files.length];
-        for (int i = 0; i < manifest.data_files.length; i++) {
-            String url = manifest.data_files[i];
-            LogUtils.LOGD(TAG, "Processing data file: " + sanitizeUrl(url));
-            jsons[i] = fetchFile(url);
-            if (TextUtils.isEmpty(jsons[i])) {
-                LogUtils.LOGE(TAG, "Failed to fetch data file: " + sanitizeUrl(url));
-                throw new IOException("Failed to fetch data file " + sanitizeUrl(url));
-            }
+        List<Callable<File>> fetches = new ArrayList<>();
+        for (final String url : manifest.data_files) {
+            fetches.add(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return fetchDataFile(manifest, url);
+                }
+            });
         }
+        File[] files = fetchAll(fetches);
 
-        LogUtils.LOGD(TAG, "Got " + jsons.length + " data files.");
+        LogUtils.LOGD(TAG, "Got " + files.length + " data files.");
         cleanUpCache();
-        return jsons;
+        return files;
+    }
+
+    /**
+     * Fetches a data file listed in the manifest, building it from deltas if possible.
+     *
+     * @return The cache file holding the data file.
+     * @throws IOException If the file can't be fetched.
+     */
+    private File fetchDataFile(DataManifest manifest, String url) throws IOException {
+        LogUtils.LOGD(TAG, "Processing data file: " + sanitizeUrl(url));
+        File file = fetchFileFromDeltas(manifest, url);
+        if (file == null) {
+            file = fetchFile(url);
+        }
+        if (file == null || file.length() == 0) {
+            LogUtils.LOGE(TAG, "Failed to fetch data file: " + sanitizeUrl(url));
+            throw new IOException("Failed to fetch data file " + sanitizeUrl(url));
+        }
+        return file;
+    }
+
+    /**
+     * Runs the fetches in parallel, a few at a time, so that the sync takes about as long as the
+     * largest download rather than as long as all of them.
+     *
+     * @return The files fetched, in the order of the fetches.
+     * @throws IOException If any of the fetches fails.
+     */
+    private File[] fetchAll(List<Callable<File>> fetches) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(fetches.size(), MAX_PARALLEL_DOWNLOADS));
+        try {
+            List<Future<File>> futures = executor.invokeAll(fetches);
+            File[] files = new File[futures.size()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = futures.get(i).get();
+            }
+            return files;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching data files");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Error while fetching data files", cause);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     // Delete unnecessary files from our cache
@@ -386,20 +685,60 @@ public class RemoteConferenceDataFetcher {
     }
 
     public long getTotalBytesDownloaded() {
-        return mBytesDownloaded;
+        return mBytesDownloaded.get();
     }
 
     public long getTotalBytesReadFromCache() {
-        return mBytesReadFromCache;
+        return mBytesReadFromCache.get();
     }
 
-    private String getLastModified(HttpResponse resp) {
-        if (!resp.getHeaders().containsKey("Last-Modified")) {
-            return "";
+    /**
+     * Returns the body of the response. Data files may be stored gzipped on the server; Android's
+     * HttpURLConnection asks for gzip and decompresses such responses transparently (removing the
+     * Content-Encoding header), but if the body still arrives compressed, it's decompressed here.
+     */
+    private String getBodyAsString(HttpResponse response) throws IOException {
+        byte[] body = response.getBody();
+        if (body == null || !isGzipped(response)) {
+            return response.getBodyAsString();
+        }
+        return IOUtils.readAsString(getBodyAsStream(response));
+    }
+
+    private InputStream getBodyAsStream(HttpResponse response) throws IOException {
+        InputStream stream = new ByteArrayInputStream(response.getBody());
+        return isGzipped(response) ? new GZIPInputStream(stream) : stream;
+    }
+
+    private boolean isGzipped(HttpResponse resp) {
+        if (resp.getHeaders() == null) {
+            return false;
+        }
+        for (Map.Entry<String, List<String>> header : resp.getHeaders().entrySet()) {
+            if ("Content-Encoding".equalsIgnoreCase(header.getKey())
+                    && header.getValue().contains("gzip")) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    private String getLastModified(HttpResponse resp) {
+        String lastModified = getHeader(resp, HEADER_LAST_MODIFIED);
+        return lastModified == null ? "" : lastModified;
+    }
 
-        List<String> s = resp.getHeaders().get("Last-Modified");
-        return s.isEmpty() ? "" : s.get(0);
+    // Returns the first value of a response header, whatever the case of its name, or null
+    private String getHeader(HttpResponse resp, String name) {
+        if (resp.getHeaders() == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> header : resp.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
     }
 
     /**
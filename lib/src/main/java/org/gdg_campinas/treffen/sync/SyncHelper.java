@@ -44,6 +44,7 @@ import com.turbomanage.httpclient.BasicHttpClient;
 import com.turbomanage.httpclient.HttpResponse;
 import com.turbomanage.httpclient.RequestLogger;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -261,7 +262,8 @@ public class SyncHelper {
      * Checks if the remote server has new conference data that we need to import. If so, download
      * the new data and import it into the database.
      *
-     * @return Whether or not data was changed.
+     * @return Whether or not data was changed. New data that is the same as the data already in the
+     * database doesn't count as a change.
      * @throws IOException if there is a problem downloading or importing the data.
      */
     private boolean doConferenceDataSync() throws IOException {
@@ -273,19 +275,20 @@ public class SyncHelper {
         LOGD(TAG, "Starting remote sync.");
 
         // Fetch the remote data files via RemoteConferenceDataFetcher.
-        String[] dataFiles = mRemoteDataFetcher.fetchConferenceDataIfNewer(
+        File[] dataFiles = mRemoteDataFetcher.fetchConferenceDataIfNewer(
                 mConferenceDataHandler.getDataTimestamp());
 
         if (dataFiles != null) {
             LOGI(TAG, "Applying remote data.");
             // Save the remote data to the database.
+            int operationsBefore = mConferenceDataHandler.getContentProviderOperationsDone();
             mConferenceDataHandler.applyConferenceData(dataFiles,
                     mRemoteDataFetcher.getServerDataTimestamp(), true);
             LOGI(TAG, "Done applying remote data.");
 
             // Mark that conference data sync has succeeded.
             SettingsUtils.markSyncSucceededNow(mContext);
-            return true;
+            return mConferenceDataHandler.getContentProviderOperationsDone() > operationsBefore;
         } else {
             // No data to process (everything is up to date).
             // Mark that conference data sync succeeded.
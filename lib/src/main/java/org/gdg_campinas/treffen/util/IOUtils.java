@@ -77,6 +77,38 @@ public class IOUtils {
         }
     }
 
+    /**
+     * Copies an {@link InputStream} to a {@link File} without holding the whole content in memory.
+     * Note that this method closes the InputStream passed to it.
+     *
+     * @param is   The InputStream to be copied.
+     * @param file The {@link File} to be used for writing the data.
+     * @return The number of bytes written.
+     * @throws IOException
+     */
+    public static long writeToFile(InputStream is, File file) throws IOException {
+        FileOutputStream os = null;
+        long count = 0;
+        try {
+            os = new FileOutputStream(file);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+                count += n;
+            }
+            os.flush();
+            // Perform an fsync on the FileOutputStream.
+            os.getFD().sync();
+        } finally {
+            is.close();
+            if (os != null) {
+                os.close();
+            }
+        }
+        return count;
+    }
+
     /**
      * Write the given content to an {@link OutputStream}
      * <p/>
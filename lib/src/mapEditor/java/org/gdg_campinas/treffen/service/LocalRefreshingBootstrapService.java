@@ -14,7 +14,6 @@
 package org.gdg_campinas.treffen.service;
 
 import org.gdg_campinas.treffen.lib.BuildConfig;
-import org.gdg_campinas.treffen.io.JSONHandler;
 import org.gdg_campinas.treffen.provider.ScheduleContract;
 import org.gdg_campinas.treffen.settings.SettingsUtils;
 import org.gdg_campinas.treffen.sync.ConferenceDataHandler;
@@ -85,12 +84,10 @@ public class LocalRefreshingBootstrapService extends IntentService {
                 LOGE(TAG, "File " + BOOTSTRAP_FILE + " could not be read. No bootstrap possible.");
             }
 
-            String bootstrapJson = JSONHandler.parseFile(BOOTSTRAP_FILE);
-
             // Apply the data we read to the database with the help of the ConferenceDataHandler.
             ConferenceDataHandler dataHandler = new ConferenceDataHandler(appContext);
 
-            dataHandler.applyConferenceData(new String[]{bootstrapJson},
+            dataHandler.applyConferenceData(new File[]{new File(BOOTSTRAP_FILE)},
                     BuildConfig.BOOTSTRAP_DATA_TIMESTAMP, false);
 
             SyncHelper.performPostSyncChores(appContext);
@@ -498,10 +498,15 @@ function getRemoveList(trueList, currList) {
  * concern that reservations in datastore and RTDB are out of sync. This
  * function would be used to push reservations from RTDB into datastore to
  * bring the sources back into sync.
+ *
+ * Users are returned in the order of their IDs. If the startAfter parameter
+ * is given, only the users after that user ID are returned, so that a sync
+ * that was interrupted can continue where it stopped.
  */
 exports.getReservations = functions.https.onRequest((req, res) => {
   // Check that the token used to call this function is an expected one.
   var token = req.query.token;
+  var startAfter = req.query.startAfter;
   request({
     uri: 'https://www.googleapis.com/oauth2/v3/tokeninfo',
     qs: {
@@ -512,17 +517,20 @@ exports.getReservations = functions.https.onRequest((req, res) => {
     if (resp.email == SERVICE_ACCOUNT_EMAIL &&
         resp.exp > (new Date().getTime() / 1000)) {
       console.log('Token verified');
-      // Get all users that can reserve sessions.
-      admin.database().ref(PATH_USER_SESSIONS).once('value')
-          .then(function(snapshot) {
-        return snapshot.val();
-      }).then(function(users) {
-        // Get the reservations of all users that can reserve.
+      // Get all users that can reserve sessions, after startAfter if given.
+      var usersRef = admin.database().ref(PATH_USER_SESSIONS).orderByKey();
+      if (startAfter) {
+        usersRef = usersRef.startAt(startAfter);
+      }
+      usersRef.once('value').then(function(snapshot) {
+        // Get the reservations of all users that can reserve, in key order.
         var reservationRequests = [];
 
-        for (userId in users) {
-          reservationRequests.push(getUserReservations(userId));
-        }
+        snapshot.forEach(function(userSnapshot) {
+          if (userSnapshot.key !== startAfter) {
+            reservationRequests.push(getUserReservations(userSnapshot.key));
+          }
+        });
 
         return Promise.all(reservationRequests);
       }).then(function(results) {
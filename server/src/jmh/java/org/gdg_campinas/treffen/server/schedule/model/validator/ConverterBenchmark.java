@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model.validator;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the converters used by the extraction of every session with the implementations they
+ * replaced. The input is built from the test data: the times of sample_topic.json repeated over
+ * the conference, every half an hour, and the names and bios of sample_speakers.json.
+ *
+ * Run with "gradle jmh".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConverterBenchmark {
+
+  private static final int SESSIONS = 400;
+  private static final long HALF_AN_HOUR = TimeUnit.MINUTES.toMillis(30);
+
+  private final DateTimeConverter dateTimeConverter = new DateTimeConverter();
+  private final LegacyDateTimeConverter legacyDateTimeConverter = new LegacyDateTimeConverter();
+
+  private List<JsonPrimitive> timestamps;
+  private List<String> texts;
+
+  @Setup
+  public void loadSessionDump() throws IOException, ParseException {
+    SimpleDateFormat cmsFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    JsonObject topic = readTestData("sample_topic.json").getAsJsonObject();
+    long start = cmsFormat.parse(topic.get("Start").getAsString()).getTime();
+    long finish = cmsFormat.parse(topic.get("finish").getAsString()).getTime();
+    timestamps = new ArrayList<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      timestamps.add(new JsonPrimitive(cmsFormat.format(new Date(start + i * HALF_AN_HOUR))));
+      timestamps.add(new JsonPrimitive(cmsFormat.format(new Date(finish + i * HALF_AN_HOUR))));
+    }
+
+    texts = new ArrayList<>();
+    JsonArray speakers = readTestData("sample_speakers.json").getAsJsonObject()
+        .getAsJsonArray("results");
+    for (JsonElement speaker : speakers) {
+      texts.add(speaker.getAsJsonObject().get("firstname").getAsString());
+      texts.add(speaker.getAsJsonObject().get("Bio").getAsString());
+    }
+  }
+
+  @Benchmark
+  public void dateTime(Blackhole blackhole) {
+    for (JsonPrimitive timestamp : timestamps) {
+      blackhole.consume(dateTimeConverter.convert(timestamp));
+    }
+  }
+
+  @Benchmark
+  public void dateTimeLegacy(Blackhole blackhole) {
+    for (JsonPrimitive timestamp : timestamps) {
+      blackhole.consume(legacyDateTimeConverter.convert(timestamp));
+    }
+  }
+
+  @Benchmark
+  public void obfuscate(Blackhole blackhole) {
+    for (String text : texts) {
+      blackhole.consume(StringObfuscateConverter.obfuscate(text));
+    }
+  }
+
+  @Benchmark
+  public void obfuscateLegacy(Blackhole blackhole) {
+    for (String text : texts) {
+      blackhole.consume(LegacyObfuscator.obfuscate(text));
+    }
+  }
+
+  private static JsonElement readTestData(String filename) throws IOException {
+    try (Reader reader = new InputStreamReader(ConverterBenchmark.class.getClassLoader()
+        .getResourceAsStream("testdata/" + filename), Charset.forName("UTF-8"))) {
+      return new JsonParser().parse(reader);
+    }
+  }
+
+  /**
+   * DateTimeConverter before it could be shared by threads: it tries each SimpleDateFormat until
+   * one doesn't throw.
+   */
+  private static class LegacyDateTimeConverter {
+    private final SimpleDateFormat[] inputFormats = new SimpleDateFormat[] {
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"),
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
+    };
+    private final SimpleDateFormat outputFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    JsonPrimitive convert(JsonPrimitive value) {
+      Date date = null;
+      for (int i = 0; i < inputFormats.length && date == null; i++) {
+        try {
+          date = inputFormats[i].parse(value.getAsString());
+        } catch (ParseException e) {
+          // try the next format
+        }
+      }
+      return new JsonPrimitive(outputFormat.format(date));
+    }
+  }
+
+  /**
+   * StringObfuscateConverter before it could be shared by threads: it reseeds a shared Random.
+   */
+  private static class LegacyObfuscator {
+    private static final Random r = new Random();
+
+    static String obfuscate(String src) {
+      r.setSeed(src.hashCode());
+      char[] str = src.toCharArray();
+      for (int i = 0; i < str.length; i++) {
+        char ch = str[i];
+        if (Character.isLowerCase(ch)) {
+          str[i] = (char) ('a' + r.nextInt(25));
+        } else if (Character.isUpperCase(ch)) {
+          str[i] = (char) ('A' + r.nextInt(25));
+        } else if (Character.isDigit(ch)) {
+          str[i] = (char) ('0' + r.nextInt(10));
+        }
+      }
+      return new String(str);
+    }
+  }
+}
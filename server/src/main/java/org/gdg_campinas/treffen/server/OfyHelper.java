@@ -16,9 +16,11 @@
 
 package org.gdg_campinas.treffen.server;
 
+import org.gdg_campinas.treffen.server.gcm.db.models.BroadcastCheckpoint;
 import org.gdg_campinas.treffen.server.gcm.db.models.Device;
 import org.gdg_campinas.treffen.server.gcm.db.models.MulticastMessage;
 import org.gdg_campinas.treffen.server.userdata.db.UserData;
+import org.gdg_campinas.treffen.server.userdata.db.UserSessionRecord;
 import com.googlecode.objectify.ObjectifyService;
 
 import javax.servlet.ServletContextEvent;
@@ -35,7 +37,9 @@ public class OfyHelper implements ServletContextListener {
         // request.
         ObjectifyService.register(Device.class);
         ObjectifyService.register(MulticastMessage.class);
+        ObjectifyService.register(BroadcastCheckpoint.class);
         ObjectifyService.register(UserData.class);
+        ObjectifyService.register(UserSessionRecord.class);
     }
 
     public void contextDestroyed(ServletContextEvent event) {
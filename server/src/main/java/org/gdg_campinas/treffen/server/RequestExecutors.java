@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates thread pools that are safe to use while serving an App Engine request.
+ *
+ * Inside a request, App Engine only allows threads created by
+ * {@link ThreadManager#currentRequestThreadFactory()}, and those threads can't outlive the request,
+ * so callers must shut the returned executors down before returning. Outside App Engine (command
+ * line tools and unit tests) a regular thread factory is used.
+ */
+public class RequestExecutors {
+
+  private RequestExecutors() {
+  }
+
+  public static ExecutorService newFixedThreadPool(int nThreads) {
+    return Executors.newFixedThreadPool(Math.max(1, nThreads), threadFactory());
+  }
+
+  public static ThreadFactory threadFactory() {
+    if (ApiProxy.getCurrentEnvironment() != null) {
+      return ThreadManager.currentRequestThreadFactory();
+    }
+    return Executors.defaultThreadFactory();
+  }
+}
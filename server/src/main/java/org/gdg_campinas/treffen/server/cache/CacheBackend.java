@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * Key-value store behind a {@link ReadThroughCache}. Values are copied in and out, so callers can
+ * modify what they get without changing what is cached.
+ */
+public interface CacheBackend {
+
+    /**
+     * @return the value, or null if it isn't cached.
+     */
+    Serializable get(String key);
+
+    /**
+     * Stores a value unless the key has a value already or was deleted less than
+     * {@code noReAddMillis} ago, see {@link #delete(Collection, long)}.
+     */
+    void add(String key, Serializable value, int ttlSeconds);
+
+    /**
+     * Deletes keys, and keeps them from being added again for some time. This keeps a reader that
+     * loaded a value before it was changed from caching the old value after the change.
+     */
+    void delete(Collection<String> keys, long noReAddMillis);
+}
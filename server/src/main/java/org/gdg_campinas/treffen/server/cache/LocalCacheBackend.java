@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process {@link CacheBackend}, used outside App Engine (command line tools and unit tests).
+ * Values are stored serialized, like memcache does, so they are copied in and out.
+ */
+public class LocalCacheBackend implements CacheBackend {
+
+    private static class Entry {
+        final byte[] value;
+        final long expiresAt;
+
+        Entry(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Clock clock;
+
+    /**
+     * Source of the current time, so that tests can control expiration.
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    public LocalCacheBackend() {
+        this(new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
+        });
+    }
+
+    public LocalCacheBackend(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public Serializable get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.value == null || entry.expiresAt <= clock.currentTimeMillis()) {
+            return null;
+        }
+        return deserialize(entry.value);
+    }
+
+    @Override
+    public synchronized void add(String key, Serializable value, int ttlSeconds) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt > clock.currentTimeMillis()) {
+            // Either a value or a delete that blocks adding values.
+            return;
+        }
+        entries.put(key, new Entry(serialize(value), clock.currentTimeMillis() + ttlSeconds * 1000L));
+    }
+
+    @Override
+    public synchronized void delete(Collection<String> keys, long noReAddMillis) {
+        long blockedUntil = clock.currentTimeMillis() + noReAddMillis;
+        for (String key : keys) {
+            entries.put(key, new Entry(null, blockedUntil));
+        }
+    }
+
+    private static byte[] serialize(Serializable value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Value can't be serialized", e);
+        }
+    }
+
+    private static Serializable deserialize(byte[] value) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value))) {
+            return (Serializable) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Cached value can't be deserialized", e);
+        }
+    }
+}
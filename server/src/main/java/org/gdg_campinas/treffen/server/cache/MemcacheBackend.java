@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.cache;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * {@link CacheBackend} on App Engine memcache.
+ */
+public class MemcacheBackend implements CacheBackend {
+
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+    @Override
+    public Serializable get(String key) {
+        return (Serializable) memcache.get(key);
+    }
+
+    @Override
+    public void add(String key, Serializable value, int ttlSeconds) {
+        memcache.put(key, value, Expiration.byDeltaSeconds(ttlSeconds),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    @Override
+    public void delete(Collection<String> keys, long noReAddMillis) {
+        memcache.deleteAll(keys, noReAddMillis);
+    }
+}
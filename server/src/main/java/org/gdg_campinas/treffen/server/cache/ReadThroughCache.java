@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.cache;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Read-through cache in front of a datastore lookup. Values are cached for a fixed time, and the
+ * code that writes the underlying entities invalidates them. A value loaded while it was being
+ * changed is not cached, so readers don't bring back the old value after the change.
+ *
+ * <p>On App Engine values are kept in memcache, elsewhere in a {@link LocalCacheBackend}.
+ *
+ * @param <V> type of cached values.
+ */
+public class ReadThroughCache<V extends Serializable> {
+    private static final Logger LOG = Logger.getLogger(ReadThroughCache.class.getName());
+
+    /** Time during which an invalidated key can't be cached again. */
+    private static final long NO_RE_ADD_MILLIS = 2000;
+    /** Hit and miss counts are logged every this many lookups. */
+    private static final long STATS_LOG_INTERVAL = 1000;
+
+    /**
+     * Lookup of the value of a key, called on cache misses.
+     */
+    public interface Loader<V> {
+        /**
+         * @return the value, or null if there is none. Null values are not cached.
+         */
+        V load(String key);
+    }
+
+    private final String namespace;
+    private final int ttlSeconds;
+    private final CacheBackend backend;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ReadThroughCache(String namespace, int ttlSeconds) {
+        this(namespace, ttlSeconds, ApiProxy.getCurrentEnvironment() != null
+                ? new MemcacheBackend() : new LocalCacheBackend());
+    }
+
+    public ReadThroughCache(String namespace, int ttlSeconds, CacheBackend backend) {
+        this.namespace = namespace;
+        this.ttlSeconds = ttlSeconds;
+        this.backend = backend;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(String key, Loader<V> loader) {
+        String cacheKey = cacheKey(key);
+        V value = (V) backend.get(cacheKey);
+        if (value != null) {
+            countLookup(hits);
+            return value;
+        }
+        countLookup(misses);
+        value = loader.load(key);
+        if (value != null) {
+            backend.add(cacheKey, value, ttlSeconds);
+        }
+        return value;
+    }
+
+    public void invalidate(String key) {
+        invalidateAll(Collections.singleton(key));
+    }
+
+    public void invalidateAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> cacheKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            cacheKeys.add(cacheKey(key));
+        }
+        backend.delete(cacheKeys, NO_RE_ADD_MILLIS);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private String cacheKey(String key) {
+        return namespace + ":" + key;
+    }
+
+    private void countLookup(AtomicLong counter) {
+        counter.incrementAndGet();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        if ((hitCount + missCount) % STATS_LOG_INTERVAL == 0) {
+            LOG.info(namespace + " cache: " + hitCount + " hits, " + missCount + " misses");
+        }
+    }
+}
@@ -39,6 +39,7 @@ public abstract class BaseServlet extends HttpServlet {
 
   // change to true to allow GET calls
   static final boolean DEBUG = true;
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
   private static final Logger LOG = Logger.getLogger(BaseServlet.class.getName());
 
   protected final Logger logger = Logger.getLogger(getClass().getName());
@@ -92,6 +93,23 @@ public abstract class BaseServlet extends HttpServlet {
     resp.setContentLength(size);
   }
 
+  /**
+   * Checks that a request was made by a task queue. App Engine removes X-AppEngine headers from
+   * requests coming from outside, so only task queues can set the queue name header. Other
+   * requests are answered with 403.
+   *
+   * @return whether the request was made by a task queue.
+   */
+  protected boolean checkQueueRequest(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    if (req.getHeader(QUEUE_NAME_HEADER) != null) {
+      return true;
+    }
+    send(resp, HttpServletResponse.SC_FORBIDDEN,
+        "Rejected request not made by a task queue: " + req.getRequestURI());
+    return false;
+  }
+
   protected boolean checkUser() {
     UserService userService = UserServiceFactory.getUserService();
     User user = userService.getCurrentUser();
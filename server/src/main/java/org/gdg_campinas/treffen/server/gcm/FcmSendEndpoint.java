@@ -114,8 +114,7 @@ public class FcmSendEndpoint {
       throw new UnauthorizedException(INVALID_CREDENTIALS_MSG);
     }
     MessageSender sender = new MessageSender(context);
-    List<Device> devices = DeviceStore.getAllDevices();
-    sender.multicastSend(devices, ACTION_SYNC_USER, null);
+    sender.broadcastSend(ACTION_SYNC_USER, null);
   }
 
   /**
@@ -130,8 +129,7 @@ public class FcmSendEndpoint {
       throws UnauthorizedException {
     validateServiceAccount(user);
     MessageSender sender = new MessageSender(context);
-    List<Device> devices = DeviceStore.getAllDevices();
-    sender.multicastSend(devices, ACTION_SYNC_SCHEDULE, null);
+    sender.broadcastSend(ACTION_SYNC_SCHEDULE, null);
   }
 
   /**
@@ -146,8 +144,7 @@ public class FcmSendEndpoint {
       throws UnauthorizedException {
     validateServiceAccount(user);
     MessageSender sender = new MessageSender(context);
-    List<Device> devices = DeviceStore.getAllDevices();
-    sender.multicastSend(devices, "feed_update", null);
+    sender.broadcastSend("feed_update", null);
   }
 
   private void validateServiceAccount(User user) throws UnauthorizedException {
@@ -15,25 +15,146 @@
  */
 package org.gdg_campinas.treffen.server.gcm.cron;
 
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import org.gdg_campinas.treffen.server.gcm.BaseServlet;
+import org.gdg_campinas.treffen.server.gcm.db.DeviceStore;
+import org.gdg_campinas.treffen.server.gcm.db.MessageStore;
+import org.gdg_campinas.treffen.server.gcm.db.VacuumBatch;
+import org.gdg_campinas.treffen.server.gcm.device.MessageSender;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Removes stale data from the datastore, in three phases:
+ * <ol>
+ *   <li>devices that haven't been active for {@link #STALE_DEVICE_AGE_MS} or that messages
+ *   couldn't be delivered to {@link #MAX_SEND_FAILURES} times;</li>
+ *   <li>leftover multicast records older than the message TTL;</li>
+ *   <li>broadcast checkpoints older than {@link #CHECKPOINT_AGE_MS}, whose tasks are no longer
+ *   retried.</li>
+ * </ol>
+ *
+ * <p>Entities are read in pages of {@link #BATCH_SIZE}, with cursors. When the time budget of a
+ * request runs out, the vacuum continues in a task that starts at the current cursor, carrying
+ * the counters along, so that the rows scanned, rows deleted and time spent are logged for each
+ * whole phase.
+ */
 @SuppressWarnings("serial")
 public class VacuumDbServlet extends BaseServlet {
+
+    static final int BATCH_SIZE = 500;
+    static final long TIME_BUDGET_MS = TimeUnit.MINUTES.toMillis(5);
+    static final long STALE_DEVICE_AGE_MS = TimeUnit.DAYS.toMillis(365);
+    static final int MAX_SEND_FAILURES = 3;
+    static final long CHECKPOINT_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String URL = "/cron/vacuum_db";
+    private static final String PHASE_DEVICES = "devices";
+    private static final String PHASE_MULTICASTS = "multicasts";
+    private static final String PHASE_CHECKPOINTS = "checkpoints";
+    private static final String PARAM_PHASE = "phase";
+    private static final String PARAM_CURSOR = "cursor";
+    private static final String PARAM_SCANNED = "scanned";
+    private static final String PARAM_DELETED = "deleted";
+    private static final String PARAM_ELAPSED = "elapsed";
+    private static final String PARAM_REQUESTS = "requests";
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws IOException {
+        doPost(req, resp);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        String phase = getParameter(req, PARAM_PHASE, PHASE_DEVICES);
+        String cursor = req.getParameter(PARAM_CURSOR);
+        long scanned = Long.parseLong(getParameter(req, PARAM_SCANNED, "0"));
+        long deleted = Long.parseLong(getParameter(req, PARAM_DELETED, "0"));
+        long elapsed = Long.parseLong(getParameter(req, PARAM_ELAPSED, "0"));
+        int requests = Integer.parseInt(getParameter(req, PARAM_REQUESTS, "0")) + 1;
+
+        Date now = new Date();
+        Date staleBefore = new Date(now.getTime() - STALE_DEVICE_AGE_MS);
+        Date expiredBefore = new Date(now.getTime() - TimeUnit.SECONDS.toMillis(MessageSender.TTL));
+        Date checkpointsBefore = new Date(now.getTime() - CHECKPOINT_AGE_MS);
+        long phaseStart = start;
+        while (phase != null && System.currentTimeMillis() - start < TIME_BUDGET_MS) {
+            VacuumBatch batch;
+            if (PHASE_DEVICES.equals(phase)) {
+                batch = DeviceStore.vacuumDevices(cursor, BATCH_SIZE, staleBefore,
+                        MAX_SEND_FAILURES);
+            } else if (PHASE_MULTICASTS.equals(phase)) {
+                batch = MessageStore.vacuumMulticasts(cursor, BATCH_SIZE, expiredBefore);
+            } else {
+                batch = MessageStore.vacuumBroadcastCheckpoints(cursor, BATCH_SIZE,
+                        checkpointsBefore);
+            }
+            scanned += batch.getScanned();
+            deleted += batch.getDeleted();
+            cursor = batch.getNextCursor();
+            if (cursor == null) {
+                long phaseEnd = System.currentTimeMillis();
+                logger.info("Vacuumed " + phase + ": " + metrics(scanned, deleted,
+                        elapsed + phaseEnd - phaseStart, requests));
+                phase = nextPhase(phase);
+                scanned = 0;
+                deleted = 0;
+                elapsed = 0;
+                requests = 1;
+                phaseStart = phaseEnd;
+            }
+        }
+        elapsed += System.currentTimeMillis() - phaseStart;
+
+        String status;
+        if (phase != null) {
+            TaskOptions taskOptions = TaskOptions.Builder
+                    .withUrl(URL)
+                    .param(PARAM_PHASE, phase)
+                    .param(PARAM_SCANNED, Long.toString(scanned))
+                    .param(PARAM_DELETED, Long.toString(deleted))
+                    .param(PARAM_ELAPSED, Long.toString(elapsed))
+                    .param(PARAM_REQUESTS, Integer.toString(requests))
+                    .method(TaskOptions.Method.POST);
+            if (cursor != null) {
+                taskOptions.param(PARAM_CURSOR, cursor);
+            }
+            QueueFactory.getDefaultQueue().add(taskOptions);
+            status = "Continuing " + phase + ": " + metrics(scanned, deleted, elapsed, requests);
+        } else {
+            status = "Done";
+        }
+
         resp.setContentType("text/html");
         resp.addHeader("X-FRAME-OPTIONS", "DENY");
 
         // Print "OK" message
         PrintWriter out = resp.getWriter();
-        out.print("OK");
+        out.print("OK\n" + status);
         resp.setStatus(HttpServletResponse.SC_OK);
     }
+
+    private static String nextPhase(String phase) {
+        if (PHASE_DEVICES.equals(phase)) {
+            return PHASE_MULTICASTS;
+        } else if (PHASE_MULTICASTS.equals(phase)) {
+            return PHASE_CHECKPOINTS;
+        }
+        return null;
+    }
+
+    private String metrics(long scanned, long deleted, long elapsed, int requests) {
+        return "scanned=" + scanned + " deleted=" + deleted + " timeMs=" + elapsed
+                + " requests=" + requests;
+    }
 }
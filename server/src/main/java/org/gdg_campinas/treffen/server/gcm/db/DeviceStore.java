@@ -18,14 +18,48 @@ package org.gdg_campinas.treffen.server.gcm.db;
 
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+import org.gdg_campinas.treffen.server.cache.ReadThroughCache;
 import org.gdg_campinas.treffen.server.gcm.db.models.Device;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class DeviceStore {
     private static final Logger LOG = Logger.getLogger(DeviceStore.class.getName());
 
+    /**
+     * Time the devices of a user are cached, see {@link #findDevicesByUserId(String)}. Kept short
+     * since the query behind it is eventually consistent.
+     */
+    private static final int USER_DEVICES_CACHE_TTL_S = (int) TimeUnit.MINUTES.toSeconds(2);
+    private static final ReadThroughCache<ArrayList<Device>> USER_DEVICES_CACHE =
+            new ReadThroughCache<>("UserDevices", USER_DEVICES_CACHE_TTL_S);
+    /**
+     * Failures to deliver a message to a device are counted together only if each comes within
+     * this time of the previous one. Successful sends aren't recorded, to keep the fan-out free of
+     * datastore writes, so a device that only fails now and then starts counting again instead.
+     */
+    static final long SEND_FAILURE_WINDOW_MS = TimeUnit.DAYS.toMillis(7);
+    private static final ReadThroughCache.Loader<ArrayList<Device>> USER_DEVICES_LOADER =
+            new ReadThroughCache.Loader<ArrayList<Device>>() {
+                @Override
+                public ArrayList<Device> load(String userId) {
+                    return new ArrayList<>(
+                            ofy().load().type(Device.class).filter("userId", userId).list());
+                }
+            };
+
     /**
      * Registers a device.
      *
@@ -39,16 +73,24 @@ public class DeviceStore {
             Device newDevice = new Device();
             newDevice.setDeviceId(deviceId);
             newDevice.setUserId(userId);
+            newDevice.setLastActive(new Date());
             ofy().save().entity(newDevice);
+            invalidateUserDevices(userId);
         } else {
             // Existing device found
             LOG.warning(deviceId + " is already registered");
+            String oldUserId = oldDevice.getUserId();
             if (userId == null || !userId.equals(oldDevice.getUserId())) {
                 LOG.info("User ID has changed from '" + oldDevice.getUserId() + "' to '"
                         + userId + "'");
                 oldDevice.setUserId(userId);
-                ofy().save().entity(oldDevice);
             }
+            // The device is alive, so it's not stale anymore
+            oldDevice.setLastActive(new Date());
+            oldDevice.setSendFailures(0);
+            oldDevice.setLastSendFailure(null);
+            ofy().save().entity(oldDevice);
+            invalidateUserDevices(oldUserId, userId);
         }
     }
 
@@ -65,6 +107,7 @@ public class DeviceStore {
         }
         LOG.info("Unregistering " + deviceId);
         ofy().delete().entity(device);
+        invalidateUserDevices(device.getUserId());
     }
 
     /**
@@ -82,8 +125,132 @@ public class DeviceStore {
         Device newDevice = new Device();
         newDevice.setDeviceId(newDeviceId);
         newDevice.setUserId(oldDevice.getUserId());
+        newDevice.setLastActive(new Date());
         ofy().save().entity(newDevice);
         ofy().delete().entity(oldDevice);
+        invalidateUserDevices(oldDevice.getUserId());
+    }
+
+    /**
+     * Applies registration changes reported by FCM in batches: a single load of the affected
+     * devices, a single save of the new and updated devices and a single delete of the old and
+     * unregistered devices.
+     *
+     * @param canonicalIds maps old registration ids to their canonical registration ids.
+     * @param unregisteredIds registration ids of devices that are no longer registered.
+     * @param failedIds registration ids of devices a message couldn't be delivered to.
+     */
+    public static void applyRegistrationChanges(Map<String, String> canonicalIds,
+            Collection<String> unregisteredIds, Collection<String> failedIds) {
+        List<Key<Device>> toDelete = new ArrayList<>();
+        List<Device> toSave = new ArrayList<>();
+        Set<String> userIds = new HashSet<>();
+        Date now = new Date();
+        if (!canonicalIds.isEmpty() || !failedIds.isEmpty() || !unregisteredIds.isEmpty()) {
+            Set<String> ids = new HashSet<>(canonicalIds.keySet());
+            ids.addAll(failedIds);
+            // Unregistered devices are only loaded to know which users' devices change.
+            ids.addAll(unregisteredIds);
+            Map<String, Device> devices = ofy().load().type(Device.class).ids(ids);
+            for (Device device : devices.values()) {
+                if (device.getUserId() != null) {
+                    userIds.add(device.getUserId());
+                }
+            }
+            for (Map.Entry<String, String> entry : canonicalIds.entrySet()) {
+                Device oldDevice = devices.get(entry.getKey());
+                if (oldDevice == null) {
+                    LOG.warning("No device for registration id " + entry.getKey());
+                    continue;
+                }
+                // Since we use the GCM key as the (immutable) primary key,
+                // we must create a new entity.
+                Device newDevice = new Device();
+                newDevice.setDeviceId(entry.getValue());
+                newDevice.setUserId(oldDevice.getUserId());
+                newDevice.setLastActive(new Date());
+                toSave.add(newDevice);
+                toDelete.add(Key.create(Device.class, entry.getKey()));
+            }
+            for (String deviceId : failedIds) {
+                Device device = devices.get(deviceId);
+                if (device != null && !canonicalIds.containsKey(deviceId)) {
+                    device.setSendFailures(
+                            isRecentSendFailure(device, now) ? device.getSendFailures() + 1 : 1);
+                    device.setLastSendFailure(now);
+                    toSave.add(device);
+                }
+            }
+        }
+        for (String deviceId : unregisteredIds) {
+            toDelete.add(Key.create(Device.class, deviceId));
+        }
+        LOG.info("Saving " + toSave.size() + " devices and deleting " + toDelete.size()
+                + " devices");
+        if (!toSave.isEmpty()) {
+            ofy().save().entities(toSave).now();
+        }
+        if (!toDelete.isEmpty()) {
+            ofy().delete().keys(toDelete).now();
+        }
+        USER_DEVICES_CACHE.invalidateAll(userIds);
+    }
+
+    /**
+     * Deletes stale devices from a page of devices: devices that haven't been active since
+     * {@code staleBefore} and devices that messages couldn't be delivered to
+     * {@code maxSendFailures} times, the last one within {@link #SEND_FAILURE_WINDOW_MS}. Devices saved before activity was tracked are marked as
+     * active now, so they become stale only if they don't register again.
+     *
+     * @param startCursor cursor returned with the previous page, or null for the first page.
+     * @param limit maximum number of devices scanned.
+     */
+    public static VacuumBatch vacuumDevices(String startCursor, int limit, Date staleBefore,
+            int maxSendFailures) {
+        Query<Device> query = ofy().load().type(Device.class).limit(limit).chunk(limit);
+        if (startCursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(startCursor));
+        }
+        QueryResultIterator<Device> iterator = query.iterator();
+        List<Key<Device>> toDelete = new ArrayList<>();
+        List<Device> toSave = new ArrayList<>();
+        Set<String> userIds = new HashSet<>();
+        int scanned = 0;
+        Date now = new Date();
+        while (iterator.hasNext()) {
+            Device device = iterator.next();
+            scanned++;
+            if ((device.getSendFailures() >= maxSendFailures && isRecentSendFailure(device, now))
+                    || (device.getLastActive() != null && device.getLastActive().before(staleBefore))) {
+                toDelete.add(Key.create(device));
+            } else if (device.getLastActive() == null) {
+                device.setLastActive(new Date());
+                toSave.add(device);
+            } else {
+                continue;
+            }
+            if (device.getUserId() != null) {
+                userIds.add(device.getUserId());
+            }
+        }
+        String nextCursor = scanned == limit ? iterator.getCursor().toWebSafeString() : null;
+        if (!toSave.isEmpty()) {
+            ofy().save().entities(toSave).now();
+        }
+        if (!toDelete.isEmpty()) {
+            ofy().delete().keys(toDelete).now();
+        }
+        USER_DEVICES_CACHE.invalidateAll(userIds);
+        return new VacuumBatch(scanned, toDelete.size(), nextCursor);
+    }
+
+    /**
+     * Returns whether the last failure to deliver a message to the device is recent enough to
+     * count the next failure with it. Failures counted before their time was stored are not.
+     */
+    private static boolean isRecentSendFailure(Device device, Date now) {
+        return device.getLastSendFailure() != null
+                && now.getTime() - device.getLastSendFailure().getTime() < SEND_FAILURE_WINDOW_MS;
     }
 
     /**
@@ -93,15 +260,75 @@ public class DeviceStore {
         return ofy().load().type(Device.class).count();
     }
 
-    public static List<Device> getAllDevices() {
-        return ofy().load().type(Device.class).filter("userId >", "").list();
+    /**
+     * Loads a page of ids of registered devices, using a keys-only query. Pages are linked by
+     * cursors, so all devices can be read in constant memory, and the reading can be resumed from
+     * any page.
+     *
+     * @param startCursor cursor returned with the previous page, or null for the first page.
+     * @param limit maximum number of device ids in the page.
+     */
+    public static DeviceIdPage getDeviceIdPage(String startCursor, int limit) {
+        Query<Device> query = ofy().load().type(Device.class).filter("userId >", "")
+                .limit(limit).chunk(limit);
+        if (startCursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(startCursor));
+        }
+        QueryResultIterator<Key<Device>> iterator = query.keys().iterator();
+        List<String> deviceIds = new ArrayList<>(limit);
+        while (iterator.hasNext()) {
+            deviceIds.add(iterator.next().getName());
+        }
+        String nextCursor = null;
+        if (deviceIds.size() == limit) {
+            nextCursor = iterator.getCursor().toWebSafeString();
+        }
+        return new DeviceIdPage(deviceIds, nextCursor);
+    }
+
+    /**
+     * A page of device ids, see {@link #getDeviceIdPage(String, int)}.
+     */
+    public static class DeviceIdPage {
+        private final List<String> deviceIds;
+        private final String nextCursor;
+
+        DeviceIdPage(List<String> deviceIds, String nextCursor) {
+            this.deviceIds = deviceIds;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<String> getDeviceIds() {
+            return deviceIds;
+        }
+
+        /**
+         * @return the cursor of the next page, or null if this is the last page.
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
     }
 
     public static Device findDeviceByDeviceId(String deviceId) {
         return ofy().load().type(Device.class).id(deviceId).now();
     }
 
+    /**
+     * Finds the devices of a user. The result is cached until a device of the user is registered,
+     * updated or deleted through this class.
+     */
     public static List<Device> findDevicesByUserId(String target) {
-        return ofy().load().type(Device.class).filter("userId", target).list();
+        return USER_DEVICES_CACHE.get(target, USER_DEVICES_LOADER);
+    }
+
+    private static void invalidateUserDevices(String... userIds) {
+        List<String> keys = new ArrayList<>();
+        for (String userId : userIds) {
+            if (userId != null) {
+                keys.add(userId);
+            }
+        }
+        USER_DEVICES_CACHE.invalidateAll(keys);
     }
 }
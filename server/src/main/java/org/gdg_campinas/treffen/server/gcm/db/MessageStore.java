@@ -15,8 +15,15 @@
  */
 package org.gdg_campinas.treffen.server.gcm.db;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+import org.gdg_campinas.treffen.server.gcm.db.models.BroadcastCheckpoint;
 import org.gdg_campinas.treffen.server.gcm.db.models.MulticastMessage;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -52,6 +59,7 @@ public final class MessageStore {
         msg.setDestinations(devices);
         msg.setAction(type);
         msg.setExtraData(extraData);
+        msg.setCreated(new Date());
         ofy().save().entity(msg).now();
         Long id = msg.getId();
         LOG.fine("Multicast ID: " + id);
@@ -95,4 +103,88 @@ public final class MessageStore {
         ofy().delete().type(MulticastMessage.class).id(id);
     }
 
+    /**
+     * Deletes leftover multicast records from a page of records: records created before
+     * {@code expiredBefore}, and records without a creation date, which were created before
+     * creation dates were stored.
+     *
+     * @param startCursor cursor returned with the previous page, or null for the first page.
+     * @param limit maximum number of records scanned.
+     */
+    public static VacuumBatch vacuumMulticasts(String startCursor, int limit, Date expiredBefore) {
+        Query<MulticastMessage> query = ofy().load().type(MulticastMessage.class)
+                .limit(limit).chunk(limit);
+        if (startCursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(startCursor));
+        }
+        QueryResultIterator<MulticastMessage> iterator = query.iterator();
+        List<Key<MulticastMessage>> toDelete = new ArrayList<>();
+        int scanned = 0;
+        while (iterator.hasNext()) {
+            MulticastMessage msg = iterator.next();
+            scanned++;
+            if (msg.getCreated() == null || msg.getCreated().before(expiredBefore)) {
+                toDelete.add(msg.getKey());
+            }
+        }
+        String nextCursor = scanned == limit ? iterator.getCursor().toWebSafeString() : null;
+        if (!toDelete.isEmpty()) {
+            ofy().delete().keys(toDelete).now();
+        }
+        return new VacuumBatch(scanned, toDelete.size(), nextCursor);
+    }
+
+    /**
+     * Gets the progress of a broadcast task.
+     *
+     * @param taskName name of the broadcast task.
+     * @return the checkpoint, or null if the task hasn't saved one yet.
+     */
+    public static BroadcastCheckpoint getBroadcastCheckpoint(String taskName) {
+        return ofy().load().type(BroadcastCheckpoint.class).id(taskName).now();
+    }
+
+    /**
+     * Saves the progress of a broadcast task.
+     *
+     * @param taskName name of the broadcast task.
+     * @param cursor cursor of the next page of device ids, or null if there are no more pages.
+     * @param done whether the task has queued all of its work.
+     */
+    public static void saveBroadcastCheckpoint(String taskName, String cursor, boolean done) {
+        BroadcastCheckpoint checkpoint = new BroadcastCheckpoint();
+        checkpoint.setTaskName(taskName);
+        checkpoint.setCursor(cursor);
+        checkpoint.setDone(done);
+        checkpoint.setUpdated(new Date());
+        ofy().save().entity(checkpoint).now();
+    }
+
+    /**
+     * Deletes a page of broadcast checkpoints last updated before {@code expiredBefore}, when the
+     * task queue no longer retries their tasks.
+     *
+     * @param startCursor cursor returned with the previous page, or null for the first page.
+     * @param limit maximum number of checkpoints scanned.
+     */
+    public static VacuumBatch vacuumBroadcastCheckpoints(String startCursor, int limit,
+            Date expiredBefore) {
+        Query<BroadcastCheckpoint> query = ofy().load().type(BroadcastCheckpoint.class)
+                .filter("updated <", expiredBefore).limit(limit).chunk(limit);
+        if (startCursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(startCursor));
+        }
+        QueryResultIterator<Key<BroadcastCheckpoint>> iterator = query.keys().iterator();
+        List<Key<BroadcastCheckpoint>> toDelete = new ArrayList<>();
+        while (iterator.hasNext()) {
+            toDelete.add(iterator.next());
+        }
+        String nextCursor = toDelete.size() == limit
+                ? iterator.getCursor().toWebSafeString() : null;
+        if (!toDelete.isEmpty()) {
+            ofy().delete().keys(toDelete).now();
+        }
+        return new VacuumBatch(toDelete.size(), toDelete.size(), nextCursor);
+    }
+
 }
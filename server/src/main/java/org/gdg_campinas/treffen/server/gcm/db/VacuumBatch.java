@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.gcm.db;
+
+/**
+ * Result of vacuuming a page of entities.
+ */
+public class VacuumBatch {
+    private final int scanned;
+    private final int deleted;
+    private final String nextCursor;
+
+    VacuumBatch(int scanned, int deleted, String nextCursor) {
+        this.scanned = scanned;
+        this.deleted = deleted;
+        this.nextCursor = nextCursor;
+    }
+
+    public int getScanned() {
+        return scanned;
+    }
+
+    public int getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return the cursor of the next page, or null if this was the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -20,12 +20,29 @@ import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 
+import java.io.Serializable;
+import java.util.Date;
+
 @Entity
-public class Device {
+public class Device implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     @Id private String deviceId;
 
     @Index private String userId;
 
+    /** Last time the device registered or its registration id was updated. */
+    @Index private Date lastActive;
+
+    /**
+     * Number of messages that could not be delivered to the device after all retries, each within
+     * a failure window of the previous one.
+     */
+    private int sendFailures;
+
+    /** Last time a message could not be delivered to the device. */
+    private Date lastSendFailure;
+
     public String getDeviceId() {
         return deviceId;
     }
@@ -41,4 +58,28 @@ public class Device {
     public void setUserId(String userId) {
         this.userId = userId;
     }
+
+    public Date getLastActive() {
+        return lastActive;
+    }
+
+    public void setLastActive(Date lastActive) {
+        this.lastActive = lastActive;
+    }
+
+    public int getSendFailures() {
+        return sendFailures;
+    }
+
+    public void setSendFailures(int sendFailures) {
+        this.sendFailures = sendFailures;
+    }
+
+    public Date getLastSendFailure() {
+        return lastSendFailure;
+    }
+
+    public void setLastSendFailure(Date lastSendFailure) {
+        this.lastSendFailure = lastSendFailure;
+    }
 }
@@ -19,7 +19,9 @@ package org.gdg_campinas.treffen.server.gcm.db.models;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
 
+import java.util.Date;
 import java.util.List;
 
 @Entity
@@ -28,6 +30,7 @@ public class MulticastMessage {
     private String action;
     private String extraData;
     private List<String> destinations;
+    @Index private Date created;
 
     public Key<MulticastMessage> getKey() {
         return Key.create(MulticastMessage.class, id);
@@ -61,4 +64,12 @@ public class MulticastMessage {
     public void setDestinations(List<String> destinations) {
         this.destinations = destinations;
     }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
 }
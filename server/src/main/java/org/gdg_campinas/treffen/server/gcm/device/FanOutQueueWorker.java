@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.gcm.device;
+
+import org.gdg_campinas.treffen.server.gcm.BaseServlet;
+import org.gdg_campinas.treffen.server.gcm.db.DeviceStore;
+import org.gdg_campinas.treffen.server.gcm.db.MessageStore;
+import org.gdg_campinas.treffen.server.gcm.db.models.BroadcastCheckpoint;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that fans out a message to devices, in two levels: a broadcast task reads pages of
+ * registered device ids and queues send tasks with up to 500 device ids each, and each send task
+ * sends the message to its devices. Send tasks run in parallel, limited by the rate and
+ * concurrency of FcmFanOutQueue.
+ *
+ * <p>This class should not be called directly. Instead, it's used as a helper
+ * for the FcmFanOutQueue task queue.
+ */
+@SuppressWarnings("serial")
+public class FanOutQueueWorker extends BaseServlet {
+
+    private static final String TASK_NAME_HEADER = "X-AppEngine-TaskName";
+    /** Device ids read from the datastore at a time. */
+    private static final int PAGE_SIZE = 5000;
+    /** Time after which a broadcast continues in a new task, well within the task deadline. */
+    private static final long TIME_BUDGET_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private MessageSender mSender;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        mSender = new MessageSender(config);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        if (!checkQueueRequest(req, resp)) {
+            return;
+        }
+        String action = getParameter(req, MessageSender.PARAM_ACTION);
+        String extraData = req.getParameter(MessageSender.PARAM_EXTRA_DATA);
+        if (Boolean.parseBoolean(req.getParameter(MessageSender.PARAM_BROADCAST))) {
+            broadcast(req.getHeader(TASK_NAME_HEADER), action, extraData,
+                    req.getParameter(MessageSender.PARAM_CURSOR));
+        } else {
+            String deviceIds = getParameter(req, MessageSender.PARAM_DEVICE_IDS);
+            int attempt = Integer.parseInt(getParameter(req, MessageSender.PARAM_ATTEMPT, "1"));
+            mSender.sendChunk(Arrays.asList(deviceIds.split(",")), action, extraData, attempt);
+        }
+        // Failed sends are queued again by the sender, so this task is always done.
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Reads pages of device ids and queues send tasks for each page. If the time budget runs out,
+     * the broadcast continues in a new task, starting at the next page.
+     *
+     * <p>The cursor of the next page is saved in the datastore after each page, so if this task
+     * fails and is retried, it resumes at the last saved page. The devices of the page that was
+     * being queued when the task failed may get the message twice.
+     */
+    private void broadcast(String taskName, String action, String extraData, String cursor) {
+        if (taskName != null) {
+            BroadcastCheckpoint checkpoint = MessageStore.getBroadcastCheckpoint(taskName);
+            if (checkpoint != null && checkpoint.isDone()) {
+                logger.info("Broadcast task " + taskName + " was already done");
+                return;
+            } else if (checkpoint != null) {
+                logger.info("Resuming broadcast task " + taskName);
+                cursor = checkpoint.getCursor();
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        int total = 0;
+        do {
+            DeviceStore.DeviceIdPage page = DeviceStore.getDeviceIdPage(cursor, PAGE_SIZE);
+            total += mSender.multicastSendToIds(page.getDeviceIds(), action, extraData);
+            cursor = page.getNextCursor();
+            saveCheckpoint(taskName, cursor, false);
+        } while (cursor != null && System.currentTimeMillis() - start < TIME_BUDGET_MS);
+
+        if (cursor != null) {
+            mSender.queueBroadcast(action, extraData, cursor, continuationName(taskName, cursor));
+        }
+        saveCheckpoint(taskName, cursor, true);
+        logger.info("Broadcast of " + action + " queued to " + total + " devices"
+                + (cursor != null ? ", continuing in a new task" : ""));
+    }
+
+    private void saveCheckpoint(String taskName, String cursor, boolean done) {
+        if (taskName != null) {
+            MessageStore.saveBroadcastCheckpoint(taskName, cursor, done);
+        }
+    }
+
+    /**
+     * Returns the same task name for each retry of a task that continues at the same cursor, so
+     * the continuation is queued only once.
+     */
+    private static String continuationName(String taskName, String cursor) {
+        if (taskName == null) {
+            return null;
+        }
+        String key = taskName + "/" + cursor;
+        return "broadcast-" + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -24,12 +24,16 @@ import org.gdg_campinas.treffen.server.gcm.db.models.MulticastMessage;
 import com.google.android.gcm.server.*;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
 import com.google.appengine.api.taskqueue.TaskOptions;
 
 import javax.servlet.ServletConfig;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,10 +50,37 @@ public class MessageSender {
     private String mApiKey;
     private Sender mGcmService;
 
-    private static final int TTL = (int) TimeUnit.MINUTES.toSeconds(300);
+    /** Time to live of messages, in seconds. */
+    public static final int TTL = (int) TimeUnit.MINUTES.toSeconds(300);
     protected final Logger mLogger = Logger.getLogger(getClass().getName());
-    /** Maximum devices in a multicast message */
-    private static final int MAX_DEVICES = 1000;
+    /** Queue of the fan-out tasks, see queue.xml for its rate and concurrency budget. */
+    static final String FAN_OUT_QUEUE = "FcmFanOutQueue";
+    static final String FAN_OUT_URL = "/queue/fanout";
+    static final String PARAM_BROADCAST = "broadcast";
+    static final String PARAM_ACTION = "action";
+    static final String PARAM_EXTRA_DATA = "extraData";
+    static final String PARAM_DEVICE_IDS = "deviceIds";
+    static final String PARAM_ATTEMPT = "attempt";
+    static final String PARAM_CURSOR = "cursor";
+
+    static final String CLEANUP_QUEUE = "FcmCleanupQueue";
+    static final String CLEANUP_URL = "/queue/fcmcleanup";
+    static final String PARAM_CANONICAL_IDS = "canonicalIds";
+    static final String PARAM_UNREGISTERED_IDS = "unregisteredIds";
+    static final String PARAM_FAILED_IDS = "failedIds";
+    /**
+     * Maximum devices in a fan-out task. Device ids are sent in the task itself, so this keeps the
+     * task under the 100KB task size limit.
+     */
+    private static final int MAX_DEVICES_PER_TASK = 500;
+    /** Each canonical id entry has two registration ids, so it gets half as many per task. */
+    private static final int MAX_DEVICES_PER_CLEANUP_TASK = MAX_DEVICES_PER_TASK / 2;
+    /** Maximum tasks added to a queue in a single call. */
+    private static final int MAX_TASKS_PER_ADD = 100;
+    /** Maximum attempts to send a message to a device that is temporarily unavailable. */
+    private static final int MAX_ATTEMPTS = 7;
+    private static final long MIN_BACKOFF_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_BACKOFF_MS = TimeUnit.SECONDS.toMillis(200);
 
     public MessageSender(ServletConfig config) {
         mApiKey = (String) config.getServletContext().getAttribute(
@@ -63,82 +94,259 @@ public class MessageSender {
         mGcmService = new Sender(mApiKey);
     }
 
-    public void multicastSend(List<Device> devices, String action, String extraData) {
-        Queue queue = QueueFactory.getQueue("MulticastMessagesQueue");
+    /**
+     * Sends a message to all registered devices. Only a single task is queued here, which then
+     * queues the tasks that send the message (see {@link FanOutQueueWorker}), so this returns
+     * right away regardless of the number of devices.
+     */
+    public void broadcastSend(String action, String extraData) {
+        queueBroadcast(action, extraData, null, null);
+    }
+
+    /**
+     * Queues a broadcast task that reads the registered devices starting at the given cursor.
+     *
+     * @param taskName name of the task, or null to let the queue name it. A named task is queued
+     *     only once, so a retried task that queues the same continuation again doesn't duplicate it.
+     */
+    void queueBroadcast(String action, String extraData, String cursor, String taskName) {
+        TaskOptions taskOptions = TaskOptions.Builder
+                .withUrl(FAN_OUT_URL)
+                .param(PARAM_BROADCAST, Boolean.TRUE.toString())
+                .param(PARAM_ACTION, action)
+                .method(TaskOptions.Method.POST);
+        if (extraData != null) {
+            taskOptions.param(PARAM_EXTRA_DATA, extraData);
+        }
+        if (cursor != null) {
+            taskOptions.param(PARAM_CURSOR, cursor);
+        }
+        if (taskName != null) {
+            taskOptions.taskName(taskName);
+        }
+        try {
+            QueueFactory.getQueue(FAN_OUT_QUEUE).add(taskOptions);
+        } catch (TaskAlreadyExistsException e) {
+            mLogger.info("Broadcast task " + taskName + " was already queued");
+            return;
+        }
+        mLogger.fine("Queued broadcast of " + action);
+    }
 
-        // Split messages into batches for multicast
-        // GCM limits maximum devices per multicast request. AppEngine also limits the size of
-        // lists stored in the datastore.
-        int total = devices.size();
-        List<String> partialDevices = new ArrayList<>(total);
-        int counter = 0;
+    /**
+     * Queues tasks that send the message to the given devices. The device ids are packed into the
+     * tasks, so the devices are read only once and nothing is written to the datastore.
+     *
+     * @return the number of devices the message was queued to
+     */
+    public int multicastSend(List<Device> devices, String action, String extraData) {
+        List<String> deviceIds = new ArrayList<>(devices.size());
         for (Device device : devices) {
-            counter ++;
-            partialDevices.add(device.getDeviceId());
-            int partialSize = partialDevices.size();
-            if (partialSize == MAX_DEVICES || counter == total) {
-                // Send multicast message
-                Long multicastKey = MessageStore.createMulticast(partialDevices,
-                        action,
-                        extraData);
-                mLogger.fine("Queuing " + partialSize + " devices on multicast " + multicastKey);
-                TaskOptions taskOptions = TaskOptions.Builder
-                        .withUrl("/queue/send")
-                        .param("multicastKey", Long.toString(multicastKey))
-                        .method(TaskOptions.Method.POST);
-                queue.add(taskOptions);
-                partialDevices.clear();
+            deviceIds.add(device.getDeviceId());
+        }
+        return multicastSendToIds(deviceIds, action, extraData);
+    }
+
+    /**
+     * Same as {@link #multicastSend(List, String, String)}, for devices given by id.
+     */
+    public int multicastSendToIds(List<String> deviceIds, String action, String extraData) {
+        Queue queue = QueueFactory.getQueue(FAN_OUT_QUEUE);
+
+        List<TaskOptions> tasks = new ArrayList<>(MAX_TASKS_PER_ADD);
+        for (int i = 0; i < deviceIds.size(); i += MAX_DEVICES_PER_TASK) {
+            List<String> partialDevices = deviceIds.subList(i,
+                    Math.min(i + MAX_DEVICES_PER_TASK, deviceIds.size()));
+            tasks.add(newSendTask(partialDevices, action, extraData, 1));
+            if (tasks.size() == MAX_TASKS_PER_ADD) {
+                queue.add(tasks);
+                tasks.clear();
+            }
+        }
+        if (!tasks.isEmpty()) {
+            queue.add(tasks);
+        }
+        mLogger.fine("Queued message to " + deviceIds.size() + " devices");
+        return deviceIds.size();
+    }
+
+    /**
+     * Sends the message to a chunk of devices, queuing a new task for the devices that were
+     * temporarily unavailable.
+     */
+    void sendChunk(List<String> devices, String action, String extraData, int attempt) {
+        List<String> retriableRegIds;
+        try {
+            retriableRegIds = send(devices, action, extraData);
+        } catch (IOException e) {
+            mLogger.log(Level.WARNING, "Exception sending " + action + " to " + devices.size()
+                    + " devices", e);
+            retriableRegIds = devices;
+        }
+        if (retriableRegIds.isEmpty()) {
+            return;
+        }
+        if (attempt >= MAX_ATTEMPTS) {
+            mLogger.warning("Giving up sending " + action + " to " + retriableRegIds.size()
+                    + " devices after " + attempt + " attempts");
+            // count the failures, so that devices that are never reachable are vacuumed
+            queueRegistrationCleanup(Collections.<String, String>emptyMap(),
+                    Collections.<String>emptyList(), retriableRegIds);
+            return;
+        }
+        long backoff = Math.min(MIN_BACKOFF_MS << (attempt - 1), MAX_BACKOFF_MS);
+        QueueFactory.getQueue(FAN_OUT_QUEUE).add(
+                newSendTask(retriableRegIds, action, extraData, attempt + 1).countdownMillis(backoff));
+    }
+
+    /**
+     * Queues tasks that update canonical registration ids, unregister devices and count failures
+     * in batches, see {@link RegistrationCleanupQueueWorker}.
+     */
+    private void queueRegistrationCleanup(Map<String, String> canonicalRegIds,
+            List<String> unregisteredRegIds, List<String> failedRegIds) {
+        if (canonicalRegIds.isEmpty() && unregisteredRegIds.isEmpty() && failedRegIds.isEmpty()) {
+            return;
+        }
+        List<TaskOptions> tasks = new ArrayList<>();
+        StringBuilder canonical = new StringBuilder();
+        int count = 0;
+        for (Map.Entry<String, String> entry : canonicalRegIds.entrySet()) {
+            if (canonical.length() > 0) {
+                canonical.append(',');
             }
+            canonical.append(entry.getKey()).append('=').append(entry.getValue());
+            if (++count == MAX_DEVICES_PER_CLEANUP_TASK) {
+                tasks.add(newCleanupTask(PARAM_CANONICAL_IDS, canonical));
+                canonical.setLength(0);
+                count = 0;
+            }
+        }
+        if (canonical.length() > 0) {
+            tasks.add(newCleanupTask(PARAM_CANONICAL_IDS, canonical));
         }
-        mLogger.fine("Queued message to " + total + " devices");
+        addCleanupTasks(tasks, PARAM_UNREGISTERED_IDS, unregisteredRegIds);
+        addCleanupTasks(tasks, PARAM_FAILED_IDS, failedRegIds);
+        QueueFactory.getQueue(CLEANUP_QUEUE).add(tasks);
+        mLogger.fine("Queued cleanup of " + canonicalRegIds.size() + " canonical ids, "
+                + unregisteredRegIds.size() + " unregistered devices and "
+                + failedRegIds.size() + " failed devices");
     }
 
+    private void addCleanupTasks(List<TaskOptions> tasks, String param, List<String> regIds) {
+        for (int i = 0; i < regIds.size(); i += MAX_DEVICES_PER_TASK) {
+            StringBuilder value = new StringBuilder();
+            for (String regId : regIds.subList(i,
+                    Math.min(i + MAX_DEVICES_PER_TASK, regIds.size()))) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(regId);
+            }
+            tasks.add(newCleanupTask(param, value));
+        }
+    }
+
+    private TaskOptions newCleanupTask(String param, CharSequence value) {
+        return TaskOptions.Builder
+                .withUrl(CLEANUP_URL)
+                .param(param, value.toString())
+                .method(TaskOptions.Method.POST);
+    }
+
+    private TaskOptions newSendTask(List<String> devices, String action, String extraData,
+            int attempt) {
+        StringBuilder deviceIds = new StringBuilder();
+        for (String device : devices) {
+            if (deviceIds.length() > 0) {
+                deviceIds.append(',');
+            }
+            deviceIds.append(device);
+        }
+        TaskOptions taskOptions = TaskOptions.Builder
+                .withUrl(FAN_OUT_URL)
+                .param(PARAM_ACTION, action)
+                .param(PARAM_DEVICE_IDS, deviceIds.toString())
+                .param(PARAM_ATTEMPT, Integer.toString(attempt))
+                .method(TaskOptions.Method.POST);
+        if (extraData != null) {
+            taskOptions.param(PARAM_EXTRA_DATA, extraData);
+        }
+        return taskOptions;
+    }
+
+    /**
+     * Sends a message stored in the datastore. Only used for tasks queued on
+     * MulticastMessagesQueue before the fan-out tasks were introduced.
+     */
     boolean sendMessage(Long multicastId) {
         MulticastMessage msg = MessageStore.getMulticast(multicastId);
+        if (msg == null) {
+            // already sent, or removed by VacuumDbServlet
+            mLogger.info("No entity for multicast ID: " + multicastId);
+            return true;
+        }
         List<String> devices = msg.getDestinations();
-        String action = msg.getAction();
+        // We occasionally see null messages. (Maybe due to squelch?)
+        // We should these from entering the send queue in the first place. In the meantime,
+        // here's a hack to prevent this.
+        if (devices == null) {
+            mLogger.info("Null device list detected. Aborting.");
+            return true;
+        }
+        List<String> retriableRegIds;
+        try {
+            retriableRegIds = send(devices, msg.getAction(), msg.getExtraData());
+        } catch (IOException e) {
+            mLogger.log(Level.SEVERE, "Exception posting multicast " + multicastId, e);
+            return true;
+        }
+        if (!retriableRegIds.isEmpty()) {
+            // update task
+            MessageStore.updateMulticast(multicastId, retriableRegIds);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a message to the devices and handles the results.
+     *
+     * @return the devices to which the message should be sent again
+     */
+    private List<String> send(List<String> devices, String action, String extraData)
+            throws IOException {
         Message.Builder builder = new Message.Builder();
         if (action == null || action.length() == 0) {
             throw new IllegalArgumentException("Message action cannot be empty.");
         }
         builder.collapseKey(action)
                     .addData("action", action)
-                    .addData("extraData", msg.getExtraData())
+                    .addData("extraData", extraData)
                     .contentAvailable(true)
                     .timeToLive(TTL);
         Message message = builder.build();
-        MulticastResult multicastResult = null;
-        try {
-            // We occasionally see null messages. (Maybe due to squelch?)
-            // We should these from entering the send queue in the first place. In the meantime,
-            // here's a hack to prevent this.
-            if (devices != null) {
-                multicastResult = mGcmService.sendNoRetry(message, devices);
-                mLogger.info("Result: " + multicastResult);
-            } else {
-                mLogger.info("Null device list detected. Aborting.");
-                return true;
-            }
-        } catch (IOException e) {
-            mLogger.log(Level.SEVERE, "Exception posting " + message, e);
-            return true;
-        }
-        boolean allDone = true;
+        MulticastResult multicastResult = mGcmService.sendNoRetry(message, devices);
+        mLogger.info("Result: " + multicastResult);
+
+        // Registration changes are collected here and applied in a cleanup task, so that this
+        // task only talks to the FCM server.
+        Map<String, String> canonicalRegIds = new LinkedHashMap<>();
+        List<String> unregisteredRegIds = new ArrayList<>();
         // check if any registration id must be updated
         if (multicastResult.getCanonicalIds() != 0) {
             List<Result> results = multicastResult.getResults();
             for (int i = 0; i < results.size(); i++) {
                 String canonicalRegId = results.get(i).getCanonicalRegistrationId();
                 if (canonicalRegId != null) {
-                    String regId = devices.get(i);
-                    DeviceStore.updateRegistration(regId, canonicalRegId);
+                    canonicalRegIds.put(devices.get(i), canonicalRegId);
                 }
             }
         }
+        List<String> retriableRegIds = new ArrayList<>();
         if (multicastResult.getFailure() != 0) {
             // there were failures, check if any could be retried
             List<Result> results = multicastResult.getResults();
-            List<String> retriableRegIds = new ArrayList<>();
             for (int i = 0; i < results.size(); i++) {
                 String error = results.get(i).getErrorCodeName();
                 if (error != null) {
@@ -146,25 +354,17 @@ public class MessageSender {
                     mLogger.warning("Got error (" + error + ") for regId " + regId);
                     if (error.equals(Constants.ERROR_NOT_REGISTERED)) {
                         // application has been removed from device - unregister it
-                        DeviceStore.unregister(regId);
+                        unregisteredRegIds.add(regId);
                     }
                     if (error.equals(Constants.ERROR_UNAVAILABLE)) {
                         retriableRegIds.add(regId);
                     }
                 }
             }
-            if (!retriableRegIds.isEmpty()) {
-                // update task
-                MessageStore.updateMulticast(multicastId, retriableRegIds);
-                allDone = false;
-                return false;
-            }
-        }
-        if (allDone) {
-            return true;
-        } else {
-            return false;
         }
+        queueRegistrationCleanup(canonicalRegIds, unregisteredRegIds,
+                Collections.<String>emptyList());
+        return retriableRegIds;
     }
 
 }
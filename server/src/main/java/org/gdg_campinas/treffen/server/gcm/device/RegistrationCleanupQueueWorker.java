@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.gcm.device;
+
+import org.gdg_campinas.treffen.server.gcm.BaseServlet;
+import org.gdg_campinas.treffen.server.gcm.db.DeviceStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that applies the registration changes reported by FCM while sending messages: devices
+ * with a new canonical registration id, devices that are no longer registered and devices that
+ * messages couldn't be delivered to.
+ *
+ * <p>This class should not be called directly. Instead, it's used as a helper
+ * for the FcmCleanupQueue task queue. Requests that don't come from a task queue are rejected,
+ * as they could delete or re-key any device.
+ */
+@SuppressWarnings("serial")
+public class RegistrationCleanupQueueWorker extends BaseServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!checkQueueRequest(req, resp)) {
+            return;
+        }
+        Map<String, String> canonicalIds = new LinkedHashMap<>();
+        for (String pair : split(req.getParameter(MessageSender.PARAM_CANONICAL_IDS))) {
+            int i = pair.indexOf('=');
+            if (i > 0) {
+                canonicalIds.put(pair.substring(0, i), pair.substring(i + 1));
+            }
+        }
+        List<String> unregisteredIds = split(req.getParameter(MessageSender.PARAM_UNREGISTERED_IDS));
+        List<String> failedIds = split(req.getParameter(MessageSender.PARAM_FAILED_IDS));
+        // Any datastore failure makes the task fail, so it's retried by the queue.
+        DeviceStore.applyRegistrationChanges(canonicalIds, unregisteredIds, failedIds);
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private List<String> split(String value) {
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.isEmpty()) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+}
@@ -52,12 +52,41 @@ public interface Config {
   public final String MANIFEST_NAME = "manifest_v"+MANIFEST_VERSION+".json";
   public final String MANIFEST_NAME_STAGING = "manifest_v"+MANIFEST_VERSION+"__qa_.json";
 
+  // Delta from the previous session data file to the one with the given version. The last
+  // SESSIONS_DELTA_CHAIN_LENGTH deltas are listed in the manifest, so clients that are a few
+  // versions behind can catch up without downloading the whole session data file.
+  public final String SESSIONS_DELTA_FORMAT = "session_data_delta_v{0,number,integer}.{1,number,integer}.json";
+  public final String DELTA_FORMAT_VERSION = "iosched-json-delta-v1";
+  public final int SESSIONS_DELTA_CHAIN_LENGTH = 10;
+  // Store session data and delta files gzipped (Content-Encoding: gzip).
+  public final boolean GZIP_DATA_FILES = true;
+
   public final boolean DEBUG_FIX_DATA = false;
   public final boolean SHOW_UNPUBLISHED_DATA=false;
 
   public final long TIME_TRAVEL_SHIFT = 0; //Used for dogfooding: -29 * (24*60*60*1000L);
   public final String VIDEO_CATEGORY = "f04c9884-9dd8-e411-b87f-00155d5066d7";
 
+  // Maximum number of data source inputs fetched at the same time by the updater, and how long each
+  // one of them can take:
+  public final int DATA_SOURCE_FETCH_PARALLELISM = 4;
+  public final long DATA_SOURCE_FETCH_TIMEOUT_MS = 60 * 1000;
+
+  // Number of CMS result pages fetched at the same time once the first page is known:
+  public final int VENDOR_PAGE_FETCH_FANOUT = 4;
+
+  // Maximum number of session transactions running at the same time when loading sessions into
+  // the reservation system, and how long the whole load can take:
+  public final int RESERVATION_RECONCILE_MAX_IN_FLIGHT = 20;
+  public final long RESERVATION_RECONCILE_TIMEOUT_MS = 5 * 60 * 1000;
+
+  // Number of images fetched at the same time when importing images from the CMS, and number of
+  // threads storing them in GCS and creating their serving URLs:
+  public final int IMAGE_FETCH_MAX_IN_FLIGHT = 16;
+  public final int IMAGE_UPDATE_PARALLELISM = 4;
+  // Widths of the pre-sized variants stored for each image, used by ImageLoader on the clients:
+  public final int[] IMAGE_WIDTH_BUCKETS = {200, 400, 600, 800, 1000};
+
   public final String CLOUD_STORAGE_BUCKET = "io2016-bucket-dev";
   public final String CLOUD_STORAGE_BASE_URL = "https://storage.googleapis.com/"+CLOUD_STORAGE_BUCKET+"/";
 
@@ -21,17 +21,24 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import org.gdg_campinas.treffen.server.RequestExecutors;
 import org.gdg_campinas.treffen.server.schedule.Config;
 import org.gdg_campinas.treffen.server.schedule.server.cloudstorage.CloudFileManager;
 import org.gdg_campinas.treffen.server.schedule.server.ManifestData;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 
@@ -46,6 +53,8 @@ public class DataCheck {
 
   private CloudFileManager fileManager;
 
+  // Each format is only used by one thread: blocks are parsed before the rules run in parallel,
+  // and sessions are parsed by the sessions rule.
   private SimpleDateFormat sessionDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
   private SimpleDateFormat blockDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 
@@ -54,67 +63,31 @@ public class DataCheck {
   }
 
   /**
+   * Compares the new data with the data of the current manifest and checks its consistency.
+   *
+   * The free blocks are indexed once, so each session is matched to its block with a binary
+   * search. The independent families of rules are evaluated in parallel, and their failures are
+   * reported in the same order as if they were evaluated one after the other.
+   *
    * @param sources
    */
   public CheckResult check(JsonDataSources sources, JsonObject newSessionData, ManifestData manifest) throws IOException {
-    newSessionData = clone(newSessionData);
-    JsonObject newData = new JsonObject();
+    final JsonObject newData = new JsonObject();
     merge(newSessionData, newData);
-    JsonObject oldData = new JsonObject();
+    final JsonObject oldData = new JsonObject();
     for (JsonElement dataFile: manifest.dataFiles) {
       String filename = dataFile.getAsString();
       // except for session data, merge all other files:
       Matcher matcher = Config.SESSIONS_PATTERN.matcher(filename);
       if (!matcher.matches()) {
-        JsonObject data = fileManager.readFileAsJsonObject(filename);
+        // The cached object is shared, merge never changes its source.
+        JsonObject data = fileManager.readFileAsJsonObjectCached(filename);
         merge(data, oldData);
         merge(data, newData);
       }
     }
 
-    CheckResult result = new CheckResult();
-
-    // check if array of entities is more than 80% the size of the old data:
-    checkUsingPredicator(result, oldData, newData, new ArraySizeValidator());
-
-    // Check that no existing tag was removed or had its name changed in a significant way
-    checkUsingPredicator(result, oldData, newData,
-        OutputJsonKeys.MainTypes.tags, OutputJsonKeys.Tags.tag,
-        new EntityValidator() {
-          @Override
-          public void evaluate(CheckResult result, String entity, JsonObject oldData,
-              JsonObject newData) {
-            if (newData == null) {
-              String tagName = DataModelHelper.get(oldData, OutputJsonKeys.Tags.tag).getAsString();
-              String originalId = DataModelHelper.get(oldData, OutputJsonKeys.Tags.original_id).getAsString();
-              result.failures.add(
-                  new CheckFailure(entity, tagName,
-                      "Tag could not be found or changed name. Original category ID = " + originalId)
-                  );
-            }
-          }
-        });
-
-    // Check that no room was removed
-    checkUsingPredicator(result, oldData, newData,
-        OutputJsonKeys.MainTypes.rooms, OutputJsonKeys.Rooms.id,
-        new EntityValidator() {
-          @Override
-          public void evaluate(CheckResult result, String entity, JsonObject oldData,
-              JsonObject newData) {
-            if (newData == null) {
-              String id = DataModelHelper.get(oldData, OutputJsonKeys.Rooms.id).getAsString();
-              result.failures.add(
-                  new CheckFailure(entity, id,
-                      "Room could not be found. Original room: " + oldData)
-                  );
-            }
-          }
-        });
-
-    // Check if blocks start and end timestamps are valid
     JsonArray newBlocks = DataModelHelper.getAsArray(newData, OutputJsonKeys.MainTypes.blocks);
-    LOG.info(newData.toString());
     if (newBlocks == null ) {
       StringBuilder sb= new StringBuilder();
       for (Map.Entry<String, JsonElement> entry: newData.entrySet()) {
@@ -122,7 +95,123 @@ public class DataCheck {
       }
       throw new IllegalArgumentException("Could not find the blocks entities. Entities in newData are: "+sb);
     }
-    for (JsonElement el: newBlocks) {
+    // Check if blocks start and end timestamps are valid, parsing them only once
+    final CheckResult blocksResult = new CheckResult();
+    final FreeBlockIndex freeBlocks = indexBlocks(blocksResult, newBlocks);
+
+    List<Callable<CheckResult>> rules = new ArrayList<>();
+    rules.add(new Callable<CheckResult>() {
+      @Override
+      public CheckResult call() {
+        CheckResult result = new CheckResult();
+        // check if array of entities is more than 80% the size of the old data:
+        checkUsingPredicator(result, oldData, newData, new ArraySizeValidator());
+        return result;
+      }
+    });
+    rules.add(new Callable<CheckResult>() {
+      @Override
+      public CheckResult call() {
+        CheckResult result = new CheckResult();
+        // Check that no existing tag was removed or had its name changed in a significant way
+        checkUsingPredicator(result, oldData, newData,
+            OutputJsonKeys.MainTypes.tags, OutputJsonKeys.Tags.tag,
+            new EntityValidator() {
+              @Override
+              public void evaluate(CheckResult result, String entity, JsonObject oldData,
+                  JsonObject newData) {
+                if (newData == null) {
+                  String tagName = DataModelHelper.get(oldData, OutputJsonKeys.Tags.tag).getAsString();
+                  String originalId = DataModelHelper.get(oldData, OutputJsonKeys.Tags.original_id).getAsString();
+                  result.failures.add(
+                      new CheckFailure(entity, tagName,
+                          "Tag could not be found or changed name. Original category ID = " + originalId)
+                      );
+                }
+              }
+            });
+
+        // Check that no room was removed
+        checkUsingPredicator(result, oldData, newData,
+            OutputJsonKeys.MainTypes.rooms, OutputJsonKeys.Rooms.id,
+            new EntityValidator() {
+              @Override
+              public void evaluate(CheckResult result, String entity, JsonObject oldData,
+                  JsonObject newData) {
+                if (newData == null) {
+                  String id = DataModelHelper.get(oldData, OutputJsonKeys.Rooms.id).getAsString();
+                  result.failures.add(
+                      new CheckFailure(entity, id,
+                          "Room could not be found. Original room: " + oldData)
+                      );
+                }
+              }
+            });
+        return result;
+      }
+    });
+    rules.add(new Callable<CheckResult>() {
+      @Override
+      public CheckResult call() {
+        return blocksResult;
+      }
+    });
+    rules.add(new Callable<CheckResult>() {
+      @Override
+      public CheckResult call() {
+        CheckResult result = new CheckResult();
+        checkSessions(result,
+            DataModelHelper.getAsArray(newData, OutputJsonKeys.MainTypes.sessions), freeBlocks);
+        return result;
+      }
+    });
+    rules.add(new Callable<CheckResult>() {
+      @Override
+      public CheckResult call() {
+        CheckResult result = new CheckResult();
+        checkVideoLibrary(result,
+            DataModelHelper.getAsArray(newData, OutputJsonKeys.MainTypes.video_library));
+        return result;
+      }
+    });
+
+    return evaluate(rules);
+  }
+
+  /**
+   * Evaluates the rules in parallel and concatenates their failures in the order of the rules.
+   */
+  private CheckResult evaluate(List<Callable<CheckResult>> rules) throws IOException {
+    ExecutorService executor = RequestExecutors.newFixedThreadPool(rules.size());
+    try {
+      List<Future<CheckResult>> futures = executor.invokeAll(rules);
+      CheckResult result = new CheckResult();
+      for (Future<CheckResult> future: futures) {
+        result.failures.addAll(future.get().failures);
+      }
+      return result;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while checking data");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Error while checking data", cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Checks the start and end of every block and indexes the free blocks.
+   */
+  private FreeBlockIndex indexBlocks(CheckResult result, JsonArray blocks) {
+    FreeBlockIndex.Builder freeBlocks = new FreeBlockIndex.Builder();
+    for (JsonElement el: blocks) {
       JsonObject block = el.getAsJsonObject();
       try {
         Date start = blockDateFormat.parse(DataModelHelper.get(block, OutputJsonKeys.Blocks.start).getAsString());
@@ -134,6 +223,9 @@ public class DataCheck {
               new CheckFailure(OutputJsonKeys.MainTypes.blocks.name(), null,
                   "Invalid block start or end date. Block=" + block));
         }
+        if ("free".equals(DataModelHelper.get(block, OutputJsonKeys.Blocks.type).getAsString())) {
+          freeBlocks.add(start.getTime(), end.getTime());
+        }
       } catch (ParseException ex) {
         result.failures.add(
             new CheckFailure(OutputJsonKeys.MainTypes.blocks.name(), null,
@@ -141,61 +233,52 @@ public class DataCheck {
                 +". Block=" + block));
       }
     }
+    return freeBlocks.build();
+  }
 
-    // Check if sessions start and end timestamps are valid
-    JsonArray newSessions = DataModelHelper.getAsArray(newData, OutputJsonKeys.MainTypes.sessions);
+  /**
+   * Checks if sessions start and end timestamps are valid.
+   */
+  private void checkSessions(CheckResult result, JsonArray newSessions,
+      FreeBlockIndex freeBlocks) {
     for (JsonElement el: newSessions) {
       JsonObject session = el.getAsJsonObject();
+      String id = DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString();
       try {
         Date start = sessionDateFormat.parse(DataModelHelper.get(session, OutputJsonKeys.Sessions.startTimestamp).getAsString());
         Date end = sessionDateFormat.parse(DataModelHelper.get(session, OutputJsonKeys.Sessions.endTimestamp).getAsString());
         if ( start.getTime() >= end.getTime() ) {  // check for invalid start/end combinations
           result.failures.add(
-              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString(),
+              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), id,
                   "Session ends before or at the same time as it starts. Session=" + session));
         } else if ( end.getTime() - start.getTime() > 6 * 60 * 60 * 1000L ) { // check for session longer than 6 hours
           result.failures.add(
-              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString(),
+              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), id,
                   "Session is longer than 6 hours. Session=" + session));
         } else if ( start.getTime() < Config.CONFERENCE_DAYS[0][0] || // check for session starting before the conference
             end.getTime() > Config.CONFERENCE_DAYS[1][1]) {  // check for session ending after the conference
           result.failures.add(
-              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString(),
+              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), id,
                   "Session starts before or ends after the days of the conference. Session=" + session));
-        } else {
+        } else if (!id.equals("__keynote__") && !freeBlocks.isInFreeBlock(start.getTime())) {
           // Check if all sessions are covered by at least one free block (except the keynote):
-          boolean valid = false;
-          if (!DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString().equals("__keynote__")) {
-            for (JsonElement bl: newBlocks) {
-              JsonObject block = bl.getAsJsonObject();
-              Date blockStart= blockDateFormat.parse(DataModelHelper.get(block, OutputJsonKeys.Blocks.start).getAsString());
-              Date blockEnd = blockDateFormat.parse(DataModelHelper.get(block, OutputJsonKeys.Blocks.end).getAsString());
-              String blockType = DataModelHelper.get(block, OutputJsonKeys.Blocks.type).getAsString();
-              if ("free".equals(blockType) &&
-                  start.compareTo(blockStart) >= 0 &&
-                  start.compareTo(blockEnd) < 0) {
-                valid = true;
-                break;
-              }
-            }
-            if (!valid) {
-              result.failures.add(
-                  new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString(),
-                      "There is no FREE block where this session start date lies on. Session=" + session));
-            }
-          }
+          result.failures.add(
+              new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), id,
+                  "There is no FREE block where this session start date lies on. Session=" + session));
         }
       } catch (ParseException ex) {
         result.failures.add(
-            new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), DataModelHelper.get(session, OutputJsonKeys.Sessions.id).getAsString(),
+            new CheckFailure(OutputJsonKeys.MainTypes.sessions.name(), id,
                 "Could not parse session start or end date. Exception="+ex.getMessage()
                 +". Session=" + session));
       }
     }
+  }
 
-
-    // Check if video sessions (video library) have valid video URLs
-    JsonArray newVideoLibrary = DataModelHelper.getAsArray(newData, OutputJsonKeys.MainTypes.video_library);
+  /**
+   * Checks if video sessions (video library) have valid video URLs.
+   */
+  private void checkVideoLibrary(CheckResult result, JsonArray newVideoLibrary) {
     for (JsonElement el: newVideoLibrary) {
       JsonObject session = el.getAsJsonObject();
       JsonPrimitive videoUrl = (JsonPrimitive) DataModelHelper.get(session, OutputJsonKeys.VideoLibrary.vid);
@@ -207,8 +290,6 @@ public class DataCheck {
               "Video Session has empty vid info. Session: " + session));
       }
     }
-
-    return result;
   }
 
   public void checkUsingPredicator(CheckResult result, JsonObject oldData, JsonObject newData,
@@ -240,24 +321,19 @@ public class DataCheck {
   }
 
 
-  private JsonObject clone(JsonObject source) {
-    JsonObject dest = new JsonObject();
-    for (Map.Entry<String, JsonElement> entry: source.entrySet()) {
-      JsonArray values = entry.getValue().getAsJsonArray();
-      JsonArray cloned = new JsonArray();
-      cloned.addAll(values);
-      dest.add(entry.getKey(), cloned);
-    }
-    return dest;
-  }
-
+  /**
+   * Appends the arrays of source to the arrays of dest. Arrays are never shared between source
+   * and dest, so source is not changed by later merges into dest.
+   */
   private void merge(JsonObject source, JsonObject dest) {
     for (Map.Entry<String, JsonElement> entry: source.entrySet()) {
       JsonArray values = entry.getValue().getAsJsonArray();
       if (dest.has(entry.getKey())) {
         dest.get(entry.getKey()).getAsJsonArray().addAll(values);
       } else {
-        dest.add(entry.getKey(), values);
+        JsonArray copy = new JsonArray();
+        copy.addAll(values);
+        dest.add(entry.getKey(), copy);
       }
     }
   }
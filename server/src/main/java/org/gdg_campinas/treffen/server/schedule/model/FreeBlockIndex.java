@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Free blocks of the schedule sorted by start time, so that the block a session starts in is found
+ * with a binary search instead of a scan of all the blocks.
+ */
+class FreeBlockIndex {
+
+  private final long[] starts;
+  // Latest end of the blocks up to each position, so that overlapping blocks are handled.
+  private final long[] maxEnds;
+
+  private FreeBlockIndex(long[] starts, long[] maxEnds) {
+    this.starts = starts;
+    this.maxEnds = maxEnds;
+  }
+
+  /**
+   * Whether the time lies in a free block, that is block start <= time < block end.
+   */
+  boolean isInFreeBlock(long time) {
+    // Number of blocks starting at or before the time.
+    int low = 0;
+    int high = starts.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (starts[mid] <= time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low > 0 && maxEnds[low - 1] > time;
+  }
+
+  static class Builder {
+    private final List<long[]> blocks = new ArrayList<>();
+
+    Builder add(long start, long end) {
+      blocks.add(new long[] {start, end});
+      return this;
+    }
+
+    FreeBlockIndex build() {
+      Collections.sort(blocks, new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+          return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+        }
+      });
+      long[] starts = new long[blocks.size()];
+      long[] maxEnds = new long[blocks.size()];
+      long maxEnd = Long.MIN_VALUE;
+      for (int i = 0; i < blocks.size(); i++) {
+        starts[i] = blocks.get(i)[0];
+        maxEnd = Math.max(maxEnd, blocks.get(i)[1]);
+        maxEnds[i] = maxEnd;
+      }
+      return new FreeBlockIndex(starts, maxEnds);
+    }
+  }
+}
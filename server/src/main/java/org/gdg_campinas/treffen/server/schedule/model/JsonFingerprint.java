@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * MD5 fingerprint of a JsonElement tree, computed by walking the tree and feeding names and values
+ * straight to the digest. It is stable for the same tree (including property order) and, unlike
+ * hashing the serialized JSON, doesn't need to escape and encode the whole document.
+ *
+ * Every value is prefixed by a type marker and every string by its length, so that different
+ * trees can't produce the same sequence of bytes.
+ */
+public class JsonFingerprint {
+
+  private static final byte OBJECT = 'o';
+  private static final byte ARRAY = 'a';
+  private static final byte STRING = 's';
+  private static final byte NUMBER = 'n';
+  private static final byte BOOLEAN = 'b';
+  private static final byte NULL = 'z';
+
+  private final MessageDigest md;
+  private final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+
+  private JsonFingerprint() {
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new InternalError("MD5 MessageDigest is not available");
+    }
+  }
+
+  public static byte[] of(JsonElement element) {
+    JsonFingerprint fingerprint = new JsonFingerprint();
+    fingerprint.update(element);
+    return fingerprint.md.digest();
+  }
+
+  private void update(JsonElement element) {
+    if (element == null || element.isJsonNull()) {
+      md.update(NULL);
+    } else if (element.isJsonObject()) {
+      JsonObject obj = element.getAsJsonObject();
+      md.update(OBJECT);
+      updateLength(obj.entrySet().size());
+      for (Map.Entry<String, JsonElement> entry: obj.entrySet()) {
+        updateString(entry.getKey());
+        update(entry.getValue());
+      }
+    } else if (element.isJsonArray()) {
+      JsonArray array = element.getAsJsonArray();
+      md.update(ARRAY);
+      updateLength(array.size());
+      for (JsonElement el: array) {
+        update(el);
+      }
+    } else {
+      JsonPrimitive primitive = element.getAsJsonPrimitive();
+      if (primitive.isBoolean()) {
+        md.update(BOOLEAN);
+        md.update((byte) (primitive.getAsBoolean() ? 1 : 0));
+      } else {
+        md.update(primitive.isNumber() ? NUMBER : STRING);
+        updateString(primitive.getAsString());
+      }
+    }
+  }
+
+  private void updateString(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    updateLength(bytes.length);
+    md.update(bytes);
+  }
+
+  private void updateLength(int length) {
+    intBuffer.clear();
+    intBuffer.putInt(length);
+    md.update(intBuffer.array());
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.gdg_campinas.treffen.server.schedule.Config;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the delta between two session data files. For each entity type that changed, the delta
+ * has the entities that were added, changed and removed, keyed by the entity id:
+ *
+ * <pre>
+ * {
+ *   "format": "iosched-json-delta-v1",
+ *   "from": "session_data_v1.3.json",
+ *   "to": "session_data_v1.4.json",
+ *   "sessions": {
+ *     "key": "id",
+ *     "added": [ {session}, ... ],
+ *     "changed": [ {session}, ... ],
+ *     "removed": [ "id", ... ]
+ *   },
+ *   ...
+ * }
+ * </pre>
+ *
+ * Entity types without a known key are sent whole, as "replace": [ entities ].
+ */
+public class SessionDataDelta {
+
+  public static final String FORMAT = "format";
+  public static final String FROM = "from";
+  public static final String TO = "to";
+  public static final String KEY = "key";
+  public static final String ADDED = "added";
+  public static final String CHANGED = "changed";
+  public static final String REMOVED = "removed";
+  public static final String REPLACE = "replace";
+
+  private static final Map<String, String> ENTITY_KEYS = new HashMap<>();
+  static {
+    ENTITY_KEYS.put(OutputJsonKeys.MainTypes.rooms.name(), OutputJsonKeys.Rooms.id.name());
+    ENTITY_KEYS.put(OutputJsonKeys.MainTypes.sessions.name(), OutputJsonKeys.Sessions.id.name());
+    ENTITY_KEYS.put(OutputJsonKeys.MainTypes.speakers.name(), OutputJsonKeys.Speakers.id.name());
+    ENTITY_KEYS.put(OutputJsonKeys.MainTypes.tags.name(), OutputJsonKeys.Tags.tag.name());
+    ENTITY_KEYS.put(OutputJsonKeys.MainTypes.video_library.name(),
+        OutputJsonKeys.VideoLibrary.id.name());
+  }
+
+  /**
+   * @param oldData the previous session data
+   * @param newData the new session data
+   * @param from filename of the previous session data
+   * @param to filename of the new session data
+   */
+  public static JsonObject compute(JsonObject oldData, JsonObject newData, String from, String to) {
+    JsonObject delta = new JsonObject();
+    delta.addProperty(FORMAT, Config.DELTA_FORMAT_VERSION);
+    delta.addProperty(FROM, from);
+    delta.addProperty(TO, to);
+
+    Set<String> types = new LinkedHashSet<>();
+    for (Map.Entry<String, JsonElement> entry: newData.entrySet()) {
+      types.add(entry.getKey());
+    }
+    for (Map.Entry<String, JsonElement> entry: oldData.entrySet()) {
+      types.add(entry.getKey());
+    }
+
+    for (String type: types) {
+      JsonArray oldEntities = getArray(oldData, type);
+      JsonArray newEntities = getArray(newData, type);
+      if (oldEntities.equals(newEntities)) {
+        continue;
+      }
+      String key = ENTITY_KEYS.get(type);
+      JsonObject typeDelta = key == null ? null : diff(oldEntities, newEntities, key);
+      if (typeDelta == null) {
+        typeDelta = new JsonObject();
+        typeDelta.add(REPLACE, newEntities);
+      }
+      delta.add(type, typeDelta);
+    }
+    return delta;
+  }
+
+  /**
+   * @return the added, changed and removed entities, or null if some entity doesn't have a unique
+   * key.
+   */
+  private static JsonObject diff(JsonArray oldEntities, JsonArray newEntities, String key) {
+    Map<String, JsonElement> oldById = indexByKey(oldEntities, key);
+    Map<String, JsonElement> newById = indexByKey(newEntities, key);
+    if (oldById == null || newById == null) {
+      return null;
+    }
+
+    JsonArray added = new JsonArray();
+    JsonArray changed = new JsonArray();
+    JsonArray removed = new JsonArray();
+    for (Map.Entry<String, JsonElement> entry: newById.entrySet()) {
+      JsonElement old = oldById.get(entry.getKey());
+      if (old == null) {
+        added.add(entry.getValue());
+      } else if (!old.equals(entry.getValue())) {
+        changed.add(entry.getValue());
+      }
+    }
+    for (String id: oldById.keySet()) {
+      if (!newById.containsKey(id)) {
+        removed.add(new JsonPrimitive(id));
+      }
+    }
+
+    JsonObject result = new JsonObject();
+    result.addProperty(KEY, key);
+    result.add(ADDED, added);
+    result.add(CHANGED, changed);
+    result.add(REMOVED, removed);
+    return result;
+  }
+
+  private static Map<String, JsonElement> indexByKey(JsonArray entities, String key) {
+    Map<String, JsonElement> result = new LinkedHashMap<>();
+    for (JsonElement el: entities) {
+      if (!el.isJsonObject()) {
+        return null;
+      }
+      JsonElement id = el.getAsJsonObject().get(key);
+      if (id == null || !id.isJsonPrimitive() || result.containsKey(id.getAsString())) {
+        return null;
+      }
+      result.put(id.getAsString(), el);
+    }
+    return result;
+  }
+
+  private static JsonArray getArray(JsonObject data, String type) {
+    JsonElement el = data.get(type);
+    return el != null && el.isJsonArray() ? el.getAsJsonArray() : new JsonArray();
+  }
+}
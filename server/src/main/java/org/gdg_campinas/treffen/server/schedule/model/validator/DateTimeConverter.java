@@ -17,52 +17,139 @@ package org.gdg_campinas.treffen.server.schedule.model.validator;
 
 import com.google.gson.JsonPrimitive;
 import org.gdg_campinas.treffen.server.schedule.Config;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 
-
+/**
+ * Converts CMS dates to the "yyyy-MM-ddTHH:mm:ssZ" format of the session data. The converter has
+ * no mutable state, so one instance can be shared by all threads.
+ *
+ * Almost every CMS date starts with "yyyy-MM-ddTHH:mm:ss", which is read directly, without trying
+ * formats until one doesn't throw. Other values fall back to the lenient SimpleDateFormat parsing
+ * this converter always had, with formats confined to the calling thread.
+ */
 public class DateTimeConverter extends Converter {
-  SimpleDateFormat[] inputFormats = new SimpleDateFormat[] {
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"),
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
-  };
-  SimpleDateFormat outputFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+  private static final DateTimeFormatter OUTPUT_FORMAT =
+      DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+  // Length of "yyyy-MM-ddTHH:mm:ss"
+  private static final int SNIFFED_LENGTH = 19;
+
+  private static final ThreadLocal<SimpleDateFormat[]> LENIENT_INPUT_FORMATS =
+      new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+          return new SimpleDateFormat[] {
+              new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"),
+              new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
+          };
+        }
+      };
+
   public DateTimeConverter() {
   }
-  @SuppressWarnings("deprecation")
+
   @Override
   public JsonPrimitive convert(JsonPrimitive value) {
     if (value == null) {
       return null;
     }
-    Date date = null;
+    String str = value.getAsString();
+    LocalDateTime dateTime = sniff(str);
+    if (dateTime == null) {
+      dateTime = parseLenient(value, str);
+    } else if (str.length() == SNIFFED_LENGTH + 1 && str.charAt(SNIFFED_LENGTH) == 'Z'
+        && dateTime.getYear() >= 2000 && Config.TIME_TRAVEL_SHIFT == 0) {
+      // Already in the output format.
+      return value;
+    }
+
+    if (dateTime.getYear() < 2000) {
+      // hack to fix invalid dates on temporary data
+      dateTime = dateTime.withDate(2014, DateTimeConstants.JUNE, 25);
+    }
+    if (Config.TIME_TRAVEL_SHIFT != 0) {
+      dateTime = dateTime.toDateTime().plus(Config.TIME_TRAVEL_SHIFT).toLocalDateTime();
+    }
+    return new JsonPrimitive(OUTPUT_FORMAT.print(dateTime));
+  }
+
+  /**
+   * Reads a date that starts with "yyyy-MM-ddTHH:mm:ss". Like the lenient formats, anything after
+   * it is ignored, unless it's another digit of the seconds.
+   *
+   * @return the date, or null if the value doesn't start with a valid date in that format.
+   */
+  static LocalDateTime sniff(String str) {
+    if (str.length() < SNIFFED_LENGTH
+        || str.charAt(4) != '-' || str.charAt(7) != '-' || str.charAt(10) != 'T'
+        || str.charAt(13) != ':' || str.charAt(16) != ':'
+        || (str.length() > SNIFFED_LENGTH && isDigit(str.charAt(SNIFFED_LENGTH)))) {
+      return null;
+    }
+    int year = parseDigits(str, 0, 4);
+    int month = parseDigits(str, 5, 2);
+    int day = parseDigits(str, 8, 2);
+    int hour = parseDigits(str, 11, 2);
+    int minute = parseDigits(str, 14, 2);
+    int second = parseDigits(str, 17, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return null;
+    }
+    return new LocalDateTime(year, month, day, hour, minute, second);
+  }
+
+  private LocalDateTime parseLenient(JsonPrimitive value, String str) {
     Exception lastEx = null;
-    for (int i=0; i<inputFormats.length && date==null; i++) {
+    for (SimpleDateFormat inputFormat : LENIENT_INPUT_FORMATS.get()) {
       try {
-        date = inputFormats[i].parse(value.getAsString());
+        Date date = inputFormat.parse(str);
+        return LocalDateTime.fromDateFields(date);
       } catch (NumberFormatException e) {
         lastEx = e;
       } catch (ParseException e) {
         lastEx = e;
       }
     }
+    throw new ConverterException(value, this, lastEx.getMessage());
+  }
 
-    if (date == null) {
-      throw new ConverterException(value, this, lastEx.getMessage());
+  /**
+   * @return the value of the digits, or -1 if any of the characters isn't a digit.
+   */
+  private static int parseDigits(String str, int start, int length) {
+    int value = 0;
+    for (int i = start; i < start + length; i++) {
+      char ch = str.charAt(i);
+      if (!isDigit(ch)) {
+        return -1;
+      }
+      value = value * 10 + (ch - '0');
     }
+    return value;
+  }
 
-    if (date.getYear() < 100) {
-      // hack to fix invalid dates on temporary data
-      date.setYear(114);
-      date.setMonth(Calendar.JUNE);
-      date.setDate(25);
-    }
-    if (Config.TIME_TRAVEL_SHIFT != 0) {
-      date=new Date(date.getTime() + Config.TIME_TRAVEL_SHIFT);
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
     }
-    return new JsonPrimitive(outputFormat.format(date));
   }
 }
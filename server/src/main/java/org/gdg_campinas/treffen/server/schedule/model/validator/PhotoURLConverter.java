@@ -26,7 +26,7 @@ public class PhotoURLConverter extends Converter {
       return null;
     }
     String sourceUrl = value.getAsString();
-    String servingUrl = ServingUrlManager.INSTANCE.getServingUrl(sourceUrl);
-    return servingUrl == null ? null : new JsonPrimitive(servingUrl);
+    String imageUrl = ServingUrlManager.INSTANCE.getImageUrl(sourceUrl);
+    return imageUrl == null ? null : new JsonPrimitive(imageUrl);
   }
 }
@@ -19,12 +19,15 @@ import com.google.gson.JsonPrimitive;
 
 import java.util.Random;
 
+/**
+ * Replaces letters and digits with pseudo-random ones, seeded by the string itself so that the
+ * output is stable. Each call uses its own generator, so the converter can be used by many
+ * threads at once.
+ */
 public class StringObfuscateConverter extends Converter {
 
-  static Random r = new Random();
-
   public static String obfuscate(String src) {
-    r.setSeed(src.hashCode()); // static seed to keep output stable
+    Random r = new Random(src.hashCode()); // static seed to keep output stable
     char[] str = src.toCharArray();
     for (int i=0; i<str.length; i++) {
       char ch = str[i];
@@ -15,8 +15,6 @@
  */
 package org.gdg_campinas.treffen.server.schedule.reservations;
 
-import static com.google.firebase.database.Transaction.success;
-
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.firebase.FirebaseApp;
@@ -25,33 +23,28 @@ import com.google.firebase.auth.FirebaseCredentials;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.MutableData;
-import com.google.firebase.database.Transaction.Handler;
-import com.google.firebase.database.Transaction.Result;
 import com.google.firebase.database.ValueEventListener;
 import com.google.firebase.tasks.Task;
 import com.google.firebase.tasks.TaskCompletionSource;
 import com.google.firebase.tasks.Tasks;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.gdg_campinas.treffen.server.schedule.Config;
-import org.gdg_campinas.treffen.server.schedule.reservations.model.Reservation;
+import org.gdg_campinas.treffen.server.schedule.reservations.ReservableSessionData.Room;
+import org.gdg_campinas.treffen.server.schedule.reservations.ReservableSessionData.SessionInfo;
 import org.gdg_campinas.treffen.server.schedule.reservations.model.Seats;
 import org.gdg_campinas.treffen.server.schedule.reservations.model.Session;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -68,13 +61,11 @@ import org.apache.commons.io.IOUtils;
 public class LoadSessionsServlet extends HttpServlet {
 
   public static final String START_TIME_KEY = "startTimestamp";
-  private static final String END_TIME_KEY = "endTimestamp";
+  public static final String END_TIME_KEY = "endTimestamp";
   // 80% of room capacity is made available for reservations.
   private static final double RESERVABLE_CAPACITY_PERCENTAGE = 0.8;
   public static final String MANIFEST_FILENAME = "manifest_v1.json";
   public static final String PATH_SESSIONS = "sessions";
-  private static final String RESERVATION_TYPE_WAITING = "waiting";
-  private static final String RESERVATION_TYPE_GRANTED = "granted";
   public static final String ROOMS_KEY = "rooms";
   public static final String SESSIONS_KEY = "sessions";
   public static final String ROOM_KEY = "room";
@@ -84,6 +75,8 @@ public class LoadSessionsServlet extends HttpServlet {
   public static final String NAME_KEY = "name";
   private final UserService userService = UserServiceFactory.getUserService();
   private static final HashSet<String> nonAdminUsers = new HashSet<>();
+  // Session data of the last manifest version that was loaded.
+  private static volatile ReservableSessionData cachedSessionData;
   private static final Logger log = Logger.getLogger(LoadSessionsServlet.class.getName());
 
   @Override
@@ -117,45 +110,20 @@ public class LoadSessionsServlet extends HttpServlet {
       return;
     }
 
-    // Get session and room data from file in GCS.
-    String sessionDataStr = IOUtils.toString(new URL(Config.CLOUD_STORAGE_BASE_URL +
-        sessionDataFileName).openStream());
-    JsonElement jSessionData = jsonParser.parse(sessionDataStr);
-
-    // Extract rooms and sessions
-    final JsonArray jRooms = jSessionData.getAsJsonObject().get(ROOMS_KEY).getAsJsonArray();
-    final JsonArray jSessions = jSessionData.getAsJsonObject().get(SESSIONS_KEY).getAsJsonArray();
-
-    // Only sessions that are of type TYPE_SESSIONS can be reserved so remove those that do not
-    // have this type.
-    List<JsonElement> sessionsToRemove = new ArrayList<>();
-    for (JsonElement jSession : jSessions) {
-      // TODO: The keynote should not have a type of TYPE_SESSIONS. Remove this hack once
-      // TODO: keynotes have a better type.
-      if (jSession.getAsJsonObject().get("id").getAsString().startsWith("__keynote")) {
-        sessionsToRemove.add(jSession);
-        continue;
-      }
-
-      JsonArray jTags = jSession.getAsJsonObject().get("tags").getAsJsonArray();
-      boolean isReservable = false;
-      for (JsonElement jTag : jTags) {
-        if (jTag.getAsString().equals("TYPE_SESSIONS")) {
-          isReservable = true;
-          break;
-        }
-      }
-      if (!isReservable) {
-        sessionsToRemove.add(jSession);
+    // Get session and room data from file in GCS, unless it was already loaded.
+    ReservableSessionData sessionData = cachedSessionData;
+    if (sessionData != null && sessionDataFileName.equals(sessionData.getFilename())) {
+      log.info("Using cached session data from " + sessionDataFileName);
+    } else {
+      try (Reader reader = new InputStreamReader(new URL(Config.CLOUD_STORAGE_BASE_URL +
+          sessionDataFileName).openStream(), StandardCharsets.UTF_8)) {
+        sessionData = ReservableSessionData.parse(sessionDataFileName, reader);
       }
+      cachedSessionData = sessionData;
     }
 
-    for (JsonElement jsonElement : sessionsToRemove) {
-      jSessions.remove(jsonElement);
-    }
-
-    log.info("Non-Reservable session count: " + sessionsToRemove.size());
-    log.info("Reservable session count: " + jSessions.size());
+    log.info("Non-Reservable session count: " + sessionData.getNonReservableCount());
+    log.info("Reservable session count: " + sessionData.getSessions().size());
 
     resp.setContentType("text/plain");
     resp.getWriter().println("Room and session data retrieved.");
@@ -201,267 +169,74 @@ public class LoadSessionsServlet extends HttpServlet {
           }
         });
 
+    SessionReconciler reconciler = new SessionReconciler(
+        defaultDatabase.getReference(PATH_SESSIONS), Config.RESERVATION_RECONCILE_MAX_IN_FLIGHT,
+        Config.RESERVATION_RECONCILE_TIMEOUT_MS);
     try {
       // Wait for the sessions from RTDB.
       Map<String, Session> rtdbSessions = Tasks.await(sessionsTask);
 
       // Update sessions in RTDB with values from GCS.
-      for (String sessionId : rtdbSessions.keySet()) {
-
-        // Update session task.
-        final TaskCompletionSource<Void> updateSessionTCS = new TaskCompletionSource<>();
-        final Task<Void> updateSessionTCSTask = updateSessionTCS.getTask();
-
+      for (Map.Entry<String, Session> rtdbSession : rtdbSessions.entrySet()) {
         // Check that GCS has a matching session and room as the one from RTDB.
-        JsonObject jSession = getSession(sessionId, jSessions);
-        if (jSession != null) {
-          JsonObject jRoom = getRoom(jSession, jRooms);
-          if (jRoom != null) {
-            final int gcsCap = Long.valueOf(Math.round(jRoom.get(CAPACITY_KEY)
-                .getAsInt() * RESERVABLE_CAPACITY_PERCENTAGE)).intValue();
-            final String gcsRoomName = jRoom.get(NAME_KEY).getAsString();
-            final long gcsStartTime = getTimeInMillis(jSession, START_TIME_KEY);
-            final long gcsEndTime = getTimeInMillis(jSession, END_TIME_KEY);
-            final String gcsTitle = jSession.get(TITLE_KEY).getAsString();
-
-            // Update session in a transaction.
-            defaultDatabase.getReference().child(PATH_SESSIONS).child(sessionId)
-                .runTransaction(new Handler() {
-              @Override
-              public Result doTransaction(MutableData mutableData) {
-                Session session = mutableData.getValue(Session.class);
-                if (session != null) {
-                  // Update start and end times of session in RTDB.
-                  session.time_start = gcsStartTime;
-                  session.time_end = gcsEndTime;
-
-                  // Update session title.
-                  session.title = gcsTitle;
-                  // Update session room name.
-                  session.room_name = gcsRoomName;
-
-                  int currResCount = session.seats.reserved;
-                  boolean currHasSeats = session.seats.seats_available;
-
-                  if (currResCount > gcsCap) {
-                    // If there are to many reservations move extras to waitlist.
-                    int resToMove = currResCount - gcsCap;
-                    moveReservationsToWaitList(resToMove, session);
-                  } else if (currResCount < gcsCap && !currHasSeats) {
-                    // If there is space and a waitlist, promote as many as possible from the
-                    // waitlist.
-                    int numSeatsAvailable = gcsCap - currResCount;
-                    promoteFromWaitList(currResCount, numSeatsAvailable, session);
-                  }
-
-                  // Update session capacity.
-                  session.seats.capacity = gcsCap;
-                  mutableData.setValue(session);
-                }
-                return success(mutableData);
-              }
-
-              @Override
-              public void onComplete(DatabaseError databaseError, boolean b,
-                  DataSnapshot dataSnapshot) {
-                // Signal that session update is complete.
-                updateSessionTCS.setResult(null);
-              }
-            });
-
-            // Wait for session update to complete.
-            Tasks.await(updateSessionTCSTask);
+        SessionInfo gcsSession = sessionData.getSession(rtdbSession.getKey());
+        if (gcsSession != null) {
+          Room gcsRoom = sessionData.getRoom(gcsSession.roomId);
+          if (gcsRoom != null) {
+            reconciler.update(gcsSession.id, rtdbSession.getValue(), gcsSession.title,
+                gcsRoom.name, gcsSession.startTime, gcsSession.endTime,
+                getReservableCapacity(gcsRoom));
           }
-
-          // Remove updated sessions from list of sessions to be added.
-          jSessions.remove(jSession);
         }
       }
-    } catch (ExecutionException | InterruptedException e) {
-      e.printStackTrace();
-    }
-
-    // Add all sessions that were retrieved from GCS but did not already in RTDB.
-    for (int i = 0; i < jSessions.size(); i++) {
-      JsonObject jSession = jSessions.get(i).getAsJsonObject();
-      String sessionId = jSession.get(ID_KEY).getAsString();
-      String sessionTitle = jSession.get(TITLE_KEY).getAsString();
-      String roomId = jSession.get(ROOM_KEY).getAsString();
-      JsonObject jRoom = getRoom(roomId, jRooms);
-      int capacity = Long.valueOf(Math.round(jRoom.get(CAPACITY_KEY)
-          .getAsInt() * RESERVABLE_CAPACITY_PERCENTAGE)).intValue();
-      String sessionRoomName = jRoom.get(NAME_KEY).getAsString();
-
-      long startTime = getTimeInMillis(jSession, START_TIME_KEY);
-      long endTime = getTimeInMillis(jSession, END_TIME_KEY);
-
-      Session session = new Session();
-      session.title = sessionTitle;
-      session.room_name = sessionRoomName;
-      session.time_end = endTime;
-      session.time_start = startTime;
-
-      Seats seats = new Seats();
-      seats.capacity = capacity;
-      seats.reserved = 0;
-      seats.seats_available = true;
-      seats.waitlisted = false;
-
-      session.seats = seats;
-
-      defaultDatabase.getReference(PATH_SESSIONS).child(sessionId)
-          .setValue(session);
-    }
-
-    resp.getWriter().println("Sessions added to RTDB.");
-  }
-
-  /**
-   * This method is called if there are more reservations than reservable seats for a session.
-   * The excess reservations will be moved to the waitlist. Since their last_status_changed value
-   * will remain the same the moved reservations will be at the front of the waitlist.
-   *
-   * @param numOfRes Number of existing reservations to move to the waitlist.
-   * @param session Session to update.
-   */
-  private void moveReservationsToWaitList(int numOfRes, Session session) {
-    Map<String, Reservation> reservations = session.reservations;
-    // Get reservations.
-    List<Reservation> granted = getReservationsByType(reservations, RESERVATION_TYPE_GRANTED);
-    // Sort by last status changed, reverse order.
-    Collections.sort(granted, Collections.<Reservation>reverseOrder());
-    // Put (numOfRes) attendees on the waitlist.
-    for (int i = 0; i < numOfRes; i++) {
-      Reservation reservation = granted.get(i);
-      reservation.status = RESERVATION_TYPE_WAITING;
-    }
-    session.seats.reserved = session.seats.reserved - numOfRes;
-    session.seats.seats_available = false;
-    session.seats.waitlisted = true;
-    // TODO(arthurthompson): send notification to demoted attendees
-  }
 
-  /**
-   * This method is called if there are available seats to be reserved and waitlisted reservations.
-   * All waitlisted reservations will be promoted to reserved once there are still seats available.
-   *
-   * @param currResCount Current number of reserved seats.
-   * @param numSeatsAvailable Number of seats available to be reserved.
-   * @param session Session to be updated.
-   */
-  private void promoteFromWaitList(int currResCount, int numSeatsAvailable,
-      Session session) {
-    Map<String, Reservation> reservations = session.reservations;
-    // Get waiting reservations.
-    List<Reservation> waiting = getReservationsByType(reservations, RESERVATION_TYPE_WAITING);
-    // Sort by last status changed.
-    Collections.sort(waiting);
-    int promoCount = 0;
-    for (int i = 0; i < numSeatsAvailable && i < waiting.size(); i++) {
-      Reservation reservation = waiting.get(i);
-      reservation.status = RESERVATION_TYPE_GRANTED;
-      promoCount++;
-    }
+      // Add all sessions that were retrieved from GCS but did not already in RTDB.
+      for (SessionInfo gcsSession : sessionData.getSessions()) {
+        if (rtdbSessions.containsKey(gcsSession.id)) {
+          continue;
+        }
+        Room gcsRoom = sessionData.getRoom(gcsSession.roomId);
+        if (gcsRoom == null) {
+          log.warning("Room " + gcsSession.roomId + " of session " + gcsSession.id
+              + " not found");
+          continue;
+        }
 
-    session.seats.reserved = currResCount + promoCount;
+        Session session = new Session();
+        session.title = gcsSession.title;
+        session.room_name = gcsRoom.name;
+        session.time_end = gcsSession.endTime;
+        session.time_start = gcsSession.startTime;
 
-    if (promoCount == numSeatsAvailable) {
-      session.seats.seats_available = false;
-    } else {
-      session.seats.seats_available = true;
-    }
+        Seats seats = new Seats();
+        seats.capacity = getReservableCapacity(gcsRoom);
+        seats.reserved = 0;
+        seats.seats_available = true;
+        seats.waitlisted = false;
 
-    int stillWaiting = waiting.size() - promoCount;
-    if (stillWaiting > 0) {
-      session.seats.waitlisted = true;
-    } else {
-      session.seats.waitlisted = false;
-    }
-    // TODO(arthurthompson): send notification to promoted attendees
-  }
+        session.seats = seats;
 
-  /**
-   * Filter reservations by type, expected values are "waiting" and "granted".
-   *
-   * @param reservations Map of all reservations.
-   * @param reservationType Type of reservations to keep.
-   * @return List of reservations matching the type defined.
-   */
-  private List<Reservation> getReservationsByType(Map<String, Reservation> reservations,
-      String reservationType) {
-    List<Reservation> grantedReservations = new ArrayList<>();
-    for (Reservation res : reservations.values()) {
-      if (res.status != null && res.status.equals(reservationType)) {
-        grantedReservations.add(res);
+        reconciler.add(gcsSession.id, session);
       }
-    }
-    return grantedReservations;
-  }
 
-  /**
-   * Get JSON representation of a room with matching ID as the room in the passed session.
-   *
-   * @param jSession Session that contains the desired room ID.
-   * @param jRooms Array of rooms.
-   * @return JSON room if found, null otherwise.
-   */
-  private JsonObject getRoom(JsonObject jSession, JsonArray jRooms) {
-    String roomId = jSession.get(ROOM_KEY).getAsString();
-    return getRoom(roomId, jRooms);
-  }
-
-  /**
-   * Get JSON representation of a room with matching ID as the room in the passed session.
-   *
-   * @param roomId ID of the desired room.
-   * @param jRooms Array of rooms.
-   * @return JSON room if found, null otherwise.
-   */
-  private JsonObject getRoom(String roomId, JsonArray jRooms) {
-    for (int i = 0; i < jRooms.size(); i++) {
-      JsonObject jRoom = jRooms.get(i).getAsJsonObject();
-      if (jRoom.get(ID_KEY).getAsString().equals(roomId)) {
-        return jRoom;
-      }
+      // Wait for all transactions and batched updates to complete.
+      String summary = reconciler.finish();
+      log.info(summary);
+      resp.getWriter().println(summary);
+    } catch (ExecutionException | InterruptedException | TimeoutException e) {
+      log.severe("Unable to reconcile sessions: " + e + ". " + reconciler.getSummary());
+      resp.getWriter().println("Unable to reconcile sessions: " + e.getMessage());
+      return;
     }
-    return null;
-  }
 
-  /**
-   * Find a session with matching ID from an array of sessions.
-   *
-   * @param sessionId ID to use to find desired session.
-   * @param jSessions Array of sessions to search.
-   * @return JSON session if found, null otherwise.
-   */
-  private JsonObject getSession(String sessionId, JsonArray jSessions) {
-    for (int i = 0; i < jSessions.size(); i++) {
-      JsonObject jSession = jSessions.get(i).getAsJsonObject();
-      if (jSession.get(ID_KEY).getAsString().equals(sessionId)) {
-        return jSession;
-      }
-    }
-    return null;
+    resp.getWriter().println("Sessions added to RTDB.");
   }
 
   /**
-   * Convert formatted dates to easily comparable longs.
-   *
-   * @param jSession JSON session with times to convert.
-   * @param timeKey Field name of time to convert. Usually startTimestamp and endTimestamp.
-   * @return long representation of date matching timeKey.
+   * @return Number of seats of the room that are made available for reservations.
    */
-  private long getTimeInMillis(JsonObject jSession, String timeKey) {
-    String timeStr = jSession.get(timeKey).getAsString();
-    SimpleDateFormat outputFormat =
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-    try {
-      Date startTime = outputFormat.parse(timeStr);
-      return startTime.getTime();
-    } catch (ParseException e) {
-      e.printStackTrace();
-    }
-    return -1;
+  private int getReservableCapacity(Room room) {
+    return Long.valueOf(Math.round(room.capacity * RESERVABLE_CAPACITY_PERCENTAGE)).intValue();
   }
 
   // Helpers to ensure that only Admins call this servlet.
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.reservations;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Rooms and reservable sessions read from a session data file, indexed by ID.
+ *
+ * The file is read in a single streaming pass. Only sessions tagged TYPE_SESSIONS are kept, and
+ * keynotes are left out; everything but rooms and sessions is skipped.
+ */
+public class ReservableSessionData {
+
+  private static final String RESERVABLE_TAG = "TYPE_SESSIONS";
+  // TODO: The keynote should not have a type of TYPE_SESSIONS. Remove this hack once
+  // TODO: keynotes have a better type.
+  private static final String KEYNOTE_ID_PREFIX = "__keynote";
+  private static final String TAGS_KEY = "tags";
+
+  /**
+   * A room from the session data file.
+   */
+  public static class Room {
+    public final String id;
+    public final String name;
+    public final int capacity;
+
+    Room(String id, String name, int capacity) {
+      this.id = id;
+      this.name = name;
+      this.capacity = capacity;
+    }
+  }
+
+  /**
+   * A reservable session from the session data file.
+   */
+  public static class SessionInfo {
+    public final String id;
+    public final String title;
+    public final String roomId;
+    public final long startTime;
+    public final long endTime;
+
+    SessionInfo(String id, String title, String roomId, long startTime, long endTime) {
+      this.id = id;
+      this.title = title;
+      this.roomId = roomId;
+      this.startTime = startTime;
+      this.endTime = endTime;
+    }
+  }
+
+  private final String filename;
+  private final Map<String, Room> rooms = new HashMap<>();
+  private final Map<String, SessionInfo> sessions = new LinkedHashMap<>();
+  private int nonReservableCount;
+
+  private ReservableSessionData(String filename) {
+    this.filename = filename;
+  }
+
+  /**
+   * @param filename Name of the session data file, used to tell versions apart.
+   * @param reader Contents of the session data file.
+   */
+  public static ReservableSessionData parse(String filename, Reader reader) throws IOException {
+    ReservableSessionData data = new ReservableSessionData(filename);
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    JsonParser parser = new JsonParser();
+
+    JsonReader jsonReader = new JsonReader(reader);
+    jsonReader.beginObject();
+    while (jsonReader.hasNext()) {
+      String name = jsonReader.nextName();
+      if (LoadSessionsServlet.ROOMS_KEY.equals(name)) {
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+          JsonObject jRoom = parser.parse(jsonReader).getAsJsonObject();
+          Room room = new Room(jRoom.get(LoadSessionsServlet.ID_KEY).getAsString(),
+              jRoom.get(LoadSessionsServlet.NAME_KEY).getAsString(),
+              jRoom.get(LoadSessionsServlet.CAPACITY_KEY).getAsInt());
+          data.rooms.put(room.id, room);
+        }
+        jsonReader.endArray();
+      } else if (LoadSessionsServlet.SESSIONS_KEY.equals(name)) {
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+          JsonObject jSession = parser.parse(jsonReader).getAsJsonObject();
+          if (!isReservable(jSession)) {
+            data.nonReservableCount++;
+            continue;
+          }
+          SessionInfo session = new SessionInfo(
+              jSession.get(LoadSessionsServlet.ID_KEY).getAsString(),
+              jSession.get(LoadSessionsServlet.TITLE_KEY).getAsString(),
+              jSession.get(LoadSessionsServlet.ROOM_KEY).getAsString(),
+              getTimeInMillis(jSession, LoadSessionsServlet.START_TIME_KEY, dateFormat),
+              getTimeInMillis(jSession, LoadSessionsServlet.END_TIME_KEY, dateFormat));
+          data.sessions.put(session.id, session);
+        }
+        jsonReader.endArray();
+      } else {
+        jsonReader.skipValue();
+      }
+    }
+    jsonReader.endObject();
+    return data;
+  }
+
+  public String getFilename() {
+    return filename;
+  }
+
+  public Room getRoom(String roomId) {
+    return rooms.get(roomId);
+  }
+
+  public SessionInfo getSession(String sessionId) {
+    return sessions.get(sessionId);
+  }
+
+  /**
+   * @return Reservable sessions, in the order of the session data file.
+   */
+  public Collection<SessionInfo> getSessions() {
+    return Collections.unmodifiableCollection(sessions.values());
+  }
+
+  public int getNonReservableCount() {
+    return nonReservableCount;
+  }
+
+  /**
+   * Only sessions that are of type TYPE_SESSIONS can be reserved.
+   */
+  private static boolean isReservable(JsonObject jSession) {
+    if (jSession.get(LoadSessionsServlet.ID_KEY).getAsString().startsWith(KEYNOTE_ID_PREFIX)) {
+      return false;
+    }
+    JsonElement jTags = jSession.get(TAGS_KEY);
+    if (jTags == null || !jTags.isJsonArray()) {
+      return false;
+    }
+    for (JsonElement jTag : jTags.getAsJsonArray()) {
+      if (RESERVABLE_TAG.equals(jTag.getAsString())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Convert formatted dates to easily comparable longs.
+   *
+   * @return long representation of date matching timeKey, -1 if it can't be parsed.
+   */
+  private static long getTimeInMillis(JsonObject jSession, String timeKey,
+      SimpleDateFormat dateFormat) {
+    String timeStr = jSession.get(timeKey).getAsString();
+    try {
+      return dateFormat.parse(timeStr).getTime();
+    } catch (ParseException e) {
+      e.printStackTrace();
+    }
+    return -1;
+  }
+}
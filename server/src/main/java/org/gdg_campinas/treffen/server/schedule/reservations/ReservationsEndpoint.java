@@ -60,10 +60,10 @@ public class ReservationsEndpoint {
     }
 
     // Add Sync Reservations worker to queue.
-    Queue queue = QueueFactory.getQueue("SyncReservationsQueue");
+    Queue queue = QueueFactory.getQueue(SyncReservationsQueueWorker.QUEUE_NAME);
 
     TaskOptions taskOptions = TaskOptions.Builder
-        .withUrl("/queue/syncres")
+        .withUrl(SyncReservationsQueueWorker.QUEUE_URL)
         .method(Method.GET);
     queue.add(taskOptions);
   }
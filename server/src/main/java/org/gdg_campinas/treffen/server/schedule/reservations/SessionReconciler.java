@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.reservations;
+
+import static com.google.firebase.database.Transaction.success;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction.Handler;
+import com.google.firebase.database.Transaction.Result;
+import com.google.firebase.tasks.Task;
+import com.google.firebase.tasks.TaskCompletionSource;
+import com.google.firebase.tasks.Tasks;
+import org.gdg_campinas.treffen.server.schedule.reservations.model.Reservation;
+import org.gdg_campinas.treffen.server.schedule.reservations.model.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Brings the sessions in RTDB in line with the session data in Cloud Storage.
+ *
+ * Sessions whose capacity changed, or that have free seats and a waitlist, are updated in a
+ * transaction so that reservations can be moved to or from the waitlist. At most maxInFlight of
+ * these transactions run at the same time. Sessions where only the title, room or times changed,
+ * and new sessions, are written with multi-path updates of up to MAX_PATHS_PER_UPDATE paths.
+ *
+ * Everything must be done within the timeout given to the constructor: waiting for a free
+ * transaction slot or for the writes to complete fails with a {@link TimeoutException} once it has
+ * passed, so a Firebase callback that never fires can't hang the caller.
+ *
+ * Call {@link #finish()} once all sessions were given to wait for the writes to complete.
+ */
+public class SessionReconciler {
+
+  private static final String RESERVATION_TYPE_WAITING = "waiting";
+  private static final String RESERVATION_TYPE_GRANTED = "granted";
+  private static final int MAX_PATHS_PER_UPDATE = 500;
+  private static final Logger log = Logger.getLogger(SessionReconciler.class.getName());
+
+  private final DatabaseReference sessionsRef;
+  private final Semaphore inFlight;
+  private final long deadline;
+  private final List<Task<Void>> pendingWrites = new ArrayList<>();
+  private Map<String, Object> pendingUpdate = new HashMap<>();
+
+  private int unchanged;
+  private int metadataUpdates;
+  private int added;
+  private final AtomicInteger transactions = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicInteger retries = new AtomicInteger();
+  private final AtomicInteger maxRetries = new AtomicInteger();
+  private final AtomicLong transactionMillis = new AtomicLong();
+  private final AtomicLong maxTransactionMillis = new AtomicLong();
+
+  public SessionReconciler(DatabaseReference sessionsRef, int maxInFlight, long timeoutMs) {
+    this.sessionsRef = sessionsRef;
+    this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    this.deadline = System.currentTimeMillis() + timeoutMs;
+  }
+
+  /**
+   * Update an existing RTDB session with values from Cloud Storage. Blocks while maxInFlight
+   * transactions are running, until the deadline.
+   *
+   * @param sessionId ID of the session.
+   * @param current Session as currently stored in RTDB.
+   * @param title Session title from Cloud Storage.
+   * @param roomName Room name from Cloud Storage.
+   * @param startTime Start time from Cloud Storage.
+   * @param endTime End time from Cloud Storage.
+   * @param capacity Reservable capacity of the room.
+   * @throws TimeoutException if no transaction completed before the deadline to make room for this
+   *     session's transaction.
+   */
+  public void update(String sessionId, Session current, String title, String roomName,
+      long startTime, long endTime, int capacity) throws InterruptedException, TimeoutException {
+    if (needsTransaction(current, capacity)) {
+      runTransaction(sessionId, title, roomName, startTime, endTime, capacity);
+      return;
+    }
+
+    boolean changed = false;
+    if (current.time_start != startTime) {
+      addPendingPath(sessionId + "/time_start", startTime);
+      changed = true;
+    }
+    if (current.time_end != endTime) {
+      addPendingPath(sessionId + "/time_end", endTime);
+      changed = true;
+    }
+    if (!title.equals(current.title)) {
+      addPendingPath(sessionId + "/title", title);
+      changed = true;
+    }
+    if (!roomName.equals(current.room_name)) {
+      addPendingPath(sessionId + "/room_name", roomName);
+      changed = true;
+    }
+    if (changed) {
+      metadataUpdates++;
+    } else {
+      unchanged++;
+    }
+  }
+
+  /**
+   * Add a session that is not in RTDB yet.
+   */
+  public void add(String sessionId, Session session) {
+    addPendingPath(sessionId, session);
+    added++;
+  }
+
+  /**
+   * Write the remaining batched updates and wait for all writes and transactions to complete.
+   *
+   * @return Summary of what was done, suitable for logging.
+   */
+  public String finish() throws InterruptedException, ExecutionException, TimeoutException {
+    flushPendingUpdate();
+    Tasks.await(Tasks.whenAll(pendingWrites), getRemainingMillis(), TimeUnit.MILLISECONDS);
+    return getSummary();
+  }
+
+  public String getSummary() {
+    int count = transactions.get();
+    return "Sessions unchanged: " + unchanged
+        + ", metadata updated: " + metadataUpdates
+        + ", added: " + added
+        + ", transactions: " + count
+        + " (failed: " + failures.get()
+        + ", retries: " + retries.get()
+        + ", max retries: " + maxRetries.get()
+        + ", avg ms: " + (count == 0 ? 0 : transactionMillis.get() / count)
+        + ", max ms: " + maxTransactionMillis.get() + ")";
+  }
+
+  private boolean needsTransaction(Session current, int capacity) {
+    if (current.seats == null) {
+      return false;
+    }
+    if (current.seats.capacity != capacity) {
+      return true;
+    }
+    // Seats left with a waitlist, promote from the waitlist.
+    return current.seats.reserved < capacity && !current.seats.seats_available;
+  }
+
+  private void runTransaction(final String sessionId, final String title, final String roomName,
+      final long startTime, final long endTime, final int capacity)
+      throws InterruptedException, TimeoutException {
+    if (!inFlight.tryAcquire(getRemainingMillis(), TimeUnit.MILLISECONDS)) {
+      failures.incrementAndGet();
+      log.warning("Transaction on session " + sessionId
+          + " not started: no transaction completed before the deadline");
+      throw new TimeoutException("Timed out waiting to reconcile session " + sessionId);
+    }
+    final TaskCompletionSource<Void> tcs = new TaskCompletionSource<>();
+    pendingWrites.add(tcs.getTask());
+    final AtomicInteger attempts = new AtomicInteger();
+    final long start = System.currentTimeMillis();
+
+    sessionsRef.child(sessionId).runTransaction(new Handler() {
+      @Override
+      public Result doTransaction(MutableData mutableData) {
+        attempts.incrementAndGet();
+        Session session = mutableData.getValue(Session.class);
+        if (session != null) {
+          // Update start and end times of session in RTDB.
+          session.time_start = startTime;
+          session.time_end = endTime;
+
+          // Update session title.
+          session.title = title;
+          // Update session room name.
+          session.room_name = roomName;
+
+          int currResCount = session.seats.reserved;
+          boolean currHasSeats = session.seats.seats_available;
+
+          if (currResCount > capacity) {
+            // If there are to many reservations move extras to waitlist.
+            int resToMove = currResCount - capacity;
+            moveReservationsToWaitList(resToMove, session);
+          } else if (currResCount < capacity && !currHasSeats) {
+            // If there is space and a waitlist, promote as many as possible from the
+            // waitlist.
+            int numSeatsAvailable = capacity - currResCount;
+            promoteFromWaitList(currResCount, numSeatsAvailable, session);
+          }
+
+          // Update session capacity.
+          session.seats.capacity = capacity;
+          mutableData.setValue(session);
+        }
+        return success(mutableData);
+      }
+
+      @Override
+      public void onComplete(DatabaseError databaseError, boolean committed,
+          DataSnapshot dataSnapshot) {
+        long elapsed = System.currentTimeMillis() - start;
+        int sessionRetries = Math.max(0, attempts.get() - 1);
+        transactions.incrementAndGet();
+        retries.addAndGet(sessionRetries);
+        transactionMillis.addAndGet(elapsed);
+        updateMax(maxRetries, sessionRetries);
+        updateMax(maxTransactionMillis, elapsed);
+        if (databaseError != null || !committed) {
+          failures.incrementAndGet();
+          log.warning("Transaction on session " + sessionId + " failed: "
+              + (databaseError == null ? "not committed" : databaseError.getMessage()));
+        }
+        log.fine("Session " + sessionId + " reconciled in " + elapsed + "ms, "
+            + sessionRetries + " retries");
+        inFlight.release();
+        // Signal that session update is complete.
+        tcs.setResult(null);
+      }
+    });
+  }
+
+  private long getRemainingMillis() {
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  private void addPendingPath(String path, Object value) {
+    pendingUpdate.put(path, value);
+    if (pendingUpdate.size() >= MAX_PATHS_PER_UPDATE) {
+      flushPendingUpdate();
+    }
+  }
+
+  private void flushPendingUpdate() {
+    if (pendingUpdate.isEmpty()) {
+      return;
+    }
+    pendingWrites.add(sessionsRef.updateChildren(pendingUpdate));
+    pendingUpdate = new HashMap<>();
+  }
+
+  private static void updateMax(AtomicInteger max, int value) {
+    int curr;
+    while (value > (curr = max.get()) && !max.compareAndSet(curr, value)) {
+      // Retry, another transaction updated max.
+    }
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long curr;
+    while (value > (curr = max.get()) && !max.compareAndSet(curr, value)) {
+      // Retry, another transaction updated max.
+    }
+  }
+
+  /**
+   * This method is called if there are more reservations than reservable seats for a session.
+   * The excess reservations will be moved to the waitlist. Since their last_status_changed value
+   * will remain the same the moved reservations will be at the front of the waitlist.
+   *
+   * @param numOfRes Number of existing reservations to move to the waitlist.
+   * @param session Session to update.
+   */
+  private void moveReservationsToWaitList(int numOfRes, Session session) {
+    Map<String, Reservation> reservations = session.reservations;
+    // Get reservations.
+    List<Reservation> granted = getReservationsByType(reservations, RESERVATION_TYPE_GRANTED);
+    // Sort by last status changed, reverse order.
+    Collections.sort(granted, Collections.<Reservation>reverseOrder());
+    // Put (numOfRes) attendees on the waitlist.
+    for (int i = 0; i < numOfRes; i++) {
+      Reservation reservation = granted.get(i);
+      reservation.status = RESERVATION_TYPE_WAITING;
+    }
+    session.seats.reserved = session.seats.reserved - numOfRes;
+    session.seats.seats_available = false;
+    session.seats.waitlisted = true;
+    // TODO(arthurthompson): send notification to demoted attendees
+  }
+
+  /**
+   * This method is called if there are available seats to be reserved and waitlisted reservations.
+   * All waitlisted reservations will be promoted to reserved once there are still seats available.
+   *
+   * @param currResCount Current number of reserved seats.
+   * @param numSeatsAvailable Number of seats available to be reserved.
+   * @param session Session to be updated.
+   */
+  private void promoteFromWaitList(int currResCount, int numSeatsAvailable,
+      Session session) {
+    Map<String, Reservation> reservations = session.reservations;
+    // Get waiting reservations.
+    List<Reservation> waiting = getReservationsByType(reservations, RESERVATION_TYPE_WAITING);
+    // Sort by last status changed.
+    Collections.sort(waiting);
+    int promoCount = 0;
+    for (int i = 0; i < numSeatsAvailable && i < waiting.size(); i++) {
+      Reservation reservation = waiting.get(i);
+      reservation.status = RESERVATION_TYPE_GRANTED;
+      promoCount++;
+    }
+
+    session.seats.reserved = currResCount + promoCount;
+
+    if (promoCount == numSeatsAvailable) {
+      session.seats.seats_available = false;
+    } else {
+      session.seats.seats_available = true;
+    }
+
+    int stillWaiting = waiting.size() - promoCount;
+    if (stillWaiting > 0) {
+      session.seats.waitlisted = true;
+    } else {
+      session.seats.waitlisted = false;
+    }
+    // TODO(arthurthompson): send notification to promoted attendees
+  }
+
+  /**
+   * Filter reservations by type, expected values are "waiting" and "granted".
+   *
+   * @param reservations Map of all reservations.
+   * @param reservationType Type of reservations to keep.
+   * @return List of reservations matching the type defined.
+   */
+  private List<Reservation> getReservationsByType(Map<String, Reservation> reservations,
+      String reservationType) {
+    List<Reservation> grantedReservations = new ArrayList<>();
+    if (reservations == null) {
+      return grantedReservations;
+    }
+    for (Reservation res : reservations.values()) {
+      if (res.status != null && res.status.equals(reservationType)) {
+        grantedReservations.add(res);
+      }
+    }
+    return grantedReservations;
+  }
+}
@@ -15,8 +15,12 @@
  */
 package org.gdg_campinas.treffen.server.schedule.reservations;
 
-import static com.googlecode.objectify.ObjectifyService.ofy;
-
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -24,16 +28,21 @@ import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.server.schedule.Config;
 import org.gdg_campinas.treffen.server.userdata.db.ReservedSession;
 import org.gdg_campinas.treffen.server.FirebaseWrapper;
-import org.gdg_campinas.treffen.server.userdata.db.UserData;
-import com.googlecode.objectify.NotFoundException;
+import org.gdg_campinas.treffen.server.userdata.db.UserDataStore;
+import com.googlecode.objectify.Result;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -43,11 +52,30 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Worker that retrieves reservations from RTDB and updates them in datastore.
+ *
+ * The reservation feed is read as a stream, in chunks of CHUNK_SIZE users. The reservations in
+ * datastore of each chunk are loaded together, by key, and the reservations that changed are saved in the background, in one
+ * transaction per user, while the next chunk is read. The feed is ordered by user ID, and after each chunk is saved the
+ * ID of its last user is stored in memcache, keyed by task name, so that a retried task asks the
+ * feed for the users after it. If the time budget runs out, the sync continues in a new task that
+ * starts after the last user done. Users added to or removed from RTDB in the meantime don't shift
+ * which users are skipped.
  */
 public class SyncReservationsQueueWorker extends HttpServlet {
 
   private static final Logger LOG = Logger.getLogger(SyncReservationsQueueWorker.class.getName());
   public static final String RESERVATIONS_KEY = "reservations";
+  public static final String QUEUE_NAME = "SyncReservationsQueue";
+  public static final String QUEUE_URL = "/queue/syncres";
+  public static final String PARAM_START_AFTER = "startAfter";
+
+  private static final String TASK_NAME_HEADER = "X-AppEngine-TaskName";
+  private static final String CHECKPOINT_KEY_PREFIX = "SyncReservationsQueueWorker.done.";
+  private static final int CHECKPOINT_EXPIRATION_S = (int) TimeUnit.DAYS.toSeconds(1);
+  /** Users whose reservations are loaded and saved together. */
+  private static final int CHUNK_SIZE = 500;
+  /** Time after which the sync continues in a new task, well within the task deadline. */
+  private static final long TIME_BUDGET_MS = TimeUnit.MINUTES.toMillis(5);
 
   public FirebaseWrapper firebaseWrapper = new FirebaseWrapper();
 
@@ -67,52 +95,156 @@ public class SyncReservationsQueueWorker extends HttpServlet {
       return;
     }
 
-    // Get all existing reservations from RTDB.
-    JsonArray firebaseReservations = getFirebaseReservations(accessToken);
-
-    // For each user update reservations in datastore with reservations from RTDB.
-    for (int i = 0; firebaseReservations != null && i < firebaseReservations.size(); i++) {
-      JsonObject jReservation = firebaseReservations.get(i).getAsJsonObject();
-      String userId = jReservation.get("userId").getAsString();
-      try {
-        // Deserialize reservations from RTDB.
-        Map<String, ReservedSession> reservedSessions = new HashMap<>();
-        if (jReservation.has(RESERVATIONS_KEY)) {
-          JsonArray jUserReservations = jReservation.get(RESERVATIONS_KEY).getAsJsonArray();
-          for (int j = 0; j < jUserReservations.size(); j++) {
-            JsonObject jUserReservation = jUserReservations.get(j).getAsJsonObject();
-            String sessionId = jUserReservation.get("sessionId").getAsString();
-            ReservedSession.Status status = mapToDatastoreStatus(jUserReservation.get("status").getAsString());
-            ReservedSession reservedSession = new ReservedSession(sessionId, status,
-                System.currentTimeMillis());
-            reservedSessions.put(sessionId, reservedSession);
-          }
-        }
+    String startAfter = req.getParameter(PARAM_START_AFTER);
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    String taskName = req.getHeader(TASK_NAME_HEADER);
+    String checkpointKey = taskName == null ? null : CHECKPOINT_KEY_PREFIX + taskName;
+    if (checkpointKey != null) {
+      Object checkpoint = memcache.get(checkpointKey);
+      if (checkpoint instanceof String) {
+        LOG.info("Resuming sync task " + taskName + " after user " + checkpoint);
+        startAfter = (String) checkpoint;
+      }
+    }
 
-        // Update reservations in datastore with those from RTDB.
-        UserData userData = ofy().load().type(UserData.class).id(userId).safe();
-        for (String sessionId : userData.reservedSessions.keySet()) {
-          if (reservedSessions.containsKey(sessionId)) {
-            userData.reservedSessions.put(sessionId, reservedSessions.get(sessionId));
-            reservedSessions.remove(sessionId);
-          } else {
-            // Mark DELETED if reservation does not exist in RTDB.
-            userData.reservedSessions.get(sessionId).status = ReservedSession.Status.DELETED;
-            userData.reservedSessions.get(sessionId).timestampUTC = System.currentTimeMillis();
+    // Stream the reservations in RTDB of the users after startAfter.
+    try (JsonReader reader = openFirebaseReservations(accessToken, startAfter)) {
+      if (reader == null) {
+        return;
+      }
+      long start = System.currentTimeMillis();
+      reader.beginArray();
+
+      JsonParser parser = new JsonParser();
+      Map<String, Map<String, ReservedSession>> chunk = new LinkedHashMap<>();
+      Result<?> pendingSave = null;
+      String lastUserId = startAfter;
+      String pendingLastUserId = lastUserId;
+      int users = 0;
+      int updated = 0;
+      while (reader.hasNext() && System.currentTimeMillis() - start < TIME_BUDGET_MS) {
+        while (chunk.size() < CHUNK_SIZE && reader.hasNext()) {
+          JsonObject jReservation = parser.parse(reader).getAsJsonObject();
+          String userId = jReservation.get("userId").getAsString();
+          if (userId.equals(startAfter)) {
+            // Already done, in case the feed includes the user it starts after.
+            continue;
           }
-        }
-        // Add reservations from RTDB that do not exist in datastore.
-        for (ReservedSession reservedSession : reservedSessions.values()) {
-          userData.reservedSessions.put(reservedSession.sessionID, reservedSession);
+          chunk.put(userId, parseReservations(jReservation));
+          lastUserId = userId;
+          users++;
         }
 
-        ofy().save().entity(userData).now();
-      } catch (NotFoundException e) {
-        LOG.severe(e.getMessage());
+        Map<String, List<ReservedSession>> changed = updateChunk(chunk);
+        chunk.clear();
+        updated += changed.size();
+        // Wait for the previous chunk before starting to save this one.
+        waitAndCheckpoint(pendingSave, memcache, checkpointKey, pendingLastUserId);
+        pendingSave = UserDataStore.saveReservations(changed);
+        pendingLastUserId = lastUserId;
+      }
+      waitAndCheckpoint(pendingSave, memcache, checkpointKey, pendingLastUserId);
+
+      boolean done = !reader.hasNext();
+      LOG.info("Synced reservations of " + users + " users after "
+          + (startAfter == null ? "the start" : "user " + startAfter) + ", " + updated
+          + " updated in " + (System.currentTimeMillis() - start) + "ms"
+          + (done ? "" : ", continuing in a new task after user " + lastUserId));
+      if (!done) {
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder
+            .withUrl(QUEUE_URL)
+            .method(Method.GET)
+            .param(PARAM_START_AFTER, lastUserId));
       }
     }
   }
 
+  /**
+   * Update reservations in datastore with those from RTDB.
+   *
+   * @param chunk Reservations from RTDB by user ID.
+   * @return Reserved sessions that changed and need to be saved, by user ID.
+   */
+  private Map<String, List<ReservedSession>> updateChunk(
+      Map<String, Map<String, ReservedSession>> chunk) {
+    Map<String, Map<String, ReservedSession>> stored =
+        UserDataStore.loadReservations(chunk.keySet());
+    Map<String, List<ReservedSession>> changed = new HashMap<>();
+    int missing = 0;
+    for (Map.Entry<String, Map<String, ReservedSession>> entry : chunk.entrySet()) {
+      Map<String, ReservedSession> current = stored.get(entry.getKey());
+      if (current == null) {
+        missing++;
+        continue;
+      }
+      List<ReservedSession> userChanges = applyReservations(current, entry.getValue());
+      if (!userChanges.isEmpty()) {
+        changed.put(entry.getKey(), userChanges);
+      }
+    }
+    if (missing > 0) {
+      LOG.warning("No UserData for " + missing + " users with reservations");
+    }
+    return changed;
+  }
+
+  /**
+   * @param stored Reserved sessions of the user in datastore, by session ID.
+   * @return Reserved sessions of the user that changed.
+   */
+  private List<ReservedSession> applyReservations(Map<String, ReservedSession> stored,
+      Map<String, ReservedSession> reservedSessions) {
+    List<ReservedSession> changed = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (ReservedSession current : stored.values()) {
+      ReservedSession reservedSession = reservedSessions.remove(current.sessionID);
+      // Mark DELETED if reservation does not exist in RTDB.
+      ReservedSession.Status status = reservedSession == null
+          ? ReservedSession.Status.DELETED : reservedSession.status;
+      if (current.status != status) {
+        current.status = status;
+        current.timestampUTC = now;
+        changed.add(current);
+      }
+    }
+    // Add reservations from RTDB that do not exist in datastore.
+    for (ReservedSession reservedSession : reservedSessions.values()) {
+      changed.add(reservedSession);
+    }
+    return changed;
+  }
+
+  /**
+   * Deserialize reservations from RTDB.
+   */
+  private Map<String, ReservedSession> parseReservations(JsonObject jReservation) {
+    Map<String, ReservedSession> reservedSessions = new HashMap<>();
+    if (jReservation.has(RESERVATIONS_KEY)) {
+      JsonArray jUserReservations = jReservation.get(RESERVATIONS_KEY).getAsJsonArray();
+      for (int j = 0; j < jUserReservations.size(); j++) {
+        JsonObject jUserReservation = jUserReservations.get(j).getAsJsonObject();
+        String sessionId = jUserReservation.get("sessionId").getAsString();
+        ReservedSession.Status status =
+            mapToDatastoreStatus(jUserReservation.get("status").getAsString());
+        ReservedSession reservedSession = new ReservedSession(sessionId, status,
+            System.currentTimeMillis());
+        reservedSessions.put(sessionId, reservedSession);
+      }
+    }
+    return reservedSessions;
+  }
+
+  private void waitAndCheckpoint(Result<?> pendingSave, MemcacheService memcache,
+      String checkpointKey, String lastUserId) {
+    if (pendingSave != null) {
+      pendingSave.now();
+    }
+    if (checkpointKey != null && lastUserId != null) {
+      memcache.put(checkpointKey, lastUserId,
+          Expiration.byDeltaSeconds(CHECKPOINT_EXPIRATION_S));
+    }
+  }
+
   /**
    * Map RTDB reservation status to reservation status in datastore.
    *
@@ -134,21 +266,26 @@ public class SyncReservationsQueueWorker extends HttpServlet {
   }
 
   /**
-   * Retrieve all reservations currently in RTDB.
+   * Open a stream of the reservations currently in RTDB, ordered by user ID.
    *
-   * @return JSON array of all reservations in RTDB.
+   * @param startAfter ID of the user after whom the stream starts, or null to stream the
+   * reservations of all users.
+   * @return Reader positioned before the JSON array of the reservations in RTDB, or null if the
+   * reservations can't be retrieved.
    */
-  private JsonArray getFirebaseReservations(String accessToken) {
+  private JsonReader openFirebaseReservations(String accessToken, String startAfter) {
     try {
       String urlStr = Config.HTTP_FUNCTIONS_BASE_URL + "/getReservations?token=" + accessToken;
+      if (startAfter != null) {
+        urlStr += "&" + PARAM_START_AFTER + "=" + URLEncoder.encode(startAfter, "UTF-8");
+      }
       URL url = new URL(urlStr);
       HttpURLConnection connection = (HttpURLConnection) url.openConnection();
       connection.setConnectTimeout(540000);
       connection.setReadTimeout(540000);
 
       InputStream stream = connection.getInputStream();
-      JsonReader reader = new JsonReader(new InputStreamReader(stream, Charset.forName("UTF-8")));
-      return new JsonParser().parse(reader).getAsJsonArray();
+      return new JsonReader(new InputStreamReader(stream, Charset.forName("UTF-8")));
     } catch (IOException e) {
       LOG.severe("Unable to get Firebase reservations: " + e.getMessage());
     }
@@ -29,7 +29,10 @@ import org.gdg_campinas.treffen.server.schedule.Config;
 import org.gdg_campinas.treffen.server.schedule.model.DataCheck;
 import org.gdg_campinas.treffen.server.schedule.model.DataExtractor;
 import org.gdg_campinas.treffen.server.schedule.model.JsonDataSources;
+import org.gdg_campinas.treffen.server.schedule.model.JsonFingerprint;
+import org.gdg_campinas.treffen.server.schedule.model.SessionDataDelta;
 import org.gdg_campinas.treffen.server.schedule.server.cloudstorage.CloudFileManager;
+import org.gdg_campinas.treffen.server.schedule.server.input.ConcurrentFetchStage;
 import org.gdg_campinas.treffen.server.schedule.server.input.ExtraInput;
 import org.gdg_campinas.treffen.server.schedule.input.fetcher.EntityFetcher;
 import org.gdg_campinas.treffen.server.schedule.input.fetcher.RemoteFilesEntityFetcherFactory;
@@ -72,22 +75,26 @@ public class APIUpdater {
 
     UpdateRunLogger logger = new UpdateRunLogger();
     CloudFileManager fileManager = new CloudFileManager();
-    
-    logger.startTimer();
-    JsonDataSources sources = new ExtraInput().fetchAllDataSources();
-    logger.stopTimer("fetchExtraAPI");
 
+    // Fetch all the sources at once. Per-source times are logged by the fetch stage, while
+    // fetchCriticalPath is the wall-clock time of the whole stage.
     logger.startTimer();
-    sources.putAll(new VendorStaticInput().fetchAllDataSources());
-    logger.stopTimer("fetchVendorStaticAPI");
+    JsonDataSources sources = new ConcurrentFetchStage(Config.DATA_SOURCE_FETCH_PARALLELISM,
+        Config.DATA_SOURCE_FETCH_TIMEOUT_MS)
+        .add(new ExtraInput())
+        .add(new VendorStaticInput())
+        .fetchAll(logger);
+    logger.stopTimer("fetchCriticalPath");
 
     logger.startTimer();
     JsonObject newData = new DataExtractor(obfuscate).extractFromDataSources(sources);
     logger.stopTimer("extractOurData");
 
+    // The fingerprint is computed from the tree, so we know if anything changed before
+    // serializing the data.
     logger.startTimer();
-    byte[] newHash = CloudFileManager.calulateHash(newData);
-    logger.stopTimer("calculateHash");
+    byte[] newHash = JsonFingerprint.of(newData);
+    logger.stopTimer("calculateFingerprint");
 
     // compare current Vendor API log with the one from previous run:
     logger.startTimer();
@@ -104,6 +111,7 @@ public class APIUpdater {
     logger.stopTimer("readManifest");
 
     JsonWriter optionalOutputWriter = null;
+    byte[] contentHash = null;
 
     logger.startTimer();
     // Upload a new version of the sessions file
@@ -115,8 +123,9 @@ public class APIUpdater {
       new Gson().toJson(newData, optionalOutputWriter);
       optionalOutputWriter.flush();
     } else {
-      // save data to the CloudStorage
-      fileManager.createOrUpdate(dataProduction.sessionsFilename, newData, false);
+      // save data to the CloudStorage, hashing the bytes as they are uploaded
+      contentHash = fileManager.createOrUpdate(dataProduction.sessionsFilename, newData, false,
+          Config.GZIP_DATA_FILES);
     }
     logger.stopTimer("uploadNewSessionsFile");
 
@@ -133,33 +142,78 @@ public class APIUpdater {
       // Only update manifest and log if saving to persistent storage
 
       logger.startTimer();
+      publishDelta(fileManager, dataProduction, newData);
+      logger.stopTimer("uploadDelta");
 
-      // Create new manifests
-      JsonObject newProductionManifest = new JsonObject();
-      newProductionManifest.add("format", new JsonPrimitive(Config.MANIFEST_FORMAT_VERSION));
-      newProductionManifest.add("data_files", dataProduction.dataFiles);
+      logger.startTimer();
+      publishManifests(fileManager, dataProduction);
+      logger.stopTimer("uploadManifest");
 
-      JsonObject newStagingManifest = new JsonObject();
-      newStagingManifest.add("format", new JsonPrimitive(Config.MANIFEST_FORMAT_VERSION));
-     // newStagingManifest.add("data_files", dataStaging.dataFiles);
+      logger.logUpdateRun(dataProduction.majorVersion, dataProduction.minorVersion,
+          dataProduction.sessionsFilename, newHash, contentHash, newData, force);
+    }
 
-      // save manifests to the CloudStorage
-      fileManager.createOrUpdateProductionManifest(newProductionManifest);
-      fileManager.createOrUpdateStagingManifest(newStagingManifest);
+  }
 
-      try {
-        // notify clients that session data has been updated.
-        new GCMPing().notifySessionSync();
-      } catch (Throwable t) {
-        Logger.getLogger(APIUpdater.class.getName()).log(Level.SEVERE, "Error while pinging GCM server", t);
+  /**
+   * Uploads the delta from the previous session data file to the new one and appends it to the
+   * delta chain of the manifest. Clients that have the previous file can then download only the
+   * delta. Failures are only logged, since clients can always fall back to the full file.
+   */
+  private void publishDelta(CloudFileManager fileManager, ManifestData dataProduction,
+      JsonObject newData) {
+    if (dataProduction.previousSessionsFilename == null) {
+      return;
+    }
+    try {
+      JsonObject oldData = fileManager.readFileAsJsonObject(dataProduction.previousSessionsFilename);
+      if (oldData == null) {
+        return;
       }
+      JsonObject delta = SessionDataDelta.compute(oldData, newData,
+          dataProduction.previousSessionsFilename, dataProduction.sessionsFilename);
+      String deltaFilename = MessageFormat.format(Config.SESSIONS_DELTA_FORMAT,
+          dataProduction.majorVersion, dataProduction.minorVersion);
+      fileManager.createOrUpdate(deltaFilename, delta, false, Config.GZIP_DATA_FILES);
+
+      JsonObject chainEntry = new JsonObject();
+      chainEntry.addProperty(SessionDataDelta.FROM, dataProduction.previousSessionsFilename);
+      chainEntry.addProperty(SessionDataDelta.TO, dataProduction.sessionsFilename);
+      chainEntry.addProperty("file", deltaFilename);
+      dataProduction.deltas.add(chainEntry);
+      while (dataProduction.deltas.size() > Config.SESSIONS_DELTA_CHAIN_LENGTH) {
+        dataProduction.deltas.remove(0);
+      }
+    } catch (IOException ex) {
+      Logger.getLogger(APIUpdater.class.getName()).log(Level.WARNING,
+          "Could not publish delta from " + dataProduction.previousSessionsFilename, ex);
+    }
+  }
 
-      logger.stopTimer("uploadManifest");
-
-      logger.logUpdateRun(dataProduction.majorVersion, dataProduction.minorVersion,
-          dataProduction.sessionsFilename, newHash, newData, force);
+  private void publishManifests(CloudFileManager fileManager, ManifestData dataProduction)
+      throws IOException {
+    // Create new manifests
+    JsonObject newProductionManifest = new JsonObject();
+    newProductionManifest.add("format", new JsonPrimitive(Config.MANIFEST_FORMAT_VERSION));
+    newProductionManifest.add("data_files", dataProduction.dataFiles);
+    if (dataProduction.deltas.size() > 0) {
+      newProductionManifest.add("deltas", dataProduction.deltas);
     }
 
+    JsonObject newStagingManifest = new JsonObject();
+    newStagingManifest.add("format", new JsonPrimitive(Config.MANIFEST_FORMAT_VERSION));
+   // newStagingManifest.add("data_files", dataStaging.dataFiles);
+
+    // save manifests to the CloudStorage
+    fileManager.createOrUpdateProductionManifest(newProductionManifest);
+    fileManager.createOrUpdateStagingManifest(newStagingManifest);
+
+    try {
+      // notify clients that session data has been updated.
+      new GCMPing().notifySessionSync();
+    } catch (Throwable t) {
+      Logger.getLogger(APIUpdater.class.getName()).log(Level.SEVERE, "Error while pinging GCM server", t);
+    }
   }
 
   private void reportDataCheckFailures(DataCheck.CheckResult result, OutputStream optionalOutput) throws IOException {
@@ -224,11 +278,15 @@ public class APIUpdater {
             if (copyFrom == null) {
               data.majorVersion = Integer.parseInt(matcher.group(1));
               data.minorVersion = Integer.parseInt(matcher.group(2));
+              data.previousSessionsFilename = filename;
             }
           } else {
             data.dataFiles.add(file);
           }
         }
+        if (copyFrom == null && currentManifest.has("deltas")) {
+          data.deltas = currentManifest.get("deltas").getAsJsonArray();
+        }
       } catch (NullPointerException ex) {
         Logger.getLogger(getClass().getName()).warning("Ignoring existing manifest, as it seems "
             + "to be badly formatted.");
@@ -27,6 +27,10 @@ public class ManifestData {
   public int majorVersion;
   public String sessionsFilename;
   public JsonArray dataFiles;
+  // session data file in the current manifest, that the new one replaces
+  public String previousSessionsFilename;
+  // delta chain, see SessionDataDelta
+  public JsonArray deltas = new JsonArray();
 
   public void setFromDataFiles(JsonArray files) {
     for (JsonElement file: files) {
@@ -54,7 +54,14 @@ public class UpdateRunLogger {
   }
 
   public void stopTimer(String description) {
-    timers.put((timers.size()+1)+"_"+description, System.currentTimeMillis() - lastStart);
+    recordTimer(description, System.currentTimeMillis() - lastStart);
+  }
+
+  /**
+   * Records an already measured time.
+   */
+  public void recordTimer(String description, long elapsedMillis) {
+    timers.put((timers.size()+1)+"_"+description, elapsedMillis);
   }
 
   public Entity getLastRun() {
@@ -75,18 +82,12 @@ public class UpdateRunLogger {
     logger.fine("Run APIUpdater. No updates required.");
   }
 
+  /**
+   * @param hash fingerprint of the data, used to detect if the next run has anything new
+   * @param contentHash MD5 of the uploaded file, or null if nothing was uploaded
+   */
   public void logUpdateRun(int majorVersion, int minorVersion, String filename, byte[] hash,
-      JsonObject data, boolean forced) {
-    Entity updateRun = new Entity(UPDATERUN_ENTITY_KIND);
-    updateRun.setProperty("date", new Date());
-    updateRun.setProperty("hash", new ShortBlob(hash));
-    updateRun.setProperty("forced", forced);
-    updateRun.setProperty("majorVersion", majorVersion);
-    updateRun.setProperty("minorVersion", minorVersion);
-    for (Entry<String, Long> performanceItem: timers.entrySet()) {
-      updateRun.setProperty("time_"+performanceItem.getKey(), performanceItem.getValue());
-    }
-    updateRun.setProperty("filename", filename);
+      byte[] contentHash, JsonObject data, boolean forced) {
     StringBuilder sb = new StringBuilder();
     for (Entry<String, JsonElement> el: data.entrySet()) {
       if (el.getValue().isJsonArray()) {
@@ -97,6 +98,19 @@ public class UpdateRunLogger {
       // remove trailing space
       sb.deleteCharAt(sb.length()-1);
     }
+    Entity updateRun = new Entity(UPDATERUN_ENTITY_KIND);
+    updateRun.setProperty("date", new Date());
+    updateRun.setProperty("hash", new ShortBlob(hash));
+    if (contentHash != null) {
+      updateRun.setProperty("contentHash", new ShortBlob(contentHash));
+    }
+    updateRun.setProperty("forced", forced);
+    updateRun.setProperty("majorVersion", majorVersion);
+    updateRun.setProperty("minorVersion", minorVersion);
+    for (Entry<String, Long> performanceItem: timers.entrySet()) {
+      updateRun.setProperty("time_"+performanceItem.getKey(), performanceItem.getValue());
+    }
+    updateRun.setProperty("filename", filename);
     updateRun.setProperty("summary", sb.toString());
     datastore.put(updateRun);
     timers.clear();
@@ -28,19 +28,28 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import org.gdg_campinas.treffen.server.schedule.Config;
+import org.gdg_campinas.treffen.server.schedule.model.JsonStreamable;
 import org.gdg_campinas.treffen.server.schedule.input.fetcher.RemoteJsonHelper;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Handle all interaction with GoogleCloudStorage.
@@ -49,6 +58,19 @@ import java.util.logging.Logger;
 public class CloudFileManager {
 
   private static final String DEFAULT_CHARSET_NAME = "UTF-8";
+  private static final String GZIP_ENCODING = "gzip";
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+  // Number of files kept by readFileAsJsonObjectCached. Files are cached by etag, so the entries
+  // of replaced files are never used again and are evicted as the least recently used.
+  private static final int JSON_FILE_CACHE_SIZE = 32;
+
+  private static final Map<String, JsonObject> jsonFileCache = Collections.synchronizedMap(
+      new LinkedHashMap<String, JsonObject>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+          return size() > JSON_FILE_CACHE_SIZE;
+        }
+      });
 
   private final GcsService gcsService = GcsServiceFactory.createGcsService(
       RetryParams.getDefaultInstance());
@@ -63,22 +85,22 @@ public class CloudFileManager {
     stagingManifestFile = new GcsFilename(defaultBucket, Config.MANIFEST_NAME_STAGING);
   }
 
-  static public byte[] calulateHash(JsonElement contents) {
-    MessageDigest md;
-    try {
-      md = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      throw new InternalError("MD5 MessageDigest is not available");
-    }
+  static public byte[] calulateHash(JsonElement contents) throws IOException {
+    return calulateHash(asStreamable(contents));
+  }
+
+  static public byte[] calulateHash(JsonStreamable contents) throws IOException {
     OutputStream byteSink = new OutputStream() {
       @Override
       public void write(int b) throws IOException {
         // ignore, since this is only used to calculate MD5
       }
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        // ignore, since this is only used to calculate MD5
+      }
     };
-    DigestOutputStream dis = new DigestOutputStream(byteSink, md);
-    new Gson().toJson(contents, new OutputStreamWriter(dis, Charset.forName(DEFAULT_CHARSET_NAME)));
-    return dis.getMessageDigest().digest();
+    return writeAndHash(contents, byteSink);
   }
 
   /**
@@ -87,21 +109,65 @@ public class CloudFileManager {
    * @param filename Name of file to create
    * @param contents File contents
    * @param shortCache If true, sets cache expiry to 0 sec. Otherwise, cache expiry is set to 6,000 sec.
+   * @return MD5 hash of the bytes written to the file
    * @throws IOException
    */
-  public void createOrUpdate(String filename, JsonElement contents, boolean shortCache)
+  public byte[] createOrUpdate(String filename, JsonElement contents, boolean shortCache)
       throws IOException {
+    return createOrUpdate(filename, asStreamable(contents), shortCache);
+  }
+
+  /**
+   * Create or update a file in a GCC bucket, streaming the contents directly to the file instead
+   * of serializing a JsonElement tree. The contents are serialized only once: the same bytes feed
+   * the MD5 digest and the GCS channel.
+   *
+   * @param filename Name of file to create
+   * @param contents File contents
+   * @param shortCache If true, sets cache expiry to 0 sec. Otherwise, cache expiry is set to 6,000 sec.
+   * @return MD5 hash of the bytes written to the file
+   * @throws IOException
+   */
+  public byte[] createOrUpdate(String filename, JsonStreamable contents, boolean shortCache)
+      throws IOException {
+    return createOrUpdate(filename, contents, shortCache, false);
+  }
+
+  /**
+   * Same as {@link #createOrUpdate(String, JsonElement, boolean)}, optionally storing the file
+   * gzipped.
+   */
+  public byte[] createOrUpdate(String filename, JsonElement contents, boolean shortCache,
+      boolean gzip) throws IOException {
+    return createOrUpdate(filename, asStreamable(contents), shortCache, gzip);
+  }
+
+  /**
+   * Same as {@link #createOrUpdate(String, JsonStreamable, boolean)}, optionally storing the file
+   * gzipped, with "Content-Encoding: gzip". Cloud Storage serves gzipped files as they are to
+   * clients that accept gzip and decompresses them for the other clients, so the file URL doesn't
+   * change. The returned hash is always of the uncompressed bytes.
+   */
+  public byte[] createOrUpdate(String filename, JsonStreamable contents, boolean shortCache,
+      boolean gzip) throws IOException {
     GcsFilename file = new GcsFilename(defaultBucket, filename);
-    GcsFileOptions options = new GcsFileOptions.Builder()
+    GcsFileOptions.Builder options = new GcsFileOptions.Builder()
       .mimeType("application/json")
-      .cacheControl("public, max-age="+(shortCache?0:6000))
-      .build();
+      .cacheControl("public, max-age="+(shortCache?0:6000));
+    if (gzip) {
+      options.contentEncoding(GZIP_ENCODING);
+    }
     GcsOutputChannel writeChannel = null;
     try {
-      writeChannel = gcsService.createOrReplace(file, options);
-      Writer writer = Channels.newWriter(writeChannel, DEFAULT_CHARSET_NAME);
-      new Gson().toJson(contents, writer);
-      writer.flush();
+      writeChannel = gcsService.createOrReplace(file, options.build());
+      OutputStream out = Channels.newOutputStream(writeChannel);
+      if (!gzip) {
+        return writeAndHash(contents, out);
+      }
+      GZIPOutputStream gzipOut = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+      byte[] hash = writeAndHash(contents, gzipOut);
+      gzipOut.finish();
+      return hash;
     } finally {
       if (writeChannel != null) {
         writeChannel.close();
@@ -109,6 +175,35 @@ public class CloudFileManager {
     }
   }
 
+  /**
+   * Serializes the contents to the output stream, returning the MD5 hash of the written bytes.
+   * Doesn't close the output stream.
+   */
+  private static byte[] writeAndHash(JsonStreamable contents, OutputStream out)
+      throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new InternalError("MD5 MessageDigest is not available");
+    }
+    DigestOutputStream dos = new DigestOutputStream(out, md);
+    JsonWriter writer = new JsonWriter(
+        new OutputStreamWriter(dos, Charset.forName(DEFAULT_CHARSET_NAME)));
+    contents.writeTo(writer);
+    writer.flush();
+    return md.digest();
+  }
+
+  private static JsonStreamable asStreamable(final JsonElement contents) {
+    return new JsonStreamable() {
+      @Override
+      public void writeTo(JsonWriter writer) throws IOException {
+        new Gson().toJson(contents, writer);
+      }
+    };
+  }
+
   public String getBucketName() {
     return defaultBucket;
   }
@@ -141,8 +236,32 @@ public class CloudFileManager {
     return readFileAsJsonObject(new GcsFilename(defaultBucket, filename));
   }
 
-  public JsonObject readFileAsJsonObject(GcsFilename file) throws IOException {
+  /**
+   * Same as {@link #readFileAsJsonObject(String)}, but keeps the parsed files in memory by
+   * filename and etag, so reading a file that didn't change since it was last read here only costs
+   * a metadata request. The returned object is shared by all callers and must not be changed.
+   */
+  public JsonObject readFileAsJsonObjectCached(String filename) throws IOException {
+    GcsFilename file = new GcsFilename(defaultBucket, filename);
     GcsFileMetadata metadata = gcsService.getMetadata(file);
+    if (metadata == null || metadata.getEtag() == null) {
+      return readFileAsJsonObject(file, metadata);
+    }
+    String key = filename + "#" + metadata.getEtag();
+    JsonObject data = jsonFileCache.get(key);
+    if (data == null) {
+      data = readFileAsJsonObject(file, metadata);
+      jsonFileCache.put(key, data);
+    }
+    return data;
+  }
+
+  public JsonObject readFileAsJsonObject(GcsFilename file) throws IOException {
+    return readFileAsJsonObject(file, gcsService.getMetadata(file));
+  }
+
+  private JsonObject readFileAsJsonObject(GcsFilename file, GcsFileMetadata metadata)
+      throws IOException {
     if (metadata == null) {
       if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Development) {
         // In the development server, try to fetch files on cloud storage via HTTP
@@ -154,8 +273,8 @@ public class CloudFileManager {
     GcsInputChannel readChannel = null;
     try {
       readChannel = gcsService.openReadChannel(file, 0);
-      JsonElement element = new JsonParser().parse(Channels.newReader(readChannel,
-          DEFAULT_CHARSET_NAME));
+      JsonElement element = new JsonParser().parse(new InputStreamReader(
+          openInputStream(metadata, readChannel), DEFAULT_CHARSET_NAME));
       return element.getAsJsonObject();
     } finally {
       if (readChannel != null) {
@@ -163,4 +282,17 @@ public class CloudFileManager {
       }
     }
   }
+
+  /**
+   * The GCS client reads the stored bytes, so gzipped files have to be decompressed here.
+   */
+  private InputStream openInputStream(GcsFileMetadata metadata, ReadableByteChannel channel)
+      throws IOException {
+    InputStream in = Channels.newInputStream(channel);
+    if (metadata.getOptions() != null
+        && GZIP_ENCODING.equals(metadata.getOptions().getContentEncoding())) {
+      return new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+    }
+    return in;
+  }
 }
@@ -16,8 +16,17 @@
 package org.gdg_campinas.treffen.server.schedule.server.image;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesService.OutputEncoding;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+import com.google.appengine.api.images.Transform;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
@@ -26,23 +35,38 @@ import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.RetryParams;
-import com.google.common.base.Optional;
 import com.google.common.hash.Hashing;
 import com.google.gson.JsonObject;
+import org.gdg_campinas.treffen.server.RequestExecutors;
 import org.gdg_campinas.treffen.server.schedule.Config;
 import org.gdg_campinas.treffen.server.schedule.model.InputJsonKeys;
 import org.gdg_campinas.treffen.server.schedule.model.JsonDataSource;
 import org.gdg_campinas.treffen.server.schedule.model.JsonDataSources;
+import org.gdg_campinas.treffen.server.schedule.server.image.ServingUrlManager.ImageRecord;
+import org.gdg_campinas.treffen.server.schedule.server.image.ServingUrlManager.ImageSource;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +87,15 @@ public class ImageUpdater {
     GCS_IMAGE_FOLDERS.put(InputJsonKeys.VendorAPISource.MainTypes.speakers, "images/speakers");
   }
 
+  private static final String IF_NONE_MATCH = "If-None-Match";
+  private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  private static final String ETAG = "ETag";
+  private static final String LAST_MODIFIED = "Last-Modified";
+  // Images are named after their content, so they never change.
+  private static final String CACHE_CONTROL = "public, max-age=31536000";
+  // Largest height accepted by the images service.
+  private static final int MAX_RESIZE_HEIGHT = 4000;
+
   private final Logger LOGGER = Logger.getLogger(ImageUpdater.class.getName());
 
   private final GcsService gcsService = GcsServiceFactory.createGcsService(
@@ -70,14 +103,22 @@ public class ImageUpdater {
 
   private final URLFetchService urlFetchService = URLFetchServiceFactory.getURLFetchService();
 
+  private final ImagesService imagesService = ImagesServiceFactory.getImagesService();
+
   /**
    * An ImageUpdate run prepares images in GCS for serving. It fetches images from EventPoint URLs,
    * stores image files in GCS, and sets up serving URLs with App Engine's image service. The
-   * serving URLs allow on-demand image resizing with URL parameters.
+   * serving URLs allow on-demand image resizing with URL parameters. Variants of each image are
+   * also stored for the widths in {@link Config#IMAGE_WIDTH_BUCKETS}, so that clients can load a
+   * pre-sized image through its width bucket URL.
+   *
+   * URLs previously processed are fetched again with the ETag and Last-Modified validators of
+   * their last response, so unchanged images only cost a 304 response. Images whose content
+   * changed are imported again and their URL is moved to the record of the new content.
    *
-   * We only fetch and process images for new URLs encountered from EventPoint. We won't detect
-   * image content changes from URLs previously processed. EventPoint ensures the image from a URL
-   * will not change.
+   * The run is a pipeline of batched stages: the known source URLs are looked up together, the
+   * images are fetched concurrently, images with identical content are stored once in GCS, and
+   * the serving URLs are created together. The time spent in each stage is logged.
    *
    * @see <a href="https://cloud.google.com/appengine/docs/standard/java/images/">Google App Engine
    * - Overview of Images API for Java</a>
@@ -85,48 +126,279 @@ public class ImageUpdater {
   public void run(JsonDataSources rawCmsSources) throws IOException {
 
     Map<InputJsonKeys.VendorAPISource.MainTypes, List<String>> sourceUrlsByType = parseImageUrls(rawCmsSources);
+    Set<String> allSourceUrls = new HashSet<>();
+    for (List<String> sourceUrls : sourceUrlsByType.values()) {
+      allSourceUrls.addAll(sourceUrls);
+    }
+
+    // Look up the records of URLs that have been previously fetched and processed.
+    long stageStart = System.currentTimeMillis();
+    Map<String, ImageRecord> previousRecords =
+        ServingUrlManager.INSTANCE.getImageRecords(allSourceUrls);
+    long lookupMillis = System.currentTimeMillis() - stageStart;
+
+    long fetchMillis = 0;
+    long storeMillis = 0;
+    long servingUrlMillis = 0;
+    int notModified = 0;
+    int fetched = 0;
+    int stored = 0;
     for (InputJsonKeys.VendorAPISource.MainTypes type : sourceUrlsByType.keySet()) {
-      List<String> sourceUrls = sourceUrlsByType.get(type);
+      Set<String> sourceUrls = new LinkedHashSet<>(sourceUrlsByType.get(type));
+      if (sourceUrls.isEmpty()) {
+        continue;
+      }
 
-      for (String sourceUrl : sourceUrls) {
-        // Skip URLs that have been previously fetched and processed.
-        if (ServingUrlManager.INSTANCE.getServingUrl(sourceUrl) != null) {
-          LOGGER.info("Skip previously fetched image at '" + sourceUrl + "'.");
-          continue;
+      // Fetches images from EventPoint URLs, conditionally for previously fetched ones.
+      stageStart = System.currentTimeMillis();
+      Map<ImageSource, byte[]> images = fetchImages(sourceUrls, previousRecords);
+      Iterator<byte[]> imageData = images.values().iterator();
+      while (imageData.hasNext()) {
+        if (imageData.next() == null) {
+          notModified++;
+          imageData.remove();
         }
+      }
+      fetched += images.size();
+      fetchMillis += System.currentTimeMillis() - stageStart;
 
-        // Fetches image from EventPoint URL.
-        URL url = new URL(sourceUrl);
-        HTTPResponse response = null;
-        try {
-          response = urlFetchService.fetch(url);
-        } catch (IOException e) {
-          // response is null when fetching throws exception.
+      // Stores images to GCS using image content's MD5 as file name. Images fetched again with
+      // the same content are already stored, only their validators are updated.
+      stageStart = System.currentTimeMillis();
+      List<ImageRecord> records = new ArrayList<>();
+      List<ImageContent> newContents = new ArrayList<>();
+      for (ImageContent content : groupByContent(GCS_IMAGE_FOLDERS.get(type), images)) {
+        if (isStored(content.record, previousRecords)) {
+          records.add(content.record);
+        } else {
+          newContents.add(content);
         }
-        if (response == null || response.getResponseCode() != SC_OK) {
-          LOGGER.log(Level.WARNING, "Failed to fetch image at '" + sourceUrl + "'.");
-          continue;
+      }
+      List<ImageRecord> storedRecords = storeImages(newContents);
+      records.addAll(storedRecords);
+      stored += storedRecords.size();
+      storeMillis += System.currentTimeMillis() - stageStart;
+
+      // Set up serving URLs using ImageService.
+      stageStart = System.currentTimeMillis();
+      ServingUrlManager.INSTANCE.saveImageRecords(records, previousRecords,
+          Config.IMAGE_UPDATE_PARALLELISM);
+      servingUrlMillis += System.currentTimeMillis() - stageStart;
+    }
+
+    LOGGER.info(notModified + " images not modified, fetched " + fetched
+        + " new or changed images stored as " + stored + " new files. Lookup: " + lookupMillis
+        + "ms, fetch: " + fetchMillis + "ms, store: " + storeMillis + "ms, serving URLs: "
+        + servingUrlMillis + "ms.");
+  }
+
+  /**
+   * Whether the content of a record is already stored in GCS with its width buckets, because one
+   * of its source URLs was recorded with the same file before.
+   */
+  private static boolean isStored(ImageRecord record, Map<String, ImageRecord> previousRecords) {
+    for (ImageSource source : record.sources) {
+      ImageRecord previous = previousRecords.get(source.sourceUrl);
+      if (previous != null && previous.gcsFilename.equals(record.gcsFilename)
+          && previous.widthBucketsUrl != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Fetches images, keeping at most {@link Config#IMAGE_FETCH_MAX_IN_FLIGHT} requests in flight.
+   * Images that have a previous record are requested with the validators of their last response.
+   *
+   * @return image data by source, with the validators of the response. The data is null if the
+   *     image was not modified. Images that couldn't be fetched are absent.
+   */
+  private Map<ImageSource, byte[]> fetchImages(Collection<String> sourceUrls,
+      Map<String, ImageRecord> previousRecords) {
+    Map<ImageSource, byte[]> images = new LinkedHashMap<>();
+    Deque<PendingFetch> inFlight = new ArrayDeque<>();
+    for (String sourceUrl : sourceUrls) {
+      if (inFlight.size() >= Config.IMAGE_FETCH_MAX_IN_FLIGHT) {
+        inFlight.poll().collectInto(images);
+      }
+      ImageRecord previous = previousRecords.get(sourceUrl);
+      ImageSource previousSource = previous == null ? null : previous.getSource(sourceUrl);
+      try {
+        HTTPRequest request = new HTTPRequest(new URL(sourceUrl));
+        if (previousSource != null && previousSource.etag != null) {
+          request.setHeader(new HTTPHeader(IF_NONE_MATCH, previousSource.etag));
+        }
+        if (previousSource != null && previousSource.lastModified != null) {
+          request.setHeader(new HTTPHeader(IF_MODIFIED_SINCE, previousSource.lastModified));
         }
-        byte[] imageData = response.getContent();
+        inFlight.add(new PendingFetch(sourceUrl, previousSource,
+            urlFetchService.fetchAsync(request)));
+      } catch (MalformedURLException e) {
+        LOGGER.log(Level.WARNING, "Failed to fetch image at '" + sourceUrl + "'.");
+      }
+    }
+    while (!inFlight.isEmpty()) {
+      inFlight.poll().collectInto(images);
+    }
+    return images;
+  }
 
-        // Stores image to GCS using image content's MD5 as file name.
-        String imageId = Hashing.md5().hashBytes(imageData).toString();
-        String imageExt = parseFileExtFromUrl(sourceUrl);
-        GcsFilename gcsFilename = new GcsFilename(Config.CLOUD_STORAGE_BUCKET,
-            GCS_IMAGE_FOLDERS.get(type) + "/" + imageId + "." + imageExt);
+  /**
+   * Stores images and their width buckets in GCS using {@link Config#IMAGE_UPDATE_PARALLELISM}
+   * threads.
+   *
+   * @return records of the images that were stored.
+   */
+  private List<ImageRecord> storeImages(Collection<ImageContent> contents) {
+    List<ImageRecord> records = new ArrayList<>();
+    if (contents.isEmpty()) {
+      return records;
+    }
+    ExecutorService executor = RequestExecutors.newFixedThreadPool(
+        Math.min(Config.IMAGE_UPDATE_PARALLELISM, contents.size()));
+    try {
+      Map<ImageContent, Future<?>> writes = new LinkedHashMap<>();
+      for (final ImageContent content : contents) {
+        writes.put(content, executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            storeImage(content);
+            return null;
+          }
+        }));
+      }
+      for (Map.Entry<ImageContent, Future<?>> write : writes.entrySet()) {
+        ImageContent content = write.getKey();
         try {
-          gcsService.createOrReplace(
-              gcsFilename, GcsFileOptions.getDefaultInstance(), ByteBuffer.wrap(imageData));
-        } catch (IOException e) {
-          LOGGER.log(Level.WARNING, "Failed to store image at " + sourceUrl + " to GCS.");
-          continue;
+          write.getValue().get();
+          records.add(content.record);
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Failed to store image at " + getSourceUrls(content.record)
+              + " to GCS.");
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
         }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return records;
+  }
+
+  private void storeImage(ImageContent content) throws IOException {
+    GcsFilename gcsFilename = content.record.gcsFilename;
+    String imageExt = parseFileExtFromUrl(gcsFilename.getObjectName());
+    GcsFileOptions options = new GcsFileOptions.Builder()
+        .mimeType(getMimeType(imageExt))
+        .cacheControl(CACHE_CONTROL)
+        .build();
+    gcsService.createOrReplace(gcsFilename, options, ByteBuffer.wrap(content.data));
+
+    // The serving URL still works if the width buckets can't be generated.
+    Image image;
+    try {
+      image = ImagesServiceFactory.makeImage(content.data);
+      image.getWidth();
+    } catch (IllegalArgumentException | UnsupportedOperationException e) {
+      LOGGER.log(Level.WARNING, "Can't generate width buckets of " + gcsFilename + ".");
+      return;
+    }
+    OutputEncoding encoding = getOutputEncoding(imageExt);
+    OutputSettings outputSettings = new OutputSettings(encoding);
+    GcsFileOptions resizedOptions = new GcsFileOptions.Builder()
+        .mimeType("image/" + encoding.name().toLowerCase())
+        .cacheControl(CACHE_CONTROL)
+        .build();
+    for (int width : Config.IMAGE_WIDTH_BUCKETS) {
+      byte[] data = content.data;
+      GcsFileOptions variantOptions = options;
+      if (width < image.getWidth()) {
+        int height = (int) Math.ceil((double) width * image.getHeight() / image.getWidth());
+        Transform resize = ImagesServiceFactory.makeResize(width,
+            Math.min(Math.max(height, 1), MAX_RESIZE_HEIGHT));
+        // The transform is applied in place, so each width starts from a new image.
+        data = imagesService.applyTransform(resize, ImagesServiceFactory.makeImage(content.data),
+            outputSettings).getImageData();
+        variantOptions = resizedOptions;
+      }
+      GcsFilename variant = new GcsFilename(gcsFilename.getBucketName(),
+          getWidthBucketObjectName(gcsFilename.getObjectName(), width));
+      gcsService.createOrReplace(variant, variantOptions, ByteBuffer.wrap(data));
+    }
+    content.record.widthBucketsUrl =
+        getWidthBucketsUrl(gcsFilename.getObjectName(), Config.IMAGE_WIDTH_BUCKETS);
+  }
 
-        // Set up serving URL using ImageService.
-        ServingUrlManager.INSTANCE.createServingUrl(gcsFilename, Optional.of(sourceUrl));
-        LOGGER.info("Fetched image at '" + sourceUrl + "'.");
+  /**
+   * Groups images by content, so that identical images fetched from different URLs are stored in
+   * the same GCS file. The file is named after the content's MD5 and the extension of the first
+   * URL it was fetched from.
+   */
+  static Collection<ImageContent> groupByContent(String folder, Map<ImageSource, byte[]> images) {
+    Map<String, ImageContent> contentsById = new LinkedHashMap<>();
+    for (Map.Entry<ImageSource, byte[]> image : images.entrySet()) {
+      String imageId = Hashing.md5().hashBytes(image.getValue()).toString();
+      ImageContent content = contentsById.get(imageId);
+      if (content == null) {
+        String imageExt = parseFileExtFromUrl(image.getKey().sourceUrl);
+        content = new ImageContent(new GcsFilename(Config.CLOUD_STORAGE_BUCKET,
+            folder + "/" + imageId + "." + imageExt), image.getValue());
+        contentsById.put(imageId, content);
       }
+      content.record.sources.add(image.getKey());
     }
+    return contentsById.values();
+  }
+
+  /**
+   * GCS object name of the variant of an image for one width, for example
+   * "images/speakers/w200/abc.jpg" for "images/speakers/abc.jpg".
+   */
+  static String getWidthBucketObjectName(String objectName, int width) {
+    return insertBeforeFilename(objectName, "w" + width);
+  }
+
+  /**
+   * URL of the variants of an image, for example
+   * "https://storage.googleapis.com/bucket/images/speakers/__w-200-400__/abc.jpg". Clients replace
+   * "__w-200-400__" with the best width for the view, like "w200".
+   */
+  static String getWidthBucketsUrl(String objectName, int[] widths) {
+    StringBuilder widthBuckets = new StringBuilder("__w");
+    for (int width : widths) {
+      widthBuckets.append('-').append(width);
+    }
+    widthBuckets.append("__");
+    return Config.CLOUD_STORAGE_BASE_URL
+        + insertBeforeFilename(objectName, widthBuckets.toString());
+  }
+
+  private static String insertBeforeFilename(String objectName, String folder) {
+    int idx = objectName.lastIndexOf('/');
+    return objectName.substring(0, idx + 1) + folder + "/" + objectName.substring(idx + 1);
+  }
+
+  private static String getMimeType(String imageExt) {
+    return "jpg".equalsIgnoreCase(imageExt) ? "image/jpeg" : "image/" + imageExt.toLowerCase();
+  }
+
+  private static OutputEncoding getOutputEncoding(String imageExt) {
+    if ("png".equalsIgnoreCase(imageExt) || "gif".equalsIgnoreCase(imageExt)) {
+      return OutputEncoding.PNG;
+    } else if ("webp".equalsIgnoreCase(imageExt)) {
+      return OutputEncoding.WEBP;
+    }
+    return OutputEncoding.JPEG;
+  }
+
+  private static List<String> getSourceUrls(ImageRecord record) {
+    List<String> sourceUrls = new ArrayList<>();
+    for (ImageSource source : record.sources) {
+      sourceUrls.add(source.sourceUrl);
+    }
+    return sourceUrls;
   }
 
   /**
@@ -162,4 +434,57 @@ public class ImageUpdater {
     }
     return isNullOrEmpty(ext) ? "jpg" : ext;  // return "jpg" if failed to parse extension.
   }
+
+  /**
+   * An image to store in GCS, and the record of its file.
+   */
+  static class ImageContent {
+    final ImageRecord record;
+    final byte[] data;
+
+    ImageContent(GcsFilename gcsFilename, byte[] data) {
+      this.record = new ImageRecord(gcsFilename);
+      this.data = data;
+    }
+  }
+
+  private class PendingFetch {
+    private final String sourceUrl;
+    private final ImageSource previousSource;
+    private final Future<HTTPResponse> response;
+
+    PendingFetch(String sourceUrl, ImageSource previousSource, Future<HTTPResponse> response) {
+      this.sourceUrl = sourceUrl;
+      this.previousSource = previousSource;
+      this.response = response;
+    }
+
+    void collectInto(Map<ImageSource, byte[]> images) {
+      try {
+        HTTPResponse result = response.get();
+        if (result.getResponseCode() == SC_NOT_MODIFIED && previousSource != null) {
+          images.put(previousSource, null);
+          return;
+        }
+        if (result.getResponseCode() == SC_OK) {
+          String etag = null;
+          String lastModified = null;
+          for (HTTPHeader header : result.getHeadersUncombined()) {
+            if (ETAG.equalsIgnoreCase(header.getName())) {
+              etag = header.getValue();
+            } else if (LAST_MODIFIED.equalsIgnoreCase(header.getName())) {
+              lastModified = header.getValue();
+            }
+          }
+          images.put(new ImageSource(sourceUrl, etag, lastModified), result.getContent());
+          return;
+        }
+      } catch (ExecutionException e) {
+        // fetching threw an exception.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      LOGGER.log(Level.WARNING, "Failed to fetch image at '" + sourceUrl + "'.");
+    }
+  }
 }
@@ -15,7 +15,9 @@
  */
 package org.gdg_campinas.treffen.server.schedule.server.image;
 
+import static com.google.common.base.Strings.emptyToNull;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.base.Strings.nullToEmpty;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
@@ -31,13 +33,37 @@ import com.google.appengine.api.images.ImagesService;
 import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.ServingUrlOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.gdg_campinas.treffen.server.RequestExecutors;
 import org.joda.time.DateTime;
 
 /**
  * Manages serving URLs for image files in GCS. This class uses Google Cloud Datastore to store
  * serving URL information for GCS images files.
+ *
+ * <p>The record of a file also keeps the source URLs its content was fetched from, with the HTTP
+ * validators (ETag and Last-Modified) of those responses, so that later imports can fetch them
+ * conditionally. Records of files shared by several source URLs store these properties as lists,
+ * aligned by index.
  */
 public enum ServingUrlManager {
   INSTANCE; // Enum-enforced singleton instance
@@ -45,8 +71,15 @@ public enum ServingUrlManager {
   static final String ENTITY_KIND = "ImageServingUrl";
   static final String SERVING_URL_PROPERTY = "servingUrl";
   static final String SOURCE_URL_PROPERTY = "sourceUrl";
+  static final String ETAG_PROPERTY = "etag";
+  static final String LAST_MODIFIED_PROPERTY = "lastModified";
+  static final String WIDTH_BUCKETS_URL_PROPERTY = "widthBucketsUrl";
   static final String TIMESTAMP_PROPERTY = "timestamp";
 
+  private static final Logger LOGGER = Logger.getLogger(ServingUrlManager.class.getName());
+  private static final int QUERY_CHUNK_SIZE = 500;
+  private static final Pattern GCS_FULL_PATH = Pattern.compile("/gs/([^/]+)/(.+)");
+
   DatastoreService datastore;
   ImagesService imagesService;
 
@@ -97,6 +130,26 @@ public enum ServingUrlManager {
    * Retrieve a previously created serving URL by specifying the source image URL.
    */
   public String getServingUrl(String sourceUrl) {
+    Entity entity = findBySourceUrl(sourceUrl);
+    return entity == null ? null : (String) entity.getProperty(SERVING_URL_PROPERTY);
+  }
+
+  /**
+   * Retrieve the URL clients should load the image of a source URL from. This is the width bucket
+   * URL of the image, which {@code ImageLoader} on the clients resolves to a pre-sized variant, or
+   * the serving URL if no variants were generated for the image.
+   */
+  public String getImageUrl(String sourceUrl) {
+    Entity entity = findBySourceUrl(sourceUrl);
+    if (entity == null) {
+      return null;
+    }
+    String widthBucketsUrl = (String) entity.getProperty(WIDTH_BUCKETS_URL_PROPERTY);
+    return isNullOrEmpty(widthBucketsUrl)
+        ? (String) entity.getProperty(SERVING_URL_PROPERTY) : widthBucketsUrl;
+  }
+
+  private Entity findBySourceUrl(String sourceUrl) {
     if (isNullOrEmpty(sourceUrl)) {
       return null;
     }
@@ -107,13 +160,242 @@ public enum ServingUrlManager {
     if ((result == null || result.isEmpty())) {
       return null;
     }
-    return (String) result.get(0).getProperty(SERVING_URL_PROPERTY);
+    return result.get(0);
   }
 
+  /**
+   * Retrieve the records of many source image URLs. All the serving URL records are read in one
+   * scan, instead of running one query per source URL.
+   *
+   * @return records by source URL. Source URLs that were never processed are absent.
+   */
+  public Map<String, ImageRecord> getImageRecords(Collection<String> sourceUrls) {
+    Map<String, ImageRecord> records = new HashMap<>();
+    if (sourceUrls.isEmpty()) {
+      return records;
+    }
+    Set<String> wanted = new HashSet<>(sourceUrls);
+    Iterable<Entity> entities = datastore.prepare(new Query(ENTITY_KIND))
+        .asIterable(FetchOptions.Builder.withChunkSize(QUERY_CHUNK_SIZE));
+    for (Entity entity : entities) {
+      ImageRecord record = null;
+      for (ImageSource source : getSources(entity)) {
+        if (wanted.contains(source.sourceUrl)) {
+          if (record == null) {
+            record = toImageRecord(entity);
+          }
+          records.put(source.sourceUrl, record);
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Save the records of many image files in GCS, creating their serving URLs if needed. The
+   * existing records are read with one batch get, the missing serving URLs are created by up to
+   * {@code parallelism} threads, and the new or changed records are written with one batch put.
+   *
+   * <p>The sources of each record are added to the record of its file, replacing the validators
+   * they had. A source URL that was recorded with a different file before, because its content
+   * changed, is removed from that file's record.
+   *
+   * @param records files to record, with the sources their content was fetched from and, if
+   *     variants of the image were generated, their width bucket URL.
+   * @param previousRecords records the source URLs had before, by source URL.
+   * @return serving URLs by GCS file. Files whose serving URL couldn't be created are absent.
+   */
+  public Map<GcsFilename, String> saveImageRecords(Collection<ImageRecord> records,
+      Map<String, ImageRecord> previousRecords, int parallelism) {
+    Map<GcsFilename, String> servingUrls = new HashMap<>();
+    if (records.isEmpty()) {
+      return servingUrls;
+    }
+    Map<GcsFilename, Key> keys = new LinkedHashMap<>();
+    Map<GcsFilename, Set<String>> removedSourceUrls = new HashMap<>();
+    for (ImageRecord record : records) {
+      keys.put(record.gcsFilename, createKey(record.gcsFilename));
+      for (ImageSource source : record.sources) {
+        ImageRecord previous = previousRecords.get(source.sourceUrl);
+        if (previous != null && !previous.gcsFilename.equals(record.gcsFilename)) {
+          if (!removedSourceUrls.containsKey(previous.gcsFilename)) {
+            removedSourceUrls.put(previous.gcsFilename, new HashSet<String>());
+          }
+          removedSourceUrls.get(previous.gcsFilename).add(source.sourceUrl);
+        }
+      }
+    }
+    Set<Key> allKeys = new HashSet<>(keys.values());
+    for (GcsFilename gcsFilename : removedSourceUrls.keySet()) {
+      allKeys.add(createKey(gcsFilename));
+    }
+    Map<Key, Entity> existing = datastore.get(allKeys);
+
+    Set<Entity> changed = new LinkedHashSet<>();
+    for (Map.Entry<GcsFilename, Set<String>> removed : removedSourceUrls.entrySet()) {
+      Entity entity = existing.get(createKey(removed.getKey()));
+      if (entity == null) {
+        continue;
+      }
+      List<ImageSource> sources = new ArrayList<>();
+      for (ImageSource source : getSources(entity)) {
+        if (!removed.getValue().contains(source.sourceUrl)) {
+          sources.add(source);
+        }
+      }
+      setSources(entity, sources);
+      changed.add(entity);
+    }
+
+    Map<ImageRecord, Future<String>> created = new LinkedHashMap<>();
+    ExecutorService executor = null;
+    try {
+      for (final ImageRecord record : records) {
+        Entity entity = existing.get(keys.get(record.gcsFilename));
+        if (entity == null) {
+          if (executor == null) {
+            executor = RequestExecutors.newFixedThreadPool(parallelism);
+          }
+          created.put(record, executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+              return imagesService.getServingUrl(ServingUrlOptions.Builder
+                  .withGoogleStorageFileName(getGcsFullPath(record.gcsFilename)).secureUrl(true));
+            }
+          }));
+          continue;
+        }
+        if (mergeInto(entity, record)) {
+          changed.add(entity);
+        }
+        servingUrls.put(record.gcsFilename, (String) entity.getProperty(SERVING_URL_PROPERTY));
+      }
+
+      for (Map.Entry<ImageRecord, Future<String>> entry : created.entrySet()) {
+        ImageRecord record = entry.getKey();
+        String servingUrl;
+        try {
+          servingUrl = entry.getValue().get();
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Failed to create serving URL for "
+              + getGcsFullPath(record.gcsFilename), e.getCause());
+          continue;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        Entity entity = new Entity(keys.get(record.gcsFilename));
+        entity.setProperty(SERVING_URL_PROPERTY, servingUrl);
+        entity.setProperty(TIMESTAMP_PROPERTY, DateTime.now().getMillis());
+        mergeInto(entity, record);
+        changed.add(entity);
+        servingUrls.put(record.gcsFilename, servingUrl);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+
+    if (!changed.isEmpty()) {
+      datastore.put(changed);
+    }
+    return servingUrls;
+  }
+
+  /**
+   * Adds the sources and width bucket URL of a record to its entity.
+   *
+   * @return whether the entity changed.
+   */
+  private static boolean mergeInto(Entity entity, ImageRecord record) {
+    boolean changed = false;
+    Map<String, ImageSource> sources = new LinkedHashMap<>();
+    for (ImageSource source : getSources(entity)) {
+      sources.put(source.sourceUrl, source);
+    }
+    for (ImageSource source : record.sources) {
+      ImageSource current = sources.put(source.sourceUrl, source);
+      changed |= current == null || !Objects.equal(current.etag, source.etag)
+          || !Objects.equal(current.lastModified, source.lastModified);
+    }
+    if (changed || !entity.hasProperty(SOURCE_URL_PROPERTY)) {
+      setSources(entity, sources.values());
+    }
+    if (record.widthBucketsUrl != null
+        && !record.widthBucketsUrl.equals(entity.getProperty(WIDTH_BUCKETS_URL_PROPERTY))) {
+      entity.setUnindexedProperty(WIDTH_BUCKETS_URL_PROPERTY, record.widthBucketsUrl);
+      changed = true;
+    }
+    return changed;
+  }
+
+  private ImageRecord toImageRecord(Entity entity) {
+    Matcher matcher = GCS_FULL_PATH.matcher(entity.getKey().getName());
+    if (!matcher.matches()) {
+      throw new IllegalStateException("Invalid GCS path in " + entity.getKey());
+    }
+    ImageRecord record = new ImageRecord(new GcsFilename(matcher.group(1), matcher.group(2)));
+    record.sources.addAll(getSources(entity));
+    record.servingUrl = (String) entity.getProperty(SERVING_URL_PROPERTY);
+    record.widthBucketsUrl = emptyToNull((String) entity.getProperty(WIDTH_BUCKETS_URL_PROPERTY));
+    return record;
+  }
+
+  private static List<ImageSource> getSources(Entity entity) {
+    List<String> sourceUrls = getStrings(entity, SOURCE_URL_PROPERTY);
+    List<String> etags = getStrings(entity, ETAG_PROPERTY);
+    List<String> lastModifieds = getStrings(entity, LAST_MODIFIED_PROPERTY);
+    List<ImageSource> sources = new ArrayList<>(sourceUrls.size());
+    for (int i = 0; i < sourceUrls.size(); i++) {
+      if (isNullOrEmpty(sourceUrls.get(i))) {
+        continue;
+      }
+      sources.add(new ImageSource(sourceUrls.get(i),
+          i < etags.size() ? emptyToNull(etags.get(i)) : null,
+          i < lastModifieds.size() ? emptyToNull(lastModifieds.get(i)) : null));
+    }
+    return sources;
+  }
+
+  private static void setSources(Entity entity, Collection<ImageSource> sources) {
+    List<String> sourceUrls = new ArrayList<>(sources.size());
+    List<String> etags = new ArrayList<>(sources.size());
+    List<String> lastModifieds = new ArrayList<>(sources.size());
+    for (ImageSource source : sources) {
+      sourceUrls.add(source.sourceUrl);
+      etags.add(nullToEmpty(source.etag));
+      lastModifieds.add(nullToEmpty(source.lastModified));
+    }
+    if (sources.size() <= 1) {
+      entity.setProperty(SOURCE_URL_PROPERTY, sources.isEmpty() ? "" : sourceUrls.get(0));
+      entity.setUnindexedProperty(ETAG_PROPERTY, sources.isEmpty() ? "" : etags.get(0));
+      entity.setUnindexedProperty(LAST_MODIFIED_PROPERTY,
+          sources.isEmpty() ? "" : lastModifieds.get(0));
+    } else {
+      entity.setProperty(SOURCE_URL_PROPERTY, sourceUrls);
+      entity.setUnindexedProperty(ETAG_PROPERTY, etags);
+      entity.setUnindexedProperty(LAST_MODIFIED_PROPERTY, lastModifieds);
+    }
+  }
+
+  /**
+   * Values of a property that holds a string or a list of strings.
+   */
+  private static List<String> getStrings(Entity entity, String property) {
+    Object value = entity.getProperty(property);
+    if (value instanceof List) {
+      @SuppressWarnings("unchecked")
+      List<String> values = (List<String>) value;
+      return values;
+    }
+    return value == null ? Collections.<String>emptyList()
+        : Collections.singletonList((String) value);
+  }
 
   private void recordServingUrl(GcsFilename gcsFilename, String servingUrl,
       Optional<String> sourceUrlOpt) {
-    Key key = KeyFactory.createKey(ENTITY_KIND, getGcsFullPath(gcsFilename));
+    Key key = createKey(gcsFilename);
 
     Entity entity = new Entity(key);
     entity.setProperty(SERVING_URL_PROPERTY, servingUrl);
@@ -122,7 +404,51 @@ public enum ServingUrlManager {
     datastore.put(entity);
   }
 
-  private String getGcsFullPath(GcsFilename gcsFilename) {
+  private Key createKey(GcsFilename gcsFilename) {
+    return KeyFactory.createKey(ENTITY_KIND, getGcsFullPath(gcsFilename));
+  }
+
+  private static String getGcsFullPath(GcsFilename gcsFilename) {
     return String.format("/gs/%s/%s", gcsFilename.getBucketName(), gcsFilename.getObjectName());
   }
+
+  /**
+   * A URL an image was fetched from, with the validators of the response, null if the response
+   * didn't have them.
+   */
+  public static class ImageSource {
+    public final String sourceUrl;
+    public final String etag;
+    public final String lastModified;
+
+    public ImageSource(String sourceUrl, String etag, String lastModified) {
+      this.sourceUrl = sourceUrl;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * The record of an image file in GCS.
+   */
+  public static class ImageRecord {
+    public final GcsFilename gcsFilename;
+    public final List<ImageSource> sources = new ArrayList<>();
+    public String servingUrl;
+    /** URL of the pre-sized variants of the image, or null if there aren't any. */
+    public String widthBucketsUrl;
+
+    public ImageRecord(GcsFilename gcsFilename) {
+      this.gcsFilename = gcsFilename;
+    }
+
+    public ImageSource getSource(String sourceUrl) {
+      for (ImageSource source : sources) {
+        if (source.sourceUrl.equals(sourceUrl)) {
+          return source;
+        }
+      }
+      return null;
+    }
+  }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.server.input;
+
+import org.gdg_campinas.treffen.server.RequestExecutors;
+import org.gdg_campinas.treffen.server.schedule.model.JsonDataSources;
+import org.gdg_campinas.treffen.server.schedule.server.UpdateRunLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Fetches a set of {@link DataSourceInput}s concurrently and merges the results into a single
+ * {@link JsonDataSources}.
+ *
+ * Each input is fetched by one task, which fetches its entity types one after the other: the
+ * types of an input are read from the same files, so fetching them in parallel would only wait
+ * for that one read. At most {@code parallelism} inputs are fetched at the same time, and each
+ * input must complete within {@code timeoutMillis} of the moment its fetch started. Sources are
+ * merged in the order the inputs were added, so a later input replaces same-named sources of an
+ * earlier one, exactly like {@link JsonDataSources#putAll(JsonDataSources)}.
+ */
+public class ConcurrentFetchStage {
+
+  private static final Logger LOG = Logger.getLogger(ConcurrentFetchStage.class.getName());
+
+  private final int parallelism;
+  private final long timeoutMillis;
+  private final List<FetchTask> tasks = new ArrayList<>();
+
+  public ConcurrentFetchStage(int parallelism, long timeoutMillis) {
+    this.parallelism = Math.max(1, parallelism);
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public ConcurrentFetchStage add(DataSourceInput<?> input) {
+    tasks.add(new FetchTask(input));
+    return this;
+  }
+
+  /**
+   * Runs all the fetches and waits for them to complete.
+   *
+   * @param logger if not null, receives the latency of each input ("fetch_[input]") and the sum
+   *     of all of them ("fetchSerialTotal"), which is what a sequential fetch would cost.
+   * @throws IOException if any of the sources fails or times out.
+   */
+  public JsonDataSources fetchAll(UpdateRunLogger logger) throws IOException {
+    JsonDataSources sources = new JsonDataSources();
+    if (tasks.isEmpty()) {
+      return sources;
+    }
+    ExecutorService executor = RequestExecutors.newFixedThreadPool(
+        Math.min(parallelism, tasks.size()));
+    try {
+      List<Future<JsonDataSources>> futures = new ArrayList<>(tasks.size());
+      for (FetchTask task: tasks) {
+        futures.add(executor.submit(task));
+      }
+      long serialTotal = 0;
+      for (int i = 0; i < tasks.size(); i++) {
+        FetchTask task = tasks.get(i);
+        sources.putAll(await(task, futures.get(i)));
+        serialTotal += task.getElapsedMillis();
+        if (logger != null) {
+          logger.recordTimer("fetch_" + task, task.getElapsedMillis());
+        }
+      }
+      if (logger != null) {
+        logger.recordTimer("fetchSerialTotal", serialTotal);
+      }
+      return sources;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private JsonDataSources await(FetchTask task, Future<JsonDataSources> future)
+      throws IOException {
+    try {
+      while (true) {
+        // Tasks waiting for a free thread haven't started their clock yet.
+        long startedAt = task.startedAt;
+        long remaining = startedAt == 0 ? timeoutMillis
+            : startedAt + timeoutMillis - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        try {
+          return future.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+          // loop to re-evaluate the deadline of a task that started late
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching " + task);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Error while fetching " + task, cause);
+    }
+    future.cancel(true);
+    LOG.warning("Timed out after " + timeoutMillis + "ms fetching " + task);
+    throw new IOException("Timed out after " + timeoutMillis + "ms fetching " + task);
+  }
+
+  private static class FetchTask implements Callable<JsonDataSources> {
+    private final DataSourceInput<?> input;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    FetchTask(DataSourceInput<?> input) {
+      this.input = input;
+    }
+
+    @Override
+    public JsonDataSources call() throws IOException {
+      startedAt = System.currentTimeMillis();
+      try {
+        return input.fetchAllDataSources();
+      } finally {
+        finishedAt = System.currentTimeMillis();
+      }
+    }
+
+    long getElapsedMillis() {
+      return finishedAt - startedAt;
+    }
+
+    @Override
+    public String toString() {
+      return input.getClass().getSimpleName();
+    }
+  }
+}
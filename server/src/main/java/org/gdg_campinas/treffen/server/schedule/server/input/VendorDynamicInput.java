@@ -24,8 +24,17 @@ import org.gdg_campinas.treffen.server.schedule.input.fetcher.EntityFetcher;
 import org.gdg_campinas.treffen.server.schedule.input.fetcher.VendorAPIEntityFetcher;
 import org.gdg_campinas.treffen.server.schedule.model.InputJsonKeys;
 
+import org.gdg_campinas.treffen.server.RequestExecutors;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Encapsulation of the VendorAPI fetcher.
@@ -33,6 +42,7 @@ import java.util.HashMap;
 public class VendorDynamicInput extends DataSourceInput<InputJsonKeys.VendorAPISource.MainTypes> {
 
   private boolean extractUnpublished = Config.SHOW_UNPUBLISHED_DATA;
+  private int pageFetchFanOut = Config.VENDOR_PAGE_FETCH_FANOUT;
 
   public VendorDynamicInput() {
     super(new VendorAPIEntityFetcher());
@@ -46,6 +56,14 @@ public class VendorDynamicInput extends DataSourceInput<InputJsonKeys.VendorAPIS
     this.extractUnpublished = extractUnpublished;
   }
 
+  /**
+   * Sets how many of the remaining pages of a paged result are fetched at the same time, once the
+   * first page tells how many there are. 1 fetches them one after the other.
+   */
+  public void setPageFetchFanOut(int pageFetchFanOut) {
+    this.pageFetchFanOut = Math.max(1, pageFetchFanOut);
+  }
+
   @Override
   public Class<InputJsonKeys.VendorAPISource.MainTypes> getType() {
     return InputJsonKeys.VendorAPISource.MainTypes.class;
@@ -56,34 +74,18 @@ public class VendorDynamicInput extends DataSourceInput<InputJsonKeys.VendorAPIS
     return fetchArray(entityType, 1);
   }
 
+  /**
+   * Fetches all the entities of the given type, starting at the given page. If the response is
+   * paged, the first requested page tells the total number of entities and the page size, and all
+   * the following pages are then fetched concurrently and appended in page order.
+   */
   public JsonArray fetchArray(InputJsonKeys.VendorAPISource.MainTypes entityType,
       int page) throws IOException {
-
-    HashMap<String, String> params = null;
-
-    if (entityType.equals(InputJsonKeys.VendorAPISource.MainTypes.topics) || entityType.equals(InputJsonKeys.VendorAPISource.MainTypes.speakers)) {
-      params = new HashMap<>();
-
-      // Topics and speakers require param "includeinfo=true" to bring extra data
-      params.put("includeinfo", "true");
-
-      if (entityType.equals(InputJsonKeys.VendorAPISource.MainTypes.topics)) {
-        if (extractUnpublished) {
-          params.put("minpublishstatus", "0");
-        }
-      }
-    }
-
     if (page == 0) {
       page = 1;
-    } else if (page > 1) {
-      if (params == null) {
-        params = new HashMap<>();
-      }
-      params.put("page", Integer.toString(page));
     }
 
-    JsonElement element = getFetcher().fetch(entityType, params);
+    JsonElement element = getFetcher().fetch(entityType, buildParams(entityType, page));
 
     if (element.isJsonArray()) {
         return element.getAsJsonArray();
@@ -95,9 +97,11 @@ public class VendorDynamicInput extends DataSourceInput<InputJsonKeys.VendorAPIS
       int pageSize = obj.get("pagesize").getAsInt();
       int totalEntities = obj.get("total").getAsInt();
       JsonArray elements = getEntities(obj);
-      if (page*pageSize < totalEntities) {
-        // fetch the next page
-        elements.addAll(fetchArray(entityType, page+1));
+      if (pageSize > 0 && page*pageSize < totalEntities) {
+        int lastPage = (totalEntities + pageSize - 1) / pageSize;
+        for (JsonArray pageElements: fetchPages(entityType, page+1, lastPage)) {
+          elements.addAll(pageElements);
+        }
       }
       return elements;
     } else {
@@ -107,6 +111,93 @@ public class VendorDynamicInput extends DataSourceInput<InputJsonKeys.VendorAPIS
     }
   }
 
+  /**
+   * Fetches pages [firstPage, lastPage] with up to pageFetchFanOut requests in flight, and
+   * returns their entities in page order.
+   */
+  private List<JsonArray> fetchPages(final InputJsonKeys.VendorAPISource.MainTypes entityType,
+      int firstPage, int lastPage) throws IOException {
+    int pageCount = lastPage - firstPage + 1;
+    List<JsonArray> result = new ArrayList<>(pageCount);
+    if (pageFetchFanOut <= 1 || pageCount == 1) {
+      for (int page = firstPage; page <= lastPage; page++) {
+        result.add(fetchPage(entityType, page));
+      }
+      return result;
+    }
+
+    ExecutorService executor = RequestExecutors.newFixedThreadPool(
+        Math.min(pageFetchFanOut, pageCount));
+    try {
+      List<Future<JsonArray>> futures = new ArrayList<>(pageCount);
+      for (int page = firstPage; page <= lastPage; page++) {
+        final int requestedPage = page;
+        futures.add(executor.submit(new Callable<JsonArray>() {
+          @Override
+          public JsonArray call() throws IOException {
+            return fetchPage(entityType, requestedPage);
+          }
+        }));
+      }
+      for (Future<JsonArray> future: futures) {
+        result.add(future.get());
+      }
+      return result;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching pages of "+entityType);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Error while fetching pages of "+entityType, cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private JsonArray fetchPage(InputJsonKeys.VendorAPISource.MainTypes entityType, int page)
+      throws IOException {
+    JsonElement element = getFetcher().fetch(entityType, buildParams(entityType, page));
+    if (!element.isJsonObject()) {
+      throw new JsonParseException("Invalid response from Vendor API when"
+          + "paging "+entityType+" results. Expected a JsonObject for page "+page
+          +", but got "+element.getClass().getName());
+    }
+    JsonObject obj = element.getAsJsonObject();
+    checkPagingConsistency(entityType, page, obj);
+    return getEntities(obj);
+  }
+
+  private HashMap<String, String> buildParams(InputJsonKeys.VendorAPISource.MainTypes entityType,
+      int page) {
+    HashMap<String, String> params = null;
+
+    if (entityType.equals(InputJsonKeys.VendorAPISource.MainTypes.topics) || entityType.equals(InputJsonKeys.VendorAPISource.MainTypes.speakers)) {
+      params = new HashMap<>();
+
+      // Topics and speakers require param "includeinfo=true" to bring extra data
+      params.put("includeinfo", "true");
+
+      if (entityType.equals(InputJsonKeys.VendorAPISource.MainTypes.topics)) {
+        if (extractUnpublished) {
+          params.put("minpublishstatus", "0");
+        }
+      }
+    }
+
+    if (page > 1) {
+      if (params == null) {
+        params = new HashMap<>();
+      }
+      params.put("page", Integer.toString(page));
+    }
+    return params;
+  }
+
   private void checkPagingConsistency(InputJsonKeys.VendorAPISource.MainTypes entityType,
       int requestedPage, JsonObject obj) {
     if (!obj.has("page") || !obj.has("pagesize") || !obj.has("total") ||
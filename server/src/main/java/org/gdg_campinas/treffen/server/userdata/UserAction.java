@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.userdata;
+
+/**
+ * An action a user performed on a client, as queued by the client's user data sync.
+ */
+public class UserAction {
+    public enum Type {
+        ADD_STAR, REMOVE_STAR, SUBMIT_FEEDBACK, RESERVE, WAITLIST, UNRESERVE
+    }
+
+    public Type type;
+    public String sessionId;
+    /**
+     * The time (in millis, UTC) when the user performed this action. MUST BE ACCURATE -
+     * COMPENSATE FOR CLOCK DRIFT!
+     */
+    public Long timestamp;
+}
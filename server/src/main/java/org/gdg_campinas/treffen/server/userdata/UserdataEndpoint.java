@@ -26,11 +26,19 @@ import org.gdg_campinas.treffen.server.userdata.db.ReservedSession;
 import org.gdg_campinas.treffen.server.schedule.server.GCMPing;
 import org.gdg_campinas.treffen.server.userdata.db.BookmarkedSession;
 import org.gdg_campinas.treffen.server.userdata.db.UserData;
-import com.googlecode.objectify.NotFoundException;
+import org.gdg_campinas.treffen.server.userdata.db.UserDataChanges;
+import org.gdg_campinas.treffen.server.userdata.db.UserDataStore;
+import org.gdg_campinas.treffen.server.userdata.db.UserDataStore.RecordUpdate;
+import org.gdg_campinas.treffen.server.userdata.db.UserSessionRecord;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
-import static com.googlecode.objectify.ObjectifyService.ofy;
+import java.util.Set;
 
 /** Endpoint for user data storage. */
 @Api(
@@ -55,57 +63,104 @@ import static com.googlecode.objectify.ObjectifyService.ofy;
 public class UserdataEndpoint {
 
     /**
-     * Helper method to get the data object for a given User.
+     * Helper method to get the ID of the authenticated user.
      *
-     * @param user User to lookup
-     * @return User's data object
+     * @param user User making the request
+     * @return User's ID
      */
-    private UserData getUser(User user) throws UnauthorizedException {
+    private String getUserId(User user) throws UnauthorizedException {
         if (user == null) {
             throw new UnauthorizedException("Invalid credentials");
         }
-        String uid = user.getId();
-
-        try {
-            return ofy().load().type(UserData.class).id(uid).safe();
-        } catch (NotFoundException e) {
-            UserData data = new UserData();
-            data.userId = uid;
-            return data;
-        }
+        return user.getId();
     }
 
     /**
-     * Helper method to get the data object for a given user when requested
-     * by a service account.
+     * Helper method to check that a request is made by the service account.
      *
      * @param user Service account user making the request.
      * @param userId ID of the user whose userdata is being updated.
-     * @return User's data object.
+     * @return userId
      * @throws UnauthorizedException
      */
-    private UserData getUser(User user, String userId) throws UnauthorizedException {
+    private String getUserId(User user, String userId) throws UnauthorizedException {
         if (user == null || user.getEmail() == null ||
             !Ids.SERVICE_ACCOUNT_EMAIL.equals(user.getEmail())) {
             throw new UnauthorizedException("Invalid credentials");
         }
+        return userId;
+    }
 
-        try {
-            return ofy().load().type(UserData.class).id(userId).safe();
-        } catch (NotFoundException e) {
-            UserData data = new UserData();
+    /**
+     * Helper method to get the data object for a given user ID.
+     *
+     * @param userId User to lookup
+     * @return User's data object
+     */
+    private UserData getUser(String userId) {
+        UserData data = UserDataStore.load(userId);
+        if (data == null) {
+            data = new UserData();
             data.userId = userId;
-            return data;
         }
+        return data;
     }
 
     /**
-     * Helper method to save a user data object
+     * Helper method to get the data object for a given User.
      *
-     * @param data Data to save
+     * @param user User to lookup
+     * @return User's data object
+     */
+    private UserData getUser(User user) throws UnauthorizedException {
+        return getUser(getUserId(user));
+    }
+
+    /**
+     * Helper method to set the bookmark state of sessions.
      */
-    private void save(UserData data) throws UnauthorizedException {
-        ofy().save().entity(data).now();
+    private void saveBookmarks(String userId, String[] sessionIds, final boolean inSchedule,
+            final long timestampUTC) {
+        UserDataStore.update(userId, Arrays.asList(sessionIds), new RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                record.bookmarked = new BookmarkedSession(record.sessionId, inSchedule,
+                        timestampUTC);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Helper method to mark sessions as reviewed.
+     */
+    private void saveReviewed(String userId, String[] sessionIds) {
+        UserDataStore.update(userId, Arrays.asList(sessionIds), new RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                if (record.reviewed) {
+                    return false;
+                }
+                record.reviewed = true;
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Helper method to set the reservation state of a session, and notify the user's clients.
+     */
+    private void saveReservation(String userId, String sessionId,
+            final ReservedSession.Status status, final long timestampUTC) {
+        UserDataStore.update(userId, Collections.singleton(sessionId), new RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                record.reserved = new ReservedSession(record.sessionId, status, timestampUTC);
+                return true;
+            }
+        });
+        // notify user's clients of reservation change change
+        new GCMPing().notifyUserSync(userId);
     }
 
     /**
@@ -129,18 +184,117 @@ public class UserdataEndpoint {
     @SuppressWarnings("ResourceParameter")  // http://b.android.com/201031
     @ApiMethod(name = "updateUser", path = "all", httpMethod = ApiMethod.HttpMethod.PUT)
     public UserData updateUser(User user,  UserData userData) throws UnauthorizedException {
-        UserData savedData = getUser(user);
+        String userId = getUserId(user);
+        final Map<String, BookmarkedSession> bookmarks = userData.bookmarkedSessions != null
+                ? userData.bookmarkedSessions : Collections.<String, BookmarkedSession>emptyMap();
+        final Set<String> reviewed = userData.reviewedSessions != null
+                ? userData.reviewedSessions : Collections.<String>emptySet();
+        Set<String> sessionIds = new HashSet<>(bookmarks.keySet());
+        sessionIds.addAll(reviewed);
 
-        // Bookmarked sessions can be overwritten
-        savedData.bookmarkedSessions = userData.bookmarkedSessions;
-        // Reviewed sessions should be merged with old values
-        for (String session : userData.reviewedSessions) {
-            savedData.reviewedSessions.add(session);
+        UserDataStore.updateAll(userId, sessionIds, new RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                boolean changed = false;
+                // Bookmarked sessions can be overwritten
+                BookmarkedSession bookmarked = bookmarks.get(record.sessionId);
+                if (!isSameBookmark(bookmarked, record.bookmarked)) {
+                    record.bookmarked = bookmarked;
+                    changed = true;
+                }
+                // Reviewed sessions should be merged with old values
+                if (!record.reviewed && reviewed.contains(record.sessionId)) {
+                    record.reviewed = true;
+                    changed = true;
+                }
+                // We don't allow clients to update reserved sessions, preserve old values
+                return changed;
+            }
+        });
+        return getUser(userId);
+    }
+
+    private static boolean isSameBookmark(BookmarkedSession a, BookmarkedSession b) {
+        if (a == null || b == null) {
+            return a == b;
         }
-        // We don't allow clients to update reserved sessions, preserve old values
+        return a.inSchedule == b.inSchedule && a.timestampUTC == b.timestampUTC;
+    }
 
-        save(savedData);
-        return savedData;
+    /**
+     * Get the changes to the user data of the currently authenticated user after a version.
+     *
+     * @param user    Current user (injected by Endpoints)
+     * @param version Version of the user data the client has, 0 if it has none. This is the
+     *                version returned by the last getAll, getChangesSince or applyActions call.
+     * @return Changes since the version, or all user data if the changes are not available
+     */
+    @ApiMethod(name = "getChangesSince", path = "changes")
+    public UserDataChanges getChangesSince(User user, @Named("version") long version)
+            throws UnauthorizedException {
+        return UserDataStore.loadChangesSince(getUserId(user), version);
+    }
+
+    /**
+     * Apply user actions queued by a client, in a single transaction. Reservation actions are
+     * ignored since reservations are only updated by the reservation service.
+     *
+     * @param user    Current user (injected by Endpoints)
+     * @param version Version of the user data the client has, 0 if it has none.
+     * @param actions Actions to apply, in the order they were performed.
+     * @return Changes since the version, including the ones made by the actions
+     */
+    @SuppressWarnings("ResourceParameter")  // http://b.android.com/201031
+    @ApiMethod(name = "applyActions", path = "actions", httpMethod = ApiMethod.HttpMethod.POST)
+    public UserDataChanges applyActions(User user, @Named("version") long version,
+            UserActionList actions) throws UnauthorizedException {
+        String userId = getUserId(user);
+        final Map<String, List<UserAction>> actionsBySession = new LinkedHashMap<>();
+        if (actions != null && actions.actions != null) {
+            for (UserAction action : actions.actions) {
+                if (action == null || action.type == null || action.sessionId == null) {
+                    continue;
+                }
+                List<UserAction> sessionActions = actionsBySession.get(action.sessionId);
+                if (sessionActions == null) {
+                    sessionActions = new ArrayList<>();
+                    actionsBySession.put(action.sessionId, sessionActions);
+                }
+                sessionActions.add(action);
+            }
+        }
+
+        if (!actionsBySession.isEmpty()) {
+            final long now = System.currentTimeMillis();
+            UserDataStore.update(userId, actionsBySession.keySet(), new RecordUpdate() {
+                @Override
+                public boolean apply(UserSessionRecord record) {
+                    boolean changed = false;
+                    for (UserAction action : actionsBySession.get(record.sessionId)) {
+                        long timestampUTC = action.timestamp != null ? action.timestamp : now;
+                        switch (action.type) {
+                            case ADD_STAR:
+                            case REMOVE_STAR:
+                                record.bookmarked = new BookmarkedSession(record.sessionId,
+                                        action.type == UserAction.Type.ADD_STAR, timestampUTC);
+                                changed = true;
+                                break;
+                            case SUBMIT_FEEDBACK:
+                                if (!record.reviewed) {
+                                    record.reviewed = true;
+                                    changed = true;
+                                }
+                                break;
+                            default:
+                                // We don't allow clients to update reserved sessions.
+                                break;
+                        }
+                    }
+                    return changed;
+                }
+            });
+        }
+        return UserDataStore.loadChangesSince(userId, version);
     }
 
     /**
@@ -189,10 +343,9 @@ public class UserdataEndpoint {
             .PUT)
     public Object[] addReviewedSession(User user, @Named("sessionId") String sessionId)
             throws UnauthorizedException {
-        UserData data = getUser(user);
-        data.reviewedSessions.add(sessionId);
-        save(data);
-        return data.reviewedSessions.toArray();
+        String userId = getUserId(user);
+        saveReviewed(userId, new String[] {sessionId});
+        return getUser(userId).reviewedSessions.toArray();
     }
 
     /**
@@ -206,12 +359,9 @@ public class UserdataEndpoint {
             .POST)
     public Object[] addReviewedSessions(User user, @Named("sessionIds") String[] sessionIds)
             throws UnauthorizedException {
-        UserData data = getUser(user);
-        for (String session : sessionIds) {
-            data.reviewedSessions.add(session);
-        }
-        save(data);
-        return data.reviewedSessions.toArray();
+        String userId = getUserId(user);
+        saveReviewed(userId, sessionIds);
+        return getUser(userId).reviewedSessions.toArray();
     }
 
     /**
@@ -230,11 +380,9 @@ public class UserdataEndpoint {
     public Map<String, BookmarkedSession> addBookmarkedSession(User user,
             @Named("sessionId") String sessionId, @Named
             ("timestampUTC") long timestampUTC) throws UnauthorizedException {
-        UserData data = getUser(user);
-        BookmarkedSession s = new BookmarkedSession(sessionId, true, timestampUTC);
-        data.bookmarkedSessions.put(sessionId, s);
-        save(data);
-        return data.bookmarkedSessions;
+        String userId = getUserId(user);
+        saveBookmarks(userId, new String[] {sessionId}, true, timestampUTC);
+        return getUser(userId).bookmarkedSessions;
     }
 
     /**
@@ -254,13 +402,9 @@ public class UserdataEndpoint {
                                                                 @Named("sessionIds") String[] sessionIds,
                                                                 @Named("timestampUTC") long timestampUTC)
             throws UnauthorizedException {
-        UserData data = getUser(user);
-        for (String session : sessionIds) {
-            BookmarkedSession s = new BookmarkedSession(session, true, timestampUTC);
-            data.bookmarkedSessions.put(session, s);
-        }
-        save(data);
-        return data.bookmarkedSessions;
+        String userId = getUserId(user);
+        saveBookmarks(userId, sessionIds, true, timestampUTC);
+        return getUser(userId).bookmarkedSessions;
     }
 
     /**
@@ -277,10 +421,7 @@ public class UserdataEndpoint {
             .HttpMethod.DELETE)
     public void removeBookmarkedSession(User user, @Named("sessionId") String sessionId, @Named
             ("timestampUTC") long timestampUTC) throws UnauthorizedException {
-        UserData data = getUser(user);
-        BookmarkedSession s = new BookmarkedSession(sessionId, false, timestampUTC);
-        data.bookmarkedSessions.put(sessionId, s);
-        save(data);
+        saveBookmarks(getUserId(user), new String[] {sessionId}, false, timestampUTC);
     }
 
     /**
@@ -297,12 +438,7 @@ public class UserdataEndpoint {
             .HttpMethod.DELETE)
     public void removeBookmarkedSessions(User user, @Named("sessionIds") String[] sessionIds, @Named
             ("timestampUTC") long timestampUTC) throws UnauthorizedException {
-        UserData data = getUser(user);
-        for (String session : sessionIds) {
-            BookmarkedSession s = new BookmarkedSession(session, false, timestampUTC);
-            data.bookmarkedSessions.put(session, s);
-        }
-        save(data);
+        saveBookmarks(getUserId(user), sessionIds, false, timestampUTC);
     }
 
     /**
@@ -325,13 +461,9 @@ public class UserdataEndpoint {
         @Named("sessionId") String sessionId,
         @Named("timestampUTC") long timestampUTC)
         throws UnauthorizedException {
-        UserData data = getUser(user, userId);
-        ReservedSession s = new ReservedSession(sessionId, ReservedSession.Status.WAITLISTED, timestampUTC);
-        data.reservedSessions.put(sessionId, s);
-        save(data);
-        // notify user's clients of reservation change change
-        new GCMPing().notifyUserSync(data.userId);
-        return data.reservedSessions;
+        userId = getUserId(user, userId);
+        saveReservation(userId, sessionId, ReservedSession.Status.WAITLISTED, timestampUTC);
+        return getUser(userId).reservedSessions;
     }
 
     /**
@@ -354,13 +486,9 @@ public class UserdataEndpoint {
             @Named("sessionId") String sessionId,
             @Named("timestampUTC") long timestampUTC)
             throws UnauthorizedException {
-        UserData data = getUser(user, userId);
-        ReservedSession s = new ReservedSession(sessionId, ReservedSession.Status.RESERVED, timestampUTC);
-        data.reservedSessions.put(sessionId, s);
-        save(data);
-        // notify user's clients of reservation change change
-        new GCMPing().notifyUserSync(data.userId);
-        return data.reservedSessions;
+        userId = getUserId(user, userId);
+        saveReservation(userId, sessionId, ReservedSession.Status.RESERVED, timestampUTC);
+        return getUser(userId).reservedSessions;
     }
 
     /**
@@ -380,11 +508,7 @@ public class UserdataEndpoint {
         @Named("userId") String userId,
         @Named("sessionId") String sessionId,
         @Named("timestampUTC") long timestampUTC) throws UnauthorizedException {
-        UserData data = getUser(user, userId);
-        ReservedSession s = new ReservedSession(sessionId, ReservedSession.Status.DELETED, timestampUTC);
-        data.reservedSessions.put(sessionId, s);
-        save(data);
-        // notify user's clients of reservation change change
-        new GCMPing().notifyUserSync(data.userId);
+        userId = getUserId(user, userId);
+        saveReservation(userId, sessionId, ReservedSession.Status.DELETED, timestampUTC);
     }
 }
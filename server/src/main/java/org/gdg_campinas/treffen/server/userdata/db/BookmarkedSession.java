@@ -16,6 +16,8 @@
 
 package org.gdg_campinas.treffen.server.userdata.db;
 
+import java.io.Serializable;
+
 /**
  * A bookmarked session. BookmarkedSessions cannot actually be deleted -- though they
  * can be flagged as such (by setting inSchedule=false).
@@ -24,7 +26,9 @@ package org.gdg_campinas.treffen.server.userdata.db;
  * schedule, in millis (UTC). This is used to resolve sync conflicts. Care must be taken to
  * ensure the timestamp is accurate, even if the user's clock is not.
  */
-public class BookmarkedSession {
+public class BookmarkedSession implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     /** CMS ID of the session which is being represented */
     public String sessionID;
     /** Whether this session is in the user's collection or not. (This is a proxy for deleting
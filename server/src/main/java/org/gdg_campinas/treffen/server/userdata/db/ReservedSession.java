@@ -16,6 +16,8 @@
 
 package org.gdg_campinas.treffen.server.userdata.db;
 
+import java.io.Serializable;
+
 /**
  * A reserved (or waitlisted) session. ReservedSessions cannot actually be deleted -- though
  * they can be flagged as such (by setting status=DELETED).
@@ -24,7 +26,9 @@ package org.gdg_campinas.treffen.server.userdata.db;
  * schedule, in millis (UTC). This is used to resolve sync conflicts. Care must be taken to
  * ensure the timestamp is accurate, even if the user's clock is not.
  */
-public class ReservedSession {
+public class ReservedSession implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     /**
      * Reservation status. WAITLISTED means the user is in the waiting list for this
      * session. RESERVED means the user holds a valid reservation. DELETED means the
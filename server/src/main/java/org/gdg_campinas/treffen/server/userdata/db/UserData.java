@@ -16,18 +16,34 @@
 
 package org.gdg_campinas.treffen.server.userdata.db;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 @Entity
-public class UserData {
+public class UserData implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     @Id public String userId;
     public Map<String, BookmarkedSession> bookmarkedSessions = new HashMap<>();
     public Map<String, ReservedSession> reservedSessions = new HashMap<>();
     public SortedSet<String> reviewedSessions = new TreeSet<>();
+    /**
+     * Change counter of the user's data, incremented by every update. Clients send it back to
+     * {@code getChangesSince} to get only what changed after they synced.
+     */
+    public long version;
+    /**
+     * Sessions whose {@link UserSessionRecord} has a reservation, kept up to date by
+     * {@link UserDataStore}, so that the reservations of many users can be loaded by key.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public SortedSet<String> reservedSessionIds = new TreeSet<>();
 }
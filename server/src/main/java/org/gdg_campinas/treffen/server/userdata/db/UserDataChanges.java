@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.userdata.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Changes to a user's data after a given version. If {@code full} is true the changes couldn't be
+ * computed and all of the user's data is returned instead, so clients must replace their copy
+ * rather than merge into it.
+ */
+public class UserDataChanges {
+    /** Version of the user's data these changes lead to. */
+    public long version;
+    /** Whether this is all of the user's data rather than the changes. */
+    public boolean full;
+    public Map<String, BookmarkedSession> bookmarkedSessions = new HashMap<>();
+    /** Sessions whose bookmark was dropped by a whole-model update after the given version. */
+    public List<String> removedBookmarks = new ArrayList<>();
+    public Map<String, ReservedSession> reservedSessions = new HashMap<>();
+    public SortedSet<String> reviewedSessions = new TreeSet<>();
+
+    public static UserDataChanges full(UserData userData) {
+        UserDataChanges changes = new UserDataChanges();
+        changes.version = userData.version;
+        changes.full = true;
+        changes.bookmarkedSessions.putAll(userData.bookmarkedSessions);
+        changes.reservedSessions.putAll(userData.reservedSessions);
+        changes.reviewedSessions.addAll(userData.reviewedSessions);
+        return changes;
+    }
+
+    /**
+     * @param sinceVersion version the client has.
+     * @param version current version of the user's data.
+     * @param records records that changed after {@code sinceVersion}.
+     */
+    public static UserDataChanges since(long sinceVersion, long version,
+            Iterable<UserSessionRecord> records) {
+        UserDataChanges changes = new UserDataChanges();
+        changes.version = version;
+        for (UserSessionRecord record : records) {
+            if (record.bookmarked != null) {
+                changes.bookmarkedSessions.put(record.sessionId, record.bookmarked);
+            } else if (record.bookmarkRemovedVersion > sinceVersion) {
+                changes.removedBookmarks.add(record.sessionId);
+            }
+            if (record.reserved != null) {
+                changes.reservedSessions.put(record.sessionId, record.reserved);
+            }
+            if (record.reviewed) {
+                changes.reviewedSessions.add(record.sessionId);
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.userdata.db;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import org.gdg_campinas.treffen.server.RequestExecutors;
+import org.gdg_campinas.treffen.server.cache.ReadThroughCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores user data as one {@link UserSessionRecord} per session, children of the user's
+ * {@link UserData} entity. Bookmarking, reserving or reviewing a session only reads and writes the
+ * records of the sessions involved, in a transaction on the user's entity group, so concurrent
+ * requests from several devices don't overwrite each other.
+ *
+ * <p>Users that were stored before may still have their sessions in the maps of the UserData
+ * entity. Those are merged with the records when reading, and moved to records by the first
+ * transactional update of the user.
+ */
+public class UserDataStore {
+
+    /** Time the data of a user is cached, see {@link #load(String)}. */
+    private static final int CACHE_TTL_S = (int) TimeUnit.MINUTES.toSeconds(10);
+    /** Users whose reservations are saved at the same time, see {@link #saveReservations}. */
+    private static final int SAVE_RESERVATIONS_PARALLELISM = 10;
+    private static final ReadThroughCache<UserData> CACHE =
+            new ReadThroughCache<>("UserData", CACHE_TTL_S);
+    private static final ReadThroughCache.Loader<UserData> LOADER =
+            new ReadThroughCache.Loader<UserData>() {
+                @Override
+                public UserData load(String userId) {
+                    List<Object> entities =
+                            ofy().load().ancestor(Key.create(UserData.class, userId)).list();
+                    return assemble(userId, entities);
+                }
+            };
+
+    /**
+     * Change to apply to the record of a session.
+     */
+    public interface RecordUpdate {
+        /**
+         * @return true if the record changed and needs to be saved.
+         */
+        boolean apply(UserSessionRecord record);
+    }
+
+    /**
+     * Loads the UserData entity and all session records of a user with a single ancestor query.
+     * The result is cached until the user's data is updated through this class.
+     *
+     * @return the user's data, or null if nothing was stored for the user.
+     */
+    public static UserData load(String userId) {
+        return CACHE.get(userId, LOADER);
+    }
+
+    /**
+     * Loads the reserved sessions of several users by key, with one batched load of their UserData
+     * entities and one of the records of the sessions those list as reserved.
+     *
+     * @return the reserved sessions of the users that have a UserData entity, by user id.
+     */
+    public static Map<String, Map<String, ReservedSession>> loadReservations(
+            Collection<String> userIds) {
+        List<Key<UserData>> userKeys = new ArrayList<>();
+        for (String userId : userIds) {
+            userKeys.add(Key.create(UserData.class, userId));
+        }
+        Collection<UserData> roots = ofy().load().keys(userKeys).values();
+
+        Map<String, Map<String, ReservedSession>> reservations = new HashMap<>();
+        List<Key<UserSessionRecord>> recordKeys = new ArrayList<>();
+        for (UserData root : roots) {
+            // Reservations not moved to records yet, which records take precedence over.
+            reservations.put(root.userId, new HashMap<>(root.reservedSessions));
+            Set<String> sessionIds = new LinkedHashSet<>(root.reservedSessionIds);
+            sessionIds.addAll(root.reservedSessions.keySet());
+            for (String sessionId : sessionIds) {
+                recordKeys.add(UserSessionRecord.key(root.userId, sessionId));
+            }
+        }
+        if (!recordKeys.isEmpty()) {
+            for (UserSessionRecord record : ofy().load().keys(recordKeys).values()) {
+                if (record.reserved != null) {
+                    reservations.get(record.user.getName()).put(record.sessionId,
+                            record.reserved);
+                }
+            }
+        }
+        return reservations;
+    }
+
+    /**
+     * Applies a change to the records of some sessions of a user, in a transaction. Only the
+     * records of those sessions are read and, if they changed, written.
+     */
+    public static void update(final String userId, final Collection<String> sessionIds,
+            final RecordUpdate update) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Key<UserData> userKey = Key.create(UserData.class, userId);
+                List<Key<?>> keys = new ArrayList<>();
+                keys.add(userKey);
+                for (String sessionId : sessionIds) {
+                    keys.add(UserSessionRecord.key(userId, sessionId));
+                }
+                Map<Key<Object>, Object> loaded = ofy().load().values(keys);
+
+                Map<String, UserSessionRecord> records = new HashMap<>();
+                Set<UserSessionRecord> changed = new LinkedHashSet<>();
+                Set<UserSessionRecord> unbookmarked = new LinkedHashSet<>();
+                UserData root = (UserData) loaded.remove(userKey);
+                for (Object record : loaded.values()) {
+                    records.put(((UserSessionRecord) record).sessionId,
+                            (UserSessionRecord) record);
+                }
+                boolean migrated = root != null && hasSessions(root);
+                if (migrated) {
+                    changed.addAll(migrate(root, records));
+                }
+
+                for (String sessionId : sessionIds) {
+                    applyUpdate(update, getOrCreate(records, userId, sessionId), changed,
+                            unbookmarked);
+                }
+                save(userId, root, changed, unbookmarked, migrated);
+            }
+        });
+        CACHE.invalidate(userId);
+    }
+
+    /**
+     * Applies a change to every session record of a user, in a transaction. This reads all the
+     * records of the user, so it's meant for whole-model updates only.
+     *
+     * @param sessionIds sessions to create records for if they don't have one yet.
+     */
+    public static void updateAll(final String userId, final Collection<String> sessionIds,
+            final RecordUpdate update) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Map<String, UserSessionRecord> records = new HashMap<>();
+                Set<UserSessionRecord> changed = new LinkedHashSet<>();
+                Set<UserSessionRecord> unbookmarked = new LinkedHashSet<>();
+                UserData root = null;
+                for (Object entity :
+                        ofy().load().ancestor(Key.create(UserData.class, userId)).list()) {
+                    if (entity instanceof UserData) {
+                        root = (UserData) entity;
+                    } else if (entity instanceof UserSessionRecord) {
+                        records.put(((UserSessionRecord) entity).sessionId,
+                                (UserSessionRecord) entity);
+                    }
+                }
+                boolean migrated = root != null && hasSessions(root);
+                if (migrated) {
+                    changed.addAll(migrate(root, records));
+                }
+
+                for (String sessionId : sessionIds) {
+                    getOrCreate(records, userId, sessionId);
+                }
+                for (UserSessionRecord record : records.values()) {
+                    applyUpdate(update, record, changed, unbookmarked);
+                }
+                save(userId, root, changed, unbookmarked, migrated);
+            }
+        });
+        CACHE.invalidate(userId);
+    }
+
+    /**
+     * Saves reserved sessions of several users. Used by bulk reservation syncs. Each user is
+     * updated in a transaction of its own, like {@link #update}, so that versions stay unique and
+     * increasing and concurrent updates of the same user aren't overwritten. The transactions of
+     * up to SAVE_RESERVATIONS_PARALLELISM users run at the same time, in the background.
+     *
+     * @return the pending save, or null if there was nothing to save. Its {@code now()} must be
+     * called before the request ends; it throws the first failure of the transactions, if any.
+     */
+    public static Result<?> saveReservations(
+            final Map<String, ? extends Collection<ReservedSession>> reservations) {
+        if (reservations.isEmpty()) {
+            return null;
+        }
+        final ExecutorService executor = RequestExecutors.newFixedThreadPool(
+                Math.min(reservations.size(), SAVE_RESERVATIONS_PARALLELISM));
+        final List<Future<?>> futures = new ArrayList<>();
+        for (final Map.Entry<String, ? extends Collection<ReservedSession>> entry
+                : reservations.entrySet()) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ObjectifyService.run(new VoidWork() {
+                        @Override
+                        public void vrun() {
+                            saveReservations(entry.getKey(), entry.getValue());
+                        }
+                    });
+                }
+            }));
+        }
+        executor.shutdown();
+        return new Result<Void>() {
+            @Override
+            public Void now() {
+                try {
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                    return null;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while saving reservations", ex);
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Error while saving reservations", cause);
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        };
+    }
+
+    private static void saveReservations(String userId,
+            Collection<ReservedSession> reservedSessions) {
+        final Map<String, ReservedSession> bySession = new HashMap<>();
+        for (ReservedSession reservedSession : reservedSessions) {
+            bySession.put(reservedSession.sessionID, reservedSession);
+        }
+        update(userId, bySession.keySet(), new RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                record.reserved = bySession.get(record.sessionId);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Loads the records of a user that changed after a given version, with the current version of
+     * the user. The UserData entity and the records are read in one transaction, so the version
+     * returned is the one of the records returned: a change committed in between can't be left
+     * out of the records while counted in the version.
+     *
+     * @return the user's changes, or all the user's data if the changes can't be computed from
+     * the records (the version is unknown or the user has data that wasn't moved to records yet).
+     */
+    public static UserDataChanges loadChangesSince(final String userId, final long sinceVersion) {
+        return ofy().transact(new Work<UserDataChanges>() {
+            @Override
+            public UserDataChanges run() {
+                Key<UserData> userKey = Key.create(UserData.class, userId);
+                UserData root = ofy().load().key(userKey).now();
+                if (root == null) {
+                    root = newUserData(userId);
+                }
+                if (sinceVersion <= 0 || sinceVersion > root.version || hasSessions(root)) {
+                    UserData userData = assemble(userId, ofy().load().ancestor(userKey).list());
+                    return UserDataChanges.full(userData != null ? userData : root);
+                }
+                List<UserSessionRecord> records = ofy().load().type(UserSessionRecord.class)
+                        .ancestor(userKey).filter("version >", sinceVersion).list();
+                return UserDataChanges.since(sinceVersion, root.version, records);
+            }
+        });
+    }
+
+    /**
+     * Builds the UserData of a user from the UserData entity, if any, and the session records.
+     * Records take precedence over the maps of the UserData entity.
+     */
+    private static UserData assemble(String userId, Iterable<Object> entities) {
+        UserData userData = null;
+        List<UserSessionRecord> records = new ArrayList<>();
+        for (Object entity : entities) {
+            if (entity instanceof UserData) {
+                userData = (UserData) entity;
+            } else if (entity instanceof UserSessionRecord) {
+                records.add((UserSessionRecord) entity);
+            }
+        }
+        if (userData == null) {
+            if (records.isEmpty()) {
+                return null;
+            }
+            userData = newUserData(userId);
+        }
+        for (UserSessionRecord record : records) {
+            if (record.bookmarked != null) {
+                userData.bookmarkedSessions.put(record.sessionId, record.bookmarked);
+            }
+            if (record.reserved != null) {
+                userData.reservedSessions.put(record.sessionId, record.reserved);
+            }
+            if (record.reviewed) {
+                userData.reviewedSessions.add(record.sessionId);
+            }
+        }
+        return userData;
+    }
+
+    /**
+     * Applies a change to a record, adding it to {@code changed} if it changed and to
+     * {@code unbookmarked} if the change removed its bookmark.
+     */
+    private static void applyUpdate(RecordUpdate update, UserSessionRecord record,
+            Set<UserSessionRecord> changed, Set<UserSessionRecord> unbookmarked) {
+        boolean bookmarked = record.bookmarked != null;
+        if (update.apply(record)) {
+            changed.add(record);
+            if (bookmarked && record.bookmarked == null) {
+                unbookmarked.add(record);
+            }
+        }
+    }
+
+    /**
+     * Saves the records that changed with a new version of the user. Must be called in a
+     * transaction.
+     *
+     * @param root the user's UserData entity, or null if it doesn't exist yet.
+     * @param unbookmarked changed records whose bookmark was removed.
+     * @param migrated whether sessions were moved from root to records, so root must be saved.
+     */
+    private static void save(String userId, UserData root, Set<UserSessionRecord> changed,
+            Set<UserSessionRecord> unbookmarked, boolean migrated) {
+        if (changed.isEmpty() && !migrated) {
+            return;
+        }
+        if (root == null) {
+            root = newUserData(userId);
+        }
+        root.version++;
+        List<Object> toSave = new ArrayList<>();
+        toSave.add(root);
+        for (UserSessionRecord record : changed) {
+            record.version = root.version;
+            if (unbookmarked.contains(record)) {
+                record.bookmarkRemovedVersion = root.version;
+            }
+            if (record.reserved != null) {
+                root.reservedSessionIds.add(record.sessionId);
+            } else {
+                root.reservedSessionIds.remove(record.sessionId);
+            }
+            toSave.add(record);
+        }
+        ofy().save().entities(toSave).now();
+    }
+
+    private static UserData newUserData(String userId) {
+        UserData userData = new UserData();
+        userData.userId = userId;
+        return userData;
+    }
+
+    private static boolean hasSessions(UserData userData) {
+        return !userData.bookmarkedSessions.isEmpty() || !userData.reservedSessions.isEmpty()
+                || !userData.reviewedSessions.isEmpty();
+    }
+
+    /**
+     * Moves the sessions in the maps of a UserData entity to session records, keeping what the
+     * records already have, and empties the maps.
+     *
+     * @param records existing records, updated with the new records.
+     * @return the records that changed.
+     */
+    private static Set<UserSessionRecord> migrate(UserData legacy,
+            Map<String, UserSessionRecord> records) {
+        Set<String> sessionIds = new LinkedHashSet<>(legacy.bookmarkedSessions.keySet());
+        sessionIds.addAll(legacy.reservedSessions.keySet());
+        sessionIds.addAll(legacy.reviewedSessions);
+        Set<String> missing = new LinkedHashSet<>(sessionIds);
+        missing.removeAll(records.keySet());
+        if (!missing.isEmpty()) {
+            List<Key<UserSessionRecord>> keys = new ArrayList<>();
+            for (String sessionId : missing) {
+                keys.add(UserSessionRecord.key(legacy.userId, sessionId));
+            }
+            for (UserSessionRecord record : ofy().load().keys(keys).values()) {
+                records.put(record.sessionId, record);
+            }
+        }
+
+        Set<UserSessionRecord> changed = new LinkedHashSet<>();
+        for (String sessionId : sessionIds) {
+            UserSessionRecord record = getOrCreate(records, legacy.userId, sessionId);
+            BookmarkedSession bookmarked = legacy.bookmarkedSessions.get(sessionId);
+            if (bookmarked != null && record.bookmarked == null) {
+                record.bookmarked = bookmarked;
+                changed.add(record);
+            }
+            ReservedSession reserved = legacy.reservedSessions.get(sessionId);
+            if (reserved != null && record.reserved == null) {
+                record.reserved = reserved;
+                changed.add(record);
+            }
+            if (legacy.reviewedSessions.contains(sessionId) && !record.reviewed) {
+                record.reviewed = true;
+                changed.add(record);
+            }
+        }
+        legacy.bookmarkedSessions.clear();
+        legacy.reservedSessions.clear();
+        legacy.reviewedSessions.clear();
+        return changed;
+    }
+
+    private static UserSessionRecord getOrCreate(Map<String, UserSessionRecord> records,
+            String userId, String sessionId) {
+        UserSessionRecord record = records.get(sessionId);
+        if (record == null) {
+            record = new UserSessionRecord(userId, sessionId);
+            records.put(sessionId, record);
+        }
+        return record;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.userdata.db;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * Everything a user saved about one session, stored as a child of the user's {@link UserData}
+ * entity so that changing one session only writes one small entity. All records of a user are in
+ * the same entity group, so they can be updated in a transaction and read with one ancestor
+ * query.
+ */
+@Entity
+public class UserSessionRecord {
+    @Parent public Key<UserData> user;
+    /** CMS ID of the session which is being represented */
+    @Id public String sessionId;
+    /** Bookmark state of the session, null if it was never bookmarked. */
+    public BookmarkedSession bookmarked;
+    /** Reservation state of the session, null if it was never reserved. */
+    public ReservedSession reserved;
+    /** Whether the user reviewed this session. */
+    public boolean reviewed;
+    /** Value of {@link UserData#version} when this record last changed. */
+    @Index public long version;
+    /** Value of {@link UserData#version} when the bookmark of this record was last removed. */
+    public long bookmarkRemovedVersion;
+
+    public UserSessionRecord() {}
+
+    public UserSessionRecord(String userId, String sessionId) {
+        this.user = Key.create(UserData.class, userId);
+        this.sessionId = sessionId;
+    }
+
+    public static Key<UserSessionRecord> key(String userId, String sessionId) {
+        return Key.create(Key.create(UserData.class, userId), UserSessionRecord.class, sessionId);
+    }
+}
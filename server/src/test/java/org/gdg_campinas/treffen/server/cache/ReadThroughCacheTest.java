@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReadThroughCacheTest {
+
+    private long now;
+    private Map<String, ArrayList<String>> store;
+    private int loads;
+    private ReadThroughCache<ArrayList<String>> cache;
+    private ReadThroughCache.Loader<ArrayList<String>> loader;
+
+    @Before
+    public void setUp() {
+        now = 1000000;
+        store = new HashMap<>();
+        loads = 0;
+        LocalCacheBackend backend = new LocalCacheBackend(new LocalCacheBackend.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return now;
+            }
+        });
+        cache = new ReadThroughCache<>("test", 60, backend);
+        loader = new ReadThroughCache.Loader<ArrayList<String>>() {
+            @Override
+            public ArrayList<String> load(String key) {
+                loads++;
+                return store.get(key);
+            }
+        };
+        store.put("user1", list("device1", "device2"));
+    }
+
+    @Test
+    public void testMissThenHit() {
+        assertEquals(list("device1", "device2"), cache.get("user1", loader));
+        assertEquals(list("device1", "device2"), cache.get("user1", loader));
+        assertEquals(1, loads);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testValuesAreCopied() {
+        ArrayList<String> value = cache.get("user1", loader);
+        value.add("device3");
+        ArrayList<String> cached = cache.get("user1", loader);
+        assertEquals(list("device1", "device2"), cached);
+        assertNotSame(value, cached);
+    }
+
+    @Test
+    public void testNullIsNotCached() {
+        assertNull(cache.get("user2", loader));
+        assertNull(cache.get("user2", loader));
+        assertEquals(2, loads);
+    }
+
+    @Test
+    public void testExpiration() {
+        cache.get("user1", loader);
+        now += 61 * 1000;
+        cache.get("user1", loader);
+        assertEquals(2, loads);
+    }
+
+    @Test
+    public void testInvalidateBlocksStaleValues() {
+        cache.get("user1", loader);
+        store.put("user1", list("device1"));
+        cache.invalidate("user1");
+
+        // Values loaded right after the change are not cached, as they may have been read before.
+        assertEquals(list("device1"), cache.get("user1", loader));
+        assertEquals(list("device1"), cache.get("user1", loader));
+        assertEquals(3, loads);
+
+        now += 5000;
+        cache.get("user1", loader);
+        cache.get("user1", loader);
+        assertEquals(4, loads);
+    }
+
+    private static ArrayList<String> list(String... values) {
+        ArrayList<String> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertNotNull;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import org.gdg_campinas.treffen.server.schedule.input.fetcher.VendorAPIEntityFetcher;
@@ -78,6 +79,46 @@ public class VendorInputTest {
   }
 
 
+  @Test
+  public void testFetchPagesConcurrentlyInPageOrder() throws IOException {
+    final int total = 7;
+    final int pageSize = 2;
+    EntityFetcher pagedFetcher = new EntityFetcher() {
+      @Override
+      public JsonElement fetch(Enum<?> entityType, Map<String, String> params) throws IOException {
+        int page = params != null && params.get("page") != null
+            ? Integer.parseInt(params.get("page")) : 1;
+        try {
+          // make later pages complete first
+          Thread.sleep(20 * (total / pageSize - page + 1));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        JsonArray results = new JsonArray();
+        for (int i = (page - 1) * pageSize; i < Math.min(page * pageSize, total); i++) {
+          JsonObject obj = new JsonObject();
+          obj.addProperty("Id", "id" + i);
+          results.add(obj);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("page", page);
+        response.addProperty("pagesize", pageSize);
+        response.addProperty("total", total);
+        response.add("results", results);
+        return response;
+      }
+    };
+
+    VendorDynamicInput api = new VendorDynamicInput(pagedFetcher);
+    api.setPageFetchFanOut(3);
+    JsonArray speakers = api.fetch(InputJsonKeys.VendorAPISource.MainTypes.speakers);
+
+    assertEquals(total, speakers.size());
+    for (int i = 0; i < total; i++) {
+      assertEquals("id" + i, speakers.get(i).getAsJsonObject().get("Id").getAsString());
+    }
+  }
+
   /**
    *
    * This is the real remote fetch. Doesn't fit well as a unit test, though, but it's here to
@@ -95,6 +95,7 @@ public class DataExtractorTest {
     ServingUrlManager mockServingUrlManager = mock(ServingUrlManager.class);
     Whitebox.setInternalState(ServingUrlManager.class, "INSTANCE", mockServingUrlManager);
     when(mockServingUrlManager.getServingUrl(any(String.class))).thenReturn("http://fake/fakeUrl");
+    when(mockServingUrlManager.getImageUrl(any(String.class))).thenReturn("http://fake/fakeUrl");
   }
 
   /**
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FreeBlockIndexTest {
+
+  @Test
+  public void testStartIsInclusiveAndEndIsExclusive() {
+    FreeBlockIndex index = new FreeBlockIndex.Builder()
+        .add(300, 400)
+        .add(100, 200)
+        .build();
+
+    assertFalse(index.isInFreeBlock(99));
+    assertTrue(index.isInFreeBlock(100));
+    assertTrue(index.isInFreeBlock(199));
+    assertFalse(index.isInFreeBlock(200));
+    assertFalse(index.isInFreeBlock(250));
+    assertTrue(index.isInFreeBlock(300));
+    assertFalse(index.isInFreeBlock(400));
+  }
+
+  @Test
+  public void testOverlappingBlocks() {
+    // A long block covers the gap after the short block that starts later.
+    FreeBlockIndex index = new FreeBlockIndex.Builder()
+        .add(100, 1000)
+        .add(200, 300)
+        .add(200, 250)
+        .build();
+
+    assertTrue(index.isInFreeBlock(200));
+    assertTrue(index.isInFreeBlock(500));
+    assertFalse(index.isInFreeBlock(1000));
+  }
+
+  @Test
+  public void testEmptyIndex() {
+    assertFalse(new FreeBlockIndex.Builder().build().isInFreeBlock(100));
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.gdg_campinas.treffen.test.TestHelper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class JsonFingerprintTest {
+
+  @Test
+  public void testSameTreeSameFingerprint() throws Exception {
+    JsonElement first = TestHelper.readJsonTestDataFile("sample_topics.json");
+    JsonElement second = TestHelper.readJsonTestDataFile("sample_topics.json");
+    assertArrayEquals(JsonFingerprint.of(first), JsonFingerprint.of(second));
+  }
+
+  @Test
+  public void testDifferentTreesDifferentFingerprints() {
+    assertDifferent("{\"a\":[\"ab\",\"c\"]}", "{\"a\":[\"a\",\"bc\"]}");
+    assertDifferent("{\"a\":\"1\"}", "{\"a\":1}");
+    assertDifferent("{\"a\":true}", "{\"a\":false}");
+    assertDifferent("{\"a\":[[]]}", "{\"a\":[]}");
+    assertDifferent("{\"a\":1,\"b\":2}", "{\"a\":1,\"b\":3}");
+  }
+
+  private void assertDifferent(String first, String second) {
+    JsonParser parser = new JsonParser();
+    assertFalse(first + " vs " + second, Arrays.equals(
+        JsonFingerprint.of(parser.parse(first)), JsonFingerprint.of(parser.parse(second))));
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+public class SessionDataDeltaTest {
+
+  private static final String OLD_DATA = "{"
+      + "\"sessions\":[{\"id\":\"s1\",\"title\":\"A\"},{\"id\":\"s2\",\"title\":\"B\"}],"
+      + "\"tags\":[{\"tag\":\"TOPIC_X\",\"name\":\"X\"}],"
+      + "\"rooms\":[{\"id\":\"r1\",\"name\":\"Room 1\"}]}";
+
+  private static final String NEW_DATA = "{"
+      + "\"sessions\":[{\"id\":\"s1\",\"title\":\"A2\"},{\"id\":\"s3\",\"title\":\"C\"}],"
+      + "\"tags\":[{\"tag\":\"TOPIC_X\",\"name\":\"X\"}],"
+      + "\"rooms\":[{\"id\":\"r1\",\"name\":\"Room 1\"}],"
+      + "\"blocks\":[{\"title\":\"Lunch\"}]}";
+
+  @Test
+  public void testOnlyChangedEntitiesAreIncluded() {
+    JsonParser parser = new JsonParser();
+    JsonObject delta = SessionDataDelta.compute(parser.parse(OLD_DATA).getAsJsonObject(),
+        parser.parse(NEW_DATA).getAsJsonObject(), "session_data_v1.1.json",
+        "session_data_v1.2.json");
+
+    assertEquals("session_data_v1.1.json", delta.get(SessionDataDelta.FROM).getAsString());
+    assertEquals("session_data_v1.2.json", delta.get(SessionDataDelta.TO).getAsString());
+    assertFalse(delta.has("tags"));
+    assertFalse(delta.has("rooms"));
+
+    JsonObject sessions = delta.getAsJsonObject("sessions");
+    assertEquals("id", sessions.get(SessionDataDelta.KEY).getAsString());
+    assertEquals(parser.parse("[{\"id\":\"s3\",\"title\":\"C\"}]"),
+        sessions.get(SessionDataDelta.ADDED));
+    assertEquals(parser.parse("[{\"id\":\"s1\",\"title\":\"A2\"}]"),
+        sessions.get(SessionDataDelta.CHANGED));
+    assertEquals(parser.parse("[\"s2\"]"), sessions.get(SessionDataDelta.REMOVED));
+
+    // blocks don't have a key, so they are replaced as a whole:
+    assertTrue(delta.getAsJsonObject("blocks").has(SessionDataDelta.REPLACE));
+  }
+}
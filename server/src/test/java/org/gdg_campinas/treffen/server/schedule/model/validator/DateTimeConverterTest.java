@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model.validator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.gson.JsonPrimitive;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DateTimeConverterTest {
+
+  private static final String[] INPUTS = {
+      "2017-05-17T17:00:00Z",
+      "2017-05-17T17:00:00",
+      "2017-05-17T17:00:00.000Z",
+      "2017-05-17T17:00:00+02:00",
+      "2016-02-29T23:59:59Z",
+      "2017-5-7T7:05:09Z",
+      "2017-02-30T10:00:00Z",
+      "2017-05-17T24:00:00",
+  };
+
+  private final DateTimeConverter converter = new DateTimeConverter();
+
+  @Test
+  public void testSameOutputAsSimpleDateFormat() throws Exception {
+    for (String input : INPUTS) {
+      assertEquals(input, convertWithSimpleDateFormat(input),
+          converter.convert(new JsonPrimitive(input)).getAsString());
+    }
+  }
+
+  @Test
+  public void testValueInOutputFormatIsReturnedAsIs() {
+    JsonPrimitive value = new JsonPrimitive("2017-05-17T17:00:00Z");
+    assertSame(value, converter.convert(value));
+  }
+
+  @Test
+  public void testInvalidDatesOnTemporaryDataAreFixed() {
+    assertEquals("2014-06-25T10:30:00Z",
+        converter.convert(new JsonPrimitive("1970-01-01T10:30:00Z")).getAsString());
+  }
+
+  @Test
+  public void testSniff() {
+    assertNull(DateTimeConverter.sniff("2017-05-17"));
+    assertNull(DateTimeConverter.sniff("2017-05-17T17:00:001"));
+    assertNull(DateTimeConverter.sniff("2017-13-17T17:00:00Z"));
+    assertNull(DateTimeConverter.sniff("2017-02-29T17:00:00Z"));
+    assertEquals(29, DateTimeConverter.sniff("2016-02-29T17:00:00Z").getDayOfMonth());
+  }
+
+  @Test
+  public void testUnparseableValue() {
+    try {
+      converter.convert(new JsonPrimitive("tomorrow"));
+      fail("Expected ConverterException");
+    } catch (ConverterException expected) {
+    }
+    assertNull(converter.convert((JsonPrimitive) null));
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 2000; i++) {
+        final String input = INPUTS[i % INPUTS.length];
+        results.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            return converter.convert(new JsonPrimitive(input)).getAsString();
+          }
+        }));
+      }
+      for (int i = 0; i < results.size(); i++) {
+        String input = INPUTS[i % INPUTS.length];
+        assertEquals(input, convertWithSimpleDateFormat(input), results.get(i).get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * How dates were converted before the converter could be shared by threads.
+   */
+  private static String convertWithSimpleDateFormat(String input) throws ParseException {
+    try {
+      return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").format(
+          new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").parse(input));
+    } catch (ParseException e) {
+      return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'").format(
+          new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(input));
+    }
+  }
+}
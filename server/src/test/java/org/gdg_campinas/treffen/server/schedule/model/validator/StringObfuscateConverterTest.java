@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.model.validator;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class StringObfuscateConverterTest {
+
+  @Test
+  public void testSameOutputAsJavaUtilRandom() {
+    String[] inputs = {"", "Android", "What's new in Android O? 2017 edition",
+        "\u00C1\u00C9\u00CD 123 \u00E0\u00E9\u00ED"};
+    for (String input : inputs) {
+      assertEquals(obfuscateWithRandom(input), StringObfuscateConverter.obfuscate(input));
+    }
+  }
+
+  @Test
+  public void testKeepsNonAlphanumericCharacters() {
+    String obfuscated = StringObfuscateConverter.obfuscate("I/O, 2017!");
+    assertEquals('/', obfuscated.charAt(1));
+    assertEquals(", ", obfuscated.substring(3, 5));
+    assertEquals('!', obfuscated.charAt(9));
+  }
+
+  /**
+   * How strings were obfuscated with a shared java.util.Random.
+   */
+  private static String obfuscateWithRandom(String src) {
+    Random r = new Random();
+    r.setSeed(src.hashCode());
+    char[] str = src.toCharArray();
+    for (int i = 0; i < str.length; i++) {
+      char ch = str[i];
+      if (Character.isLowerCase(ch)) {
+        str[i] = (char) ('a' + r.nextInt(25));
+      } else if (Character.isUpperCase(ch)) {
+        str[i] = (char) ('A' + r.nextInt(25));
+      } else if (Character.isDigit(ch)) {
+        str[i] = (char) ('0' + r.nextInt(10));
+      }
+    }
+    return new String(str);
+  }
+}
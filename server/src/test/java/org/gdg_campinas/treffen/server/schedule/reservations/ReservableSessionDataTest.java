@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gdg_campinas.treffen.server.schedule.reservations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.gdg_campinas.treffen.server.schedule.reservations.ReservableSessionData.Room;
+import org.gdg_campinas.treffen.server.schedule.reservations.ReservableSessionData.SessionInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+public class ReservableSessionDataTest {
+
+  private static final String SESSION_DATA = "{"
+      + "\"tags\": [{\"tag\": \"TYPE_SESSIONS\"}],"
+      + "\"rooms\": ["
+      + "  {\"id\": \"room1\", \"name\": \"Stage 1\", \"capacity\": 100},"
+      + "  {\"id\": \"room2\", \"name\": \"Stage 2\", \"capacity\": 50}"
+      + "],"
+      + "\"sessions\": ["
+      + "  {\"id\": \"s1\", \"title\": \"Session 1\", \"room\": \"room1\", \"tags\": [\"TYPE_SESSIONS\"],"
+      + "   \"startTimestamp\": \"2017-05-17T17:00:00Z\", \"endTimestamp\": \"2017-05-17T18:00:00Z\"},"
+      + "  {\"id\": \"s2\", \"title\": \"Codelab\", \"room\": \"room2\", \"tags\": [\"TYPE_CODELABS\"],"
+      + "   \"startTimestamp\": \"2017-05-17T17:00:00Z\", \"endTimestamp\": \"2017-05-17T18:00:00Z\"},"
+      + "  {\"id\": \"__keynote__\", \"title\": \"Keynote\", \"room\": \"room1\","
+      + "   \"tags\": [\"TYPE_SESSIONS\"],"
+      + "   \"startTimestamp\": \"2017-05-17T16:00:00Z\", \"endTimestamp\": \"2017-05-17T17:00:00Z\"},"
+      + "  {\"id\": \"s3\", \"title\": \"Session 3\", \"room\": \"room2\","
+      + "   \"tags\": [\"TOPIC_ANDROID\", \"TYPE_SESSIONS\"],"
+      + "   \"startTimestamp\": \"2017-05-18T09:00:00Z\", \"endTimestamp\": \"2017-05-18T10:00:00Z\"}"
+      + "]"
+      + "}";
+
+  private ReservableSessionData data;
+
+  @Before
+  public void setUp() throws Exception {
+    data = ReservableSessionData.parse("session_data_v1.1.json", new StringReader(SESSION_DATA));
+  }
+
+  @Test
+  public void testOnlyReservableSessionsAreKept() {
+    assertEquals(2, data.getSessions().size());
+    assertEquals(2, data.getNonReservableCount());
+    assertNull(data.getSession("s2"));
+    assertNull(data.getSession("__keynote__"));
+  }
+
+  @Test
+  public void testLookupById() {
+    SessionInfo session = data.getSession("s3");
+    assertEquals("Session 3", session.title);
+    assertEquals(1495098000000L, session.startTime);
+    assertEquals(1495101600000L, session.endTime);
+
+    Room room = data.getRoom(session.roomId);
+    assertEquals("Stage 2", room.name);
+    assertEquals(50, room.capacity);
+    assertEquals("session_data_v1.1.json", data.getFilename());
+  }
+}
@@ -18,8 +18,17 @@ package org.gdg_campinas.treffen.server.schedule.server.image;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
+import org.gdg_campinas.treffen.server.schedule.Config;
+import org.gdg_campinas.treffen.server.schedule.server.image.ImageUpdater.ImageContent;
+import org.gdg_campinas.treffen.server.schedule.server.image.ServingUrlManager.ImageSource;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Unit test for ImageUpdaterTest
  */
@@ -41,4 +50,37 @@ public class ImageUpdaterTest {
     assertEquals("jpg", ImageUpdater
         .parseFileExtFromUrl("https://googleapis.com/photos/ae8400a9?ts=636256372153900000"));
   }
+
+  @Test
+  public void testGroupByContent() throws Exception {
+    ImageSource a = new ImageSource("https://googleapis.com/photos/a.png", "\"1\"", null);
+    ImageSource b = new ImageSource("https://googleapis.com/photos/b.jpg", null, null);
+    ImageSource c = new ImageSource("https://googleapis.com/photos/c.jpg", null, null);
+    Map<ImageSource, byte[]> images = new LinkedHashMap<>();
+    images.put(a, new byte[] {1, 2, 3});
+    images.put(b, new byte[] {4, 5, 6});
+    images.put(c, new byte[] {1, 2, 3});
+
+    List<ImageContent> contents =
+        new ArrayList<>(ImageUpdater.groupByContent("images/speakers", images));
+
+    assertEquals(2, contents.size());
+    assertEquals("images/speakers/5289df737df57326fcdd22597afb1fac.png",
+        contents.get(0).record.gcsFilename.getObjectName());
+    assertEquals(Arrays.asList(a, c), contents.get(0).record.sources);
+    assertEquals(Arrays.asList(b), contents.get(1).record.sources);
+  }
+
+  @Test
+  public void testWidthBucketsUrl() throws Exception {
+    String objectName = "images/speakers/5289df737df57326fcdd22597afb1fac.jpg";
+    String widthBucketsUrl = ImageUpdater.getWidthBucketsUrl(objectName, new int[] {200, 400});
+
+    assertEquals(Config.CLOUD_STORAGE_BASE_URL
+        + "images/speakers/__w-200-400__/5289df737df57326fcdd22597afb1fac.jpg", widthBucketsUrl);
+    // Clients replace the width buckets with the best width, which must name a stored variant.
+    assertEquals(Config.CLOUD_STORAGE_BASE_URL
+            + ImageUpdater.getWidthBucketObjectName(objectName, 400),
+        widthBucketsUrl.replaceFirst("__w-((?:-?\\d+)+)__", "w400"));
+  }
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gdg_campinas.treffen.server.userdata.db;
+
+import static com.googlecode.objectify.ObjectifyService.ofy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import org.gdg_campinas.treffen.server.userdata.db.ReservedSession.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeSet;
+
+public class UserDataStoreTest {
+
+    private static final String USER = "user1";
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+    private Closeable session;
+
+    @BeforeClass
+    public static void registerEntities() {
+        ObjectifyService.register(UserData.class);
+        ObjectifyService.register(UserSessionRecord.class);
+    }
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        session = ObjectifyService.begin();
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testLoadMissingUser() {
+        assertNull(UserDataStore.load(USER));
+    }
+
+    @Test
+    public void testBookmarkReserveReviewRoundTrip() {
+        bookmark(USER, "s1", true, 100);
+        reserve(USER, "s2", Status.RESERVED, 200);
+        review(USER, "s3");
+
+        UserData userData = UserDataStore.load(USER);
+        assertEquals(USER, userData.userId);
+        assertEquals(Collections.singleton("s1"), userData.bookmarkedSessions.keySet());
+        assertTrue(userData.bookmarkedSessions.get("s1").inSchedule);
+        assertEquals(100, userData.bookmarkedSessions.get("s1").timestampUTC);
+        assertEquals(Collections.singleton("s2"), userData.reservedSessions.keySet());
+        assertEquals(Status.RESERVED, userData.reservedSessions.get("s2").status);
+        assertEquals(200, userData.reservedSessions.get("s2").timestampUTC);
+        assertEquals(new TreeSet<>(Collections.singleton("s3")), userData.reviewedSessions);
+
+        bookmark(USER, "s1", false, 300);
+        userData = UserDataStore.load(USER);
+        assertFalse(userData.bookmarkedSessions.get("s1").inSchedule);
+        assertEquals(300, userData.bookmarkedSessions.get("s1").timestampUTC);
+    }
+
+    @Test
+    public void testUpdateWithoutChangesIsNotSaved() {
+        UserDataStore.update(USER, Collections.singleton("s1"),
+                new UserDataStore.RecordUpdate() {
+                    @Override
+                    public boolean apply(UserSessionRecord record) {
+                        return false;
+                    }
+                });
+        assertNull(UserDataStore.load(USER));
+        assertNull(ofy().load().key(Key.create(UserData.class, USER)).now());
+    }
+
+    @Test
+    public void testMigratesLegacyUserData() {
+        UserData legacy = new UserData();
+        legacy.userId = USER;
+        legacy.bookmarkedSessions.put("s1", new BookmarkedSession("s1", true, 100));
+        legacy.reservedSessions.put("s2", new ReservedSession("s2", Status.WAITLISTED, 200));
+        legacy.reviewedSessions.add("s3");
+        ofy().save().entity(legacy).now();
+
+        // Legacy sessions are read before they are moved to records.
+        UserData userData = UserDataStore.load(USER);
+        assertEquals(Collections.singleton("s1"), userData.bookmarkedSessions.keySet());
+        assertEquals(Collections.singleton("s2"), userData.reservedSessions.keySet());
+        assertEquals(Collections.singleton("s3"), userData.reviewedSessions);
+
+        // The first update moves them to records.
+        bookmark(USER, "s1", false, 300);
+
+        UserData root = loadRoot(USER);
+        assertTrue(root.bookmarkedSessions.isEmpty());
+        assertTrue(root.reservedSessions.isEmpty());
+        assertTrue(root.reviewedSessions.isEmpty());
+        assertEquals(Collections.singleton("s2"), root.reservedSessionIds);
+        assertFalse(loadRecord(USER, "s1").bookmarked.inSchedule);
+        assertEquals(Status.WAITLISTED, loadRecord(USER, "s2").reserved.status);
+        assertTrue(loadRecord(USER, "s3").reviewed);
+
+        userData = UserDataStore.load(USER);
+        assertFalse(userData.bookmarkedSessions.get("s1").inSchedule);
+        assertEquals(300, userData.bookmarkedSessions.get("s1").timestampUTC);
+        assertEquals(Status.WAITLISTED, userData.reservedSessions.get("s2").status);
+        assertEquals(Collections.singleton("s3"), userData.reviewedSessions);
+    }
+
+    @Test
+    public void testReservedSessionIdsFollowReservations() {
+        reserve(USER, "s1", Status.RESERVED, 100);
+        reserve(USER, "s2", Status.WAITLISTED, 100);
+        assertEquals(new TreeSet<>(Arrays.asList("s1", "s2")), loadRoot(USER).reservedSessionIds);
+
+        UserDataStore.update(USER, Collections.singleton("s1"), new UserDataStore.RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                record.reserved = null;
+                return true;
+            }
+        });
+        assertEquals(Collections.singleton("s2"), loadRoot(USER).reservedSessionIds);
+
+        // Bookmarks don't touch the reservations.
+        bookmark(USER, "s3", true, 200);
+        assertEquals(Collections.singleton("s2"), loadRoot(USER).reservedSessionIds);
+    }
+
+    @Test
+    public void testLoadReservationsOfMissingAndPresentUsers() {
+        reserve("user1", "s1", Status.RESERVED, 100);
+        reserve("user1", "s2", Status.WAITLISTED, 100);
+        bookmark("user2", "s1", true, 100);
+        UserData legacy = new UserData();
+        legacy.userId = "user3";
+        legacy.reservedSessions.put("s3", new ReservedSession("s3", Status.RESERVED, 100));
+        ofy().save().entity(legacy).now();
+
+        Map<String, Map<String, ReservedSession>> reservations = UserDataStore.loadReservations(
+                Arrays.asList("user1", "user2", "user3", "missing"));
+
+        assertEquals(new TreeSet<>(Arrays.asList("user1", "user2", "user3")),
+                new TreeSet<>(reservations.keySet()));
+        assertEquals(new TreeSet<>(Arrays.asList("s1", "s2")),
+                new TreeSet<>(reservations.get("user1").keySet()));
+        assertEquals(Status.RESERVED, reservations.get("user1").get("s1").status);
+        assertEquals(Status.WAITLISTED, reservations.get("user1").get("s2").status);
+        assertTrue(reservations.get("user2").isEmpty());
+        assertEquals(Collections.singleton("s3"), reservations.get("user3").keySet());
+    }
+
+    @Test
+    public void testLoadReservationsOfNoUsers() {
+        assertTrue(UserDataStore.loadReservations(Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testVersionIncrementsWithEachChange() {
+        bookmark(USER, "s1", true, 100);
+        assertEquals(1, loadRoot(USER).version);
+        reserve(USER, "s2", Status.RESERVED, 100);
+        assertEquals(2, loadRoot(USER).version);
+        UserDataStore.update(USER, Collections.singleton("s1"), new UserDataStore.RecordUpdate() {
+            @Override
+            public boolean apply(UserSessionRecord record) {
+                return false;
+            }
+        });
+        assertEquals(2, loadRoot(USER).version);
+        assertEquals(1, loadRecord(USER, "s1").version);
+        assertEquals(2, loadRecord(USER, "s2").version);
+
+        UserDataChanges changes = UserDataStore.loadChangesSince(USER, 1);
+        assertFalse(changes.full);
+        assertEquals(2, changes.version);
+        assertTrue(changes.bookmarkedSessions.isEmpty());
+        assertEquals(Collections.singleton("s2"), changes.reservedSessions.keySet());
+
+        changes = UserDataStore.loadChangesSince(USER, 2);
+        assertFalse(changes.full);
+        assertEquals(2, changes.version);
+        assertTrue(changes.bookmarkedSessions.isEmpty());
+        assertTrue(changes.reservedSessions.isEmpty());
+    }
+
+    @Test
+    public void testChangesSinceUnknownVersionAreFull() {
+        bookmark(USER, "s1", true, 100);
+        UserDataChanges changes = UserDataStore.loadChangesSince(USER, 0);
+        assertTrue(changes.full);
+        assertEquals(1, changes.version);
+        assertEquals(Collections.singleton("s1"), changes.bookmarkedSessions.keySet());
+    }
+
+    @Test
+    public void testChangesSinceReportBookmarksRemovedAfterTheVersion() {
+        bookmark(USER, "s1", true, 100);
+        reserve(USER, "s2", Status.RESERVED, 100);
+        // version 3: a whole-model update drops the bookmark of s1
+        UserDataStore.updateAll(USER, Collections.<String>emptySet(),
+                new UserDataStore.RecordUpdate() {
+                    @Override
+                    public boolean apply(UserSessionRecord record) {
+                        if (record.bookmarked == null) {
+                            return false;
+                        }
+                        record.bookmarked = null;
+                        return true;
+                    }
+                });
+        reserve(USER, "s3", Status.RESERVED, 200);
+        review(USER, "s1");
+
+        UserDataChanges changes = UserDataStore.loadChangesSince(USER, 2);
+        assertEquals(5, changes.version);
+        assertEquals(Collections.singletonList("s1"), changes.removedBookmarks);
+
+        // s1 changed after version 3, but its bookmark was already gone then, and s3 was never
+        // bookmarked.
+        changes = UserDataStore.loadChangesSince(USER, 3);
+        assertTrue(changes.removedBookmarks.isEmpty());
+        assertEquals(Collections.singleton("s1"), changes.reviewedSessions);
+        assertEquals(Collections.singleton("s3"), changes.reservedSessions.keySet());
+    }
+
+    private static void bookmark(String userId, String sessionId, final boolean inSchedule,
+            final long timestamp) {
+        UserDataStore.update(userId, Collections.singleton(sessionId),
+                new UserDataStore.RecordUpdate() {
+                    @Override
+                    public boolean apply(UserSessionRecord record) {
+                        record.bookmarked = new BookmarkedSession(record.sessionId, inSchedule,
+                                timestamp);
+                        return true;
+                    }
+                });
+    }
+
+    private static void reserve(String userId, String sessionId, final Status status,
+            final long timestamp) {
+        UserDataStore.update(userId, Collections.singleton(sessionId),
+                new UserDataStore.RecordUpdate() {
+                    @Override
+                    public boolean apply(UserSessionRecord record) {
+                        record.reserved = new ReservedSession(record.sessionId, status, timestamp);
+                        return true;
+                    }
+                });
+    }
+
+    private static void review(String userId, String sessionId) {
+        UserDataStore.update(userId, Collections.singleton(sessionId),
+                new UserDataStore.RecordUpdate() {
+                    @Override
+                    public boolean apply(UserSessionRecord record) {
+                        record.reviewed = true;
+                        return true;
+                    }
+                });
+    }
+
+    private static UserData loadRoot(String userId) {
+        ofy().clear();
+        UserData root = ofy().load().key(Key.create(UserData.class, userId)).now();
+        assertNotNull(root);
+        return root;
+    }
+
+    private static UserSessionRecord loadRecord(String userId, String sessionId) {
+        ofy().clear();
+        UserSessionRecord record = ofy().load().key(UserSessionRecord.key(userId, sessionId)).now();
+        assertNotNull(record);
+        return record;
+    }
+}